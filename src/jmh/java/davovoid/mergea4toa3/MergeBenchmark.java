@@ -0,0 +1,111 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import davovoid.libmergea4toa3.A3Merger;
+
+/**
+ * Measures merging a fragment onto another, with synthetic fragments (see
+ * {@link SyntheticTriplet}) at several resolutions, with and without the
+ * scanner left correction.
+ *
+ * Throughput and sample time (with its percentiles) are measured; run it
+ * with {@code -prof gc} (the default of the benchmark profile) to get the
+ * allocation rate too.
+ *
+ * @author David
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 20)
+public class MergeBenchmark {
+
+	@Param({ "75", "150", "300" })
+	public int dpi;
+
+	@Param({ "true", "false" })
+	public boolean scannerLeftCorrection;
+
+	private SyntheticTriplet triplet;
+	private BufferedImage leftAndCenter;
+
+	@Setup(Level.Trial)
+	public void generate() {
+
+		triplet = SyntheticTriplet.generate(dpi, 1L);
+
+		// The working image the right fragment is merged onto
+		A3Merger merger = new A3Merger(triplet.getLeft());
+		merger.setScannerLeftCorrection(scannerLeftCorrection);
+		merger.mergeImageOnRight(triplet.getCenter(), true);
+
+		leftAndCenter = merger.getWorkingImg();
+
+	}
+
+	/**
+	 * Merges the center fragment onto the left one.
+	 */
+	@Benchmark
+	public BufferedImage mergeCenter() {
+
+		A3Merger merger = new A3Merger(triplet.getLeft());
+		merger.setScannerLeftCorrection(scannerLeftCorrection);
+		merger.mergeImageOnRight(triplet.getCenter(), true);
+
+		return merger.getWorkingImg();
+
+	}
+
+	/**
+	 * Merges the right fragment onto the left and center ones, a wider
+	 * working image.
+	 */
+	@Benchmark
+	public BufferedImage mergeRight() {
+
+		A3Merger merger = new A3Merger(leftAndCenter);
+		merger.setScannerLeftCorrection(scannerLeftCorrection);
+		merger.mergeImageOnRight(triplet.getRight(), true);
+
+		return merger.getWorkingImg();
+
+	}
+
+}
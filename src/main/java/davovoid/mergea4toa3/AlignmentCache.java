@@ -0,0 +1,395 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+/**
+ * Keeps the results of previous merges on disk, so that merging the same
+ * fragments again (i.e. to write it in another format, or after a crash) does
+ * not repeat the search.
+ *
+ * Every entry is keyed by a hash of the pixels of the fragments and the
+ * merge settings, and holds the placements found for every fragment but the
+ * first one, so a cached merge is composed again from them (see
+ * {@link Compositor}). When the entries take more than the size limit, the
+ * least recently used ones are removed.
+ *
+ * The composed image is not the one drawn by the library merger, which
+ * blends the fragments its own way. Setting the
+ * {@code mergea4toa3.cache.images} system property to {@code true} keeps the
+ * image of merges the engine drew too, stored as PNG, so they are given back
+ * as drawn; every such entry takes as much as a merged sheet.
+ *
+ * The cache is enabled by setting the {@code mergea4toa3.cache} system
+ * property to its folder; its size limit, in MiB, is set with
+ * {@code mergea4toa3.cache.size} (1024 by default).
+ *
+ * @author David
+ *
+ */
+public class AlignmentCache {
+
+	/**
+	 * The system property setting the cache folder.
+	 */
+	public static final String PROPERTY = "mergea4toa3.cache";
+
+	/**
+	 * The system property setting the cache size limit, in MiB.
+	 */
+	public static final String SIZE_PROPERTY = "mergea4toa3.cache.size";
+
+	/**
+	 * The system property keeping the merged images drawn by the engine.
+	 */
+	public static final String IMAGES_PROPERTY = "mergea4toa3.cache.images";
+
+	/**
+	 * Default size limit, in MiB.
+	 */
+	public static final long DEFAULT_SIZE_MIB = 1024;
+
+	// Changes whenever the merge settings or the entry format change
+	private static final String VERSION = "3;scannerLeftCorrection=true";
+
+	private static final String PLACEMENTS = ".properties", IMAGE = ".png";
+
+	/**
+	 * A cached merge.
+	 */
+	public static class Entry {
+
+		private final Placement[] placements;
+		private final BufferedImage merged;
+
+		Entry(Placement[] placements, BufferedImage merged) {
+			this.placements = placements;
+			this.merged = merged;
+		}
+
+		/**
+		 * Gets the placements of every fragment but the first one.
+		 * @return The placements.
+		 */
+		public Placement[] getPlacements() {
+			return placements.clone();
+		}
+
+		/**
+		 * Gets the merged image.
+		 * @return The image, or null if only the placements were cached.
+		 */
+		public BufferedImage getMerged() {
+			return merged;
+		}
+
+	}
+
+	private final File folder;
+	private final long maxBytes;
+	private final boolean images;
+
+	/**
+	 * Creates a cache of placements only.
+	 * @param folder   The folder the entries are kept in.
+	 * @param maxBytes The most the entries may take, in bytes.
+	 */
+	public AlignmentCache(File folder, long maxBytes) {
+		this(folder, maxBytes, false);
+	}
+
+	/**
+	 * Creates a cache.
+	 * @param folder   The folder the entries are kept in.
+	 * @param maxBytes The most the entries may take, in bytes.
+	 * @param images   Whether merged images drawn by the engine are kept too.
+	 */
+	public AlignmentCache(File folder, long maxBytes, boolean images) {
+		this.folder = folder;
+		this.maxBytes = maxBytes;
+		this.images = images;
+	}
+
+	/**
+	 * Tells whether merged images drawn by the engine are kept, besides the
+	 * placements.
+	 * @return True if they are kept.
+	 */
+	public boolean keepsImages() {
+		return images;
+	}
+
+	/**
+	 * Gets the cache set by the system properties.
+	 * @return The cache, or null if not enabled.
+	 * @throws IllegalArgumentException If the size limit is not valid.
+	 */
+	public static AlignmentCache current() {
+
+		String folder = System.getProperty(PROPERTY);
+
+		if (folder == null || folder.isEmpty())
+			return null;
+
+		String size = System.getProperty(SIZE_PROPERTY, Long.toString(DEFAULT_SIZE_MIB));
+
+		try {
+
+			return new AlignmentCache(new File(folder), Long.parseLong(size) << 20,
+					Boolean.getBoolean(IMAGES_PROPERTY));
+
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not a number for " + SIZE_PROPERTY + ": " + size);
+		}
+
+	}
+
+	/**
+	 * Computes the key of a job, from the size and pixels of its images.
+	 *
+	 * @param settings The merge settings changing the result.
+	 * @param images   The fragment images, in order.
+	 * @return The key, as hexadecimal text.
+	 */
+	public static String key(String settings, BufferedImage... images) {
+
+		MessageDigest digest;
+
+		try {
+
+			digest = MessageDigest.getInstance("SHA-256");
+
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // Every JVM has SHA-256
+		}
+
+		digest.update((VERSION + ";" + settings).getBytes(StandardCharsets.UTF_8));
+
+		for (BufferedImage img : images) {
+
+			int width = img.getWidth();
+			int[] row = new int[width];
+			ByteBuffer bytes = ByteBuffer.allocate(Math.max(8, 4 * width));
+
+			bytes.putInt(width).putInt(img.getHeight());
+			bytes.flip();
+			digest.update(bytes);
+
+			for (int y = 0; y < img.getHeight(); y++) {
+
+				img.getRGB(0, y, width, 1, row, 0, width);
+
+				bytes.clear();
+				bytes.asIntBuffer().put(row);
+				digest.update(bytes);
+
+			}
+
+		}
+
+		StringBuilder hex = new StringBuilder();
+
+		for (byte b : digest.digest())
+			hex.append(String.format("%02x", b));
+
+		return hex.toString();
+
+	}
+
+	/**
+	 * Gets a cached merge, marking it as recently used. Its merged image is
+	 * only read if images are kept.
+	 *
+	 * @param key The job key, see {@link #key(String, BufferedImage...)}.
+	 * @return The cached merge, or null if not cached or not readable.
+	 */
+	public Entry get(String key) {
+
+		File placementsFile = new File(folder, key + PLACEMENTS);
+		File imageFile = new File(folder, key + IMAGE);
+
+		if (!placementsFile.isFile())
+			return null;
+
+		try {
+
+			Properties props = new Properties();
+
+			try (InputStream in = new FileInputStream(placementsFile)) {
+				props.load(in);
+			}
+
+			Placement[] placements = new Placement[Integer.parseInt(props.getProperty("placements"))];
+
+			for (int i = 0; i < placements.length; i++)
+				placements[i] = readPlacement(props, "placement." + i);
+
+			boolean withImage = images && Boolean.parseBoolean(props.getProperty("image"));
+
+			if (withImage && !imageFile.isFile())
+				return null;
+
+			BufferedImage merged = withImage ? RasterBackend.current().read(imageFile) : null;
+
+			long now = System.currentTimeMillis();
+			placementsFile.setLastModified(now);
+
+			if (withImage)
+				imageFile.setLastModified(now);
+
+			return new Entry(placements, merged);
+
+		} catch (IOException | RuntimeException e) {
+
+			// Broken entry, merged again and overwritten
+			return null;
+
+		}
+
+	}
+
+	/**
+	 * Caches a merge, then removes the least recently used entries if the
+	 * cache is over its size limit.
+	 *
+	 * @param key        The job key, see {@link #key(String, BufferedImage...)}.
+	 * @param placements The placements of every fragment but the first one.
+	 * @param merged     The merged image, or null to compose it again from
+	 *                   the placements.
+	 * @throws IOException If the entry could not be written.
+	 */
+	public void put(String key, Placement[] placements, BufferedImage merged) throws IOException {
+
+		if (!folder.isDirectory() && !folder.mkdirs())
+			throw new IOException("Cache folder could not be created: " + folder);
+
+		Properties props = new Properties();
+		props.setProperty("placements", Integer.toString(placements.length));
+		props.setProperty("image", Boolean.toString(merged != null));
+
+		for (int i = 0; i < placements.length; i++)
+			writePlacement(props, "placement." + i, placements[i]);
+
+		// Written aside and moved, so no one reads half an entry
+		File tmpImage = merged == null ? null : File.createTempFile(key, IMAGE + ".tmp", folder);
+		File tmpPlacements = File.createTempFile(key, PLACEMENTS + ".tmp", folder);
+
+		try {
+
+			if (merged != null)
+				StripImageWriter.write(merged, "png", tmpImage);
+
+			try (OutputStream out = new FileOutputStream(tmpPlacements)) {
+				props.store(out, "mergea4toa3 alignment cache");
+			}
+
+			File image = new File(folder, key + IMAGE);
+
+			if (merged != null)
+				Files.move(tmpImage.toPath(), image.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			else
+				image.delete(); // From an entry with the image
+
+			Files.move(tmpPlacements.toPath(), new File(folder, key + PLACEMENTS).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+
+		} finally {
+
+			if (tmpImage != null)
+				tmpImage.delete();
+
+			tmpPlacements.delete();
+
+		}
+
+		evict();
+
+	}
+
+	/**
+	 * Removes the least recently used entries until the cache fits its size
+	 * limit.
+	 */
+	private void evict() {
+
+		synchronized (AlignmentCache.class) {
+
+			File[] entries = folder.listFiles(f -> f.getName().endsWith(PLACEMENTS));
+
+			if (entries == null)
+				return;
+
+			Arrays.sort(entries, Comparator.comparingLong(File::lastModified).reversed());
+
+			long total = 0;
+
+			for (File placements : entries) {
+
+				// No length if there is none
+				File image = new File(folder,
+						placements.getName().substring(0, placements.getName().length() - PLACEMENTS.length()) + IMAGE);
+
+				total += placements.length() + image.length();
+
+				if (total > maxBytes) {
+					placements.delete();
+					image.delete();
+				}
+
+			}
+
+		}
+
+	}
+
+	private static Placement readPlacement(Properties props, String prefix) {
+
+		return new Placement(Integer.parseInt(props.getProperty(prefix + ".x")),
+				Integer.parseInt(props.getProperty(prefix + ".y")),
+				Double.parseDouble(props.getProperty(prefix + ".angle")),
+				Double.parseDouble(props.getProperty(prefix + ".deviation")));
+
+	}
+
+	private static void writePlacement(Properties props, String prefix, Placement placement) {
+
+		props.setProperty(prefix + ".x", Integer.toString(placement.getX()));
+		props.setProperty(prefix + ".y", Integer.toString(placement.getY()));
+		props.setProperty(prefix + ".angle", Double.toString(placement.getAngle()));
+		props.setProperty(prefix + ".deviation", Double.toString(placement.getDeviation()));
+
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+
+/**
+ * How the fragments of a job are laid out. The merger only merges fragments
+ * on the right, so fragments stacked vertically are transposed (top to left,
+ * bottom to right) to be merged, and their placements and result transposed
+ * back.
+ *
+ * @author David
+ *
+ */
+public enum Arrangement {
+
+	/**
+	 * From left to right.
+	 */
+	HORIZONTAL,
+
+	/**
+	 * From top to bottom.
+	 */
+	VERTICAL;
+
+	// Swaps x and y
+	private static final AffineTransformOp TRANSPOSE = new AffineTransformOp(new AffineTransform(0, 1, 1, 0, 0, 0),
+			AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
+
+	/**
+	 * Gets an image as the merger expects it, from left to right.
+	 * @param img The image, laid out in this arrangement.
+	 * @return The image itself if horizontal, or a transposed copy.
+	 */
+	public BufferedImage toRow(BufferedImage img) {
+		return this == HORIZONTAL ? img : transpose(img);
+	}
+
+	/**
+	 * Gets an image merged from left to right back in this arrangement.
+	 * @param img The image, laid out from left to right.
+	 * @return The image itself if horizontal, or a transposed copy.
+	 */
+	public BufferedImage fromRow(BufferedImage img) {
+		return this == HORIZONTAL ? img : transpose(img);
+	}
+
+	/**
+	 * Gets a placement found from left to right back in this arrangement.
+	 * @param placement The placement, from left to right.
+	 * @return The placement itself if horizontal, or its transposition (x and
+	 *         y swapped, and the opposite angle), or null if null.
+	 */
+	public Placement fromRow(Placement placement) {
+
+		if (this == HORIZONTAL || placement == null)
+			return placement;
+
+		// Not -0 for no rotation
+		double angle = placement.getAngle() == 0 ? 0 : -placement.getAngle();
+
+		return new Placement(placement.getY(), placement.getX(), angle, placement.getDeviation());
+
+	}
+
+	private static BufferedImage transpose(BufferedImage img) {
+
+		BufferedImage transposed = TRANSPOSE.createCompatibleDestImage(img, img.getColorModel());
+		return TRANSPOSE.filter(img, transposed);
+
+	}
+
+}
@@ -0,0 +1,385 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import davovoid.libmergea4toa3.A3MergerStudyEvent;
+
+/**
+ * Headless merger, used to process folders or manifests of scans from the
+ * command line without creating any window.
+ *
+ * Usage: {@code --batch <folder|manifest> [--output <folder>] [--format <ext>]
+ * [--threads <n>] [--raster heap|direct|mapped] [--metrics <file>]
+ * [--adaptive] [--prealign] [--cache <folder>] [--parallel] [--fragments <n>]
+ * [--vertical] [--engine merger|phase]}
+ *
+ * The jobs are run in parallel by a {@link MergeScheduler}, by default using
+ * as many workers as the processors and the maximum heap allow.
+ * With {@code --metrics}, the time spent on every search scale of every merge
+ * is appended to the given file (see {@link MergeMetrics}).
+ * With {@code --adaptive}, fragments are only searched around where they were
+ * found on the previous sheets (see {@link SearchWindow}).
+ * With {@code --prealign}, fragments are only searched around where matching
+ * corners place them (see {@link KeypointAligner}).
+ * With {@code --cache}, sheets merged before are not searched again (see
+ * {@link AlignmentCache}).
+ * With {@code --parallel}, all the fragments of every sheet are registered
+ * at once (see {@link MergeJob#setParallel(boolean)}).
+ * With {@code --fragments} and {@code --vertical}, the scans of a folder are
+ * taken in groups of the given size (3 by default), stacked from top to
+ * bottom instead of from left to right. Manifest lines give their own.
+ * With {@code --engine}, another {@link RegistrationEngine} than the library
+ * merger finds the fragments of every sheet.
+ *
+ * @author David
+ *
+ */
+public class BatchMerger {
+
+	private File input;
+	private File outFolder;
+	private String format = "png";
+	private int threads = 0; // 0 means automatic
+	private SearchWindow searchWindow;
+	private boolean preAlignment = false;
+	private boolean parallel = false;
+	private int fragments = 3;
+	private Arrangement arrangement = Arrangement.HORIZONTAL;
+	private String engine = MergerEngine.NAME;
+
+	private final PrintStream out;
+
+	/**
+	 * Creates a batch merger that logs its progress to the given stream.
+	 * @param out The stream used for progress messages.
+	 */
+	public BatchMerger(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Parses the command line arguments.
+	 *
+	 * @param args The command line arguments.
+	 * @throws IllegalArgumentException If the arguments are not valid.
+	 */
+	public void parseArgs(String[] args) {
+
+		for (int i = 0; i < args.length; i++) {
+
+			switch (args[i]) {
+
+			case "--batch":
+				input = new File(argValue(args, ++i));
+				break;
+
+			case "--output":
+				outFolder = new File(argValue(args, ++i));
+				break;
+
+			case "--format":
+				format = argValue(args, ++i).toLowerCase();
+				break;
+
+			case "--threads":
+				threads = parseInt(argValue(args, ++i), args[i - 1]);
+				break;
+
+			case "--raster":
+				System.setProperty(RasterBackend.PROPERTY, argValue(args, ++i));
+				RasterBackend.current(); // validates it
+				break;
+
+			case "--parallel":
+				parallel = true;
+				break;
+
+			case "--fragments":
+				fragments = parseInt(argValue(args, ++i), args[i - 1]);
+
+				if (fragments < 2)
+					throw new IllegalArgumentException("At least two fragments are needed for --fragments");
+
+				break;
+
+			case "--vertical":
+				arrangement = Arrangement.VERTICAL;
+				break;
+
+			case "--engine":
+				engine = argValue(args, ++i);
+				RegistrationEngine.forName(engine); // validates it
+				break;
+
+			case "--cache":
+				System.setProperty(AlignmentCache.PROPERTY, argValue(args, ++i));
+				break;
+
+			case "--adaptive":
+				searchWindow = new SearchWindow();
+				break;
+
+			case "--prealign":
+				preAlignment = true;
+				break;
+
+			case "--metrics":
+				System.setProperty(MergeMetrics.PROPERTY, argValue(args, ++i));
+				break;
+
+			default:
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+
+			}
+
+		}
+
+		if (input == null)
+			throw new IllegalArgumentException("Missing --batch <folder|manifest>");
+
+		// By default, results are written next to the inputs
+		if (outFolder == null)
+			outFolder = input.isDirectory() ? input : input.getAbsoluteFile().getParentFile();
+
+	}
+
+	private static String argValue(String[] args, int i) {
+
+		if (i >= args.length)
+			throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+
+		return args[i];
+
+	}
+
+	private static int parseInt(String value, String arg) {
+
+		try {
+
+			return Integer.parseInt(value);
+
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not a number for " + arg + ": " + value);
+		}
+
+	}
+
+	/**
+	 * Builds the job list from the input and merges every job, several at once.
+	 * A failing job is reported and skipped.
+	 *
+	 * @return The number of failed jobs.
+	 * @throws IOException If the job list could not be built.
+	 */
+	public int run() throws IOException {
+
+		List<MergeJob> jobs = input.isDirectory()
+				? MergeJob.fromFolder(input, outFolder, format, fragments, arrangement)
+				: MergeJob.fromManifest(input, outFolder, format);
+
+		if (!outFolder.isDirectory() && !outFolder.mkdirs())
+			throw new IOException("Output folder could not be created: " + outFolder);
+
+		for (MergeJob job : jobs) {
+			job.setSearchWindow(searchWindow);
+			job.setPreAlignment(preAlignment);
+			job.setEngine(RegistrationEngine.forName(engine));
+			job.setParallel(parallel);
+		}
+
+		// The first job is taken as representative of the whole batch
+		MemoryAdmission admission = MemoryAdmission.forHeap();
+
+		MergeScheduler scheduler = new MergeScheduler(threads > 0 ? threads
+				: MergeScheduler.defaultPoolSize(jobs.isEmpty() ? 0 : jobs.get(0).estimatePeakBytes(), admission),
+				admission);
+
+		out.format("%d jobs found in %s, merging up to %d at once within %d MiB%n", jobs.size(), input,
+				scheduler.getPoolSize(), admission.getBudget() >> 20);
+
+		// Queue all the jobs
+		List<Future<BufferedImage>> results = new ArrayList<>();
+		long start = System.currentTimeMillis();
+
+		for (int i = 0; i < jobs.size(); i++) {
+
+			MergeJob job = jobs.get(i);
+			warnIfTooBig(job, admission, prefix(jobs, i));
+
+			results.add(scheduler.submit(job, new ConsoleStudyEvent(job, prefix(jobs, i))));
+
+		}
+
+		scheduler.shutdown();
+
+		// Then wait for them in order
+		int failed = 0;
+
+		for (int i = 0; i < jobs.size(); i++) {
+
+			MergeJob job = jobs.get(i);
+
+			try {
+
+				results.get(i).get();
+
+				out.format("%s: done, %s%n", prefix(jobs, i), describeDeviations(job.getDeviations()));
+
+			} catch (ExecutionException e) {
+
+				failed++;
+				out.format("%s: failed, %s%n", prefix(jobs, i), e.getCause());
+
+			} catch (InterruptedException e) {
+
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for " + job.getName(), e);
+
+			}
+
+		}
+
+		out.format("Finished in %.1f s: %d merged, %d failed%n", (System.currentTimeMillis() - start) / 1000d,
+				jobs.size() - failed, failed);
+
+		if (searchWindow != null)
+			out.format("%d fragments found with the narrowed search, %d searched again in full%n",
+					searchWindow.getNarrowed(), searchWindow.getFallbacks());
+
+		return failed;
+
+	}
+
+	/**
+	 * Warns about jobs that will have to run alone because of their size, as
+	 * they might still run out of memory.
+	 */
+	private void warnIfTooBig(MergeJob job, MemoryAdmission admission, String prefix) {
+
+		try {
+
+			long bytes = job.estimatePeakBytes();
+
+			if (bytes > admission.getBudget())
+				out.format("%s: needs about %d MiB, more than the %d MiB available, so it will be merged alone "
+						+ "(consider raising -Xmx)%n", prefix, bytes >> 20, admission.getBudget() >> 20);
+
+		} catch (IOException e) {
+			// Reported when the job fails
+		}
+
+	}
+
+	private static String prefix(List<MergeJob> jobs, int i) {
+		return String.format("[%d/%d] %s", i + 1, jobs.size(), jobs.get(i).getName());
+	}
+
+	/**
+	 * Describes the deviation indexes the same way the GUI does.
+	 * @param deviations The deviation indexes.
+	 * @return The text describing them.
+	 */
+	static String describeDeviations(double[] deviations) {
+
+		String devs = "";
+
+		for (double dev : deviations) {
+
+			devs += (devs.length() > 0 ? " / " : "") + (dev == MergeJob.NO_SIGNAL ? "none (Blank overlap)"
+					: String.format("%.2f (%s)", dev, dev < MergeJob.MAX_DEVIATION ? "OK" : "Too high"));
+
+		}
+
+		return "indexes = " + devs;
+
+	}
+
+	/**
+	 * Prints a line every time the merger starts a new scale, which is enough
+	 * to follow the progress without flooding the console.
+	 */
+	private class ConsoleStudyEvent implements A3MergerStudyEvent {
+
+		private final MergeJob job;
+		private final String prefix;
+
+		private int lastFragment = -1, lastScaleRed = -1;
+
+		ConsoleStudyEvent(MergeJob job, String prefix) {
+			this.job = job;
+			this.prefix = prefix;
+		}
+
+		@Override
+		public void updateStudyProgress(double progress, int firstScaleRed, int scaleRed, int xMinFindRange,
+				int xMaxFindRange, int yMinFindRange, int yMaxFindRange, int currentxpos, int currentypos,
+				double currentangle, int bestxpos, int bestypos, double bestangle, double smallestdeviation) {
+
+			int fragment = job.getMergingFragment();
+
+			if (fragment == lastFragment && scaleRed == lastScaleRed)
+				return;
+
+			lastFragment = fragment;
+			lastScaleRed = scaleRed;
+
+			out.format("%s: merging fragment %d of %d (scale 1/%d)...%n", prefix, fragment + 2,
+					job.getFragments().size(), scaleRed);
+
+		}
+
+	}
+
+	/**
+	 * Runs the batch merger with the given arguments.
+	 *
+	 * @param args The command line arguments.
+	 * @return The process exit code: 0 if all went fine, 1 if any job failed,
+	 *         2 if the arguments or input were not valid.
+	 */
+	public static int execute(String[] args) {
+
+		BatchMerger batch = new BatchMerger(System.out);
+
+		try {
+
+			batch.parseArgs(args);
+			return batch.run() == 0 ? 0 : 1;
+
+		} catch (IllegalArgumentException | IOException e) {
+
+			System.err.println("Error: " + e.getMessage());
+			System.err.println("Usage: --batch <folder|manifest> [--output <folder>] [--format <ext>] [--threads <n>] [--raster heap|direct|mapped] [--metrics <file>] [--adaptive] [--prealign] [--cache <folder>] [--parallel] [--fragments <n>] [--vertical] [--engine merger|phase]");
+
+			return 2;
+
+		}
+
+	}
+
+}
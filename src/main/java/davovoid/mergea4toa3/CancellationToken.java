@@ -0,0 +1,110 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.util.concurrent.CancellationException;
+
+import davovoid.libmergea4toa3.A3MergerStudyEvent;
+
+/**
+ * Asks a running merge to stop. The merger has no way to be stopped, so the
+ * token is checked from the progress events it sends while searching: once
+ * cancelled, the next event throws a {@link CancellationException}, which
+ * unwinds the merger, leaving its buffers to be collected.
+ *
+ * @author David
+ *
+ */
+public class CancellationToken {
+
+	private final CancellationToken parent;
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Creates a token.
+	 */
+	public CancellationToken() {
+		this(null);
+	}
+
+	/**
+	 * Creates a token also cancelled when its parent is, to stop a part of a
+	 * merge on its own.
+	 * @param parent The parent token, or null.
+	 */
+	public CancellationToken(CancellationToken parent) {
+		this.parent = parent;
+	}
+
+	/**
+	 * Asks the merge to stop, as soon as it checks the token.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Whether the merge has been asked to stop.
+	 * @return True if this token or its parent are cancelled.
+	 */
+	public boolean isCancelled() {
+		return cancelled || parent != null && parent.isCancelled();
+	}
+
+	/**
+	 * Stops the calling merge if cancelled.
+	 * @throws CancellationException If cancelled.
+	 */
+	public void checkCancelled() {
+
+		if (isCancelled())
+			throw new CancellationException("Merge cancelled");
+
+	}
+
+	/**
+	 * Wraps a progress event so that it checks the token before passing the
+	 * progress on. This is what actually stops the merger.
+	 *
+	 * @param event The event receiving the merge progress, or null.
+	 * @return The event to set to the merger.
+	 */
+	public A3MergerStudyEvent wrap(A3MergerStudyEvent event) {
+
+		return new A3MergerStudyEvent() {
+
+			@Override
+			public void updateStudyProgress(double progress, int firstScaleRed, int scaleRed, int xMinFindRange,
+					int xMaxFindRange, int yMinFindRange, int yMaxFindRange, int currentxpos, int currentypos,
+					double currentangle, int bestxpos, int bestypos, double bestangle, double smallestdeviation) {
+
+				checkCancelled();
+
+				if (event != null)
+					event.updateStudyProgress(progress, firstScaleRed, scaleRed, xMinFindRange, xMaxFindRange,
+							yMinFindRange, yMaxFindRange, currentxpos, currentypos, currentangle, bestxpos, bestypos,
+							bestangle, smallestdeviation);
+
+			}
+
+		};
+
+	}
+
+}
@@ -0,0 +1,426 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Draws fragments whose placements are already known onto a single canvas,
+ * as big as needed to hold all of them, in one go: the canvas is the only
+ * image allocated, and every pixel of it is written once.
+ *
+ * The canvas is filled in bands of rows, in parallel. For every band, the
+ * source rows each fragment needs are read once, and every canvas pixel is
+ * taken from the first fragment covering it, with bilinear interpolation
+ * for rotated fragments. Where fragments overlap, the first one given (the
+ * leftmost or topmost) is kept: the trailing edge of a scan is clean, while
+ * the leading one may show the scanner lid shadow.
+ *
+ * The canvas may also be given as a {@link StripImage} whose strips are only
+ * composed when asked for, so that writing it never allocates the canvas.
+ *
+ * @author David
+ *
+ */
+public class Compositor {
+
+	/**
+	 * Canvas rows filled by each parallel task.
+	 */
+	public static final int BAND_HEIGHT = 64;
+
+	private static final int WHITE = 0xffffff;
+
+	// Marks canvas pixels of a band already taken from a fragment
+	private static final int FILLED = 0xff000000;
+
+	private Compositor() {
+	}
+
+	/**
+	 * Composes the fragments.
+	 *
+	 * @param fragments  The fragments, from left to right or from top to
+	 *                   bottom.
+	 * @param placements Where each fragment is placed, all in the same
+	 *                   coordinates (usually the first fragment ones).
+	 * @return The composed image, white where no fragment is placed.
+	 */
+	public static BufferedImage compose(BufferedImage[] fragments, Placement[] placements) {
+		return compose(fragments, placements, bounds(fragments, placements));
+	}
+
+	/**
+	 * Gets the smallest canvas holding all the fragments.
+	 *
+	 * @param fragments  The fragments.
+	 * @param placements Where each fragment is placed.
+	 * @return The canvas, in placement coordinates.
+	 */
+	public static Rectangle bounds(BufferedImage[] fragments, Placement[] placements) {
+
+		Rectangle bounds = null;
+
+		for (int i = 0; i < fragments.length; i++) {
+
+			Rectangle fragmentBounds = placements[i].bounds(fragments[i].getWidth(), fragments[i].getHeight());
+
+			bounds = bounds == null ? fragmentBounds : bounds.union(fragmentBounds);
+
+		}
+
+		return bounds;
+
+	}
+
+	/**
+	 * Composes the fragments onto the given canvas, leaving out whatever
+	 * falls outside.
+	 *
+	 * @param fragments  The fragments, from left to right or from top to
+	 *                   bottom.
+	 * @param placements Where each fragment is placed, all in the same
+	 *                   coordinates.
+	 * @param canvas     The canvas, in placement coordinates.
+	 * @return The composed image, white where no fragment is placed.
+	 */
+	public static BufferedImage compose(BufferedImage[] fragments, Placement[] placements, Rectangle canvas) {
+		return compose(fragments, placements, canvas, new int[fragments.length]);
+	}
+
+	/**
+	 * Composes the fragments onto the given canvas, leaving out whatever
+	 * falls outside, and the given number of leading columns of every
+	 * fragment (i.e. where it shows the lid shadow), so that the next ones are
+	 * kept there.
+	 *
+	 * @param fragments  The fragments, the first ones kept where they overlap.
+	 * @param placements Where each fragment is placed, all in the same
+	 *                   coordinates.
+	 * @param canvas     The canvas, in placement coordinates.
+	 * @param leading    The columns left out of every fragment, on its left.
+	 * @return The composed image, white where no fragment is placed.
+	 */
+	public static BufferedImage compose(BufferedImage[] fragments, Placement[] placements, Rectangle canvas,
+			int[] leading) {
+
+		AffineTransform[] inverses = inverses(placements, canvas);
+
+		BufferedImage result = new BufferedImage(canvas.width, canvas.height, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+
+		composeRows(fragments, inverses, leading, pixels, canvas.width, 0, canvas.height);
+
+		return result;
+
+	}
+
+	/**
+	 * Composes the fragments strip by strip, each one when asked for, onto
+	 * the smallest canvas holding all of them. Only the strip being composed
+	 * and the last one are held, never the whole canvas.
+	 *
+	 * @param fragments   The fragments, from left to right or from top to
+	 *                    bottom.
+	 * @param placements  Where each fragment is placed, all in the same
+	 *                    coordinates (usually the first fragment ones).
+	 * @param stripHeight The rows of every strip.
+	 * @return The composed image, with the same pixels as
+	 *         {@link #compose(BufferedImage[], Placement[])}.
+	 */
+	public static StripImage strips(BufferedImage[] fragments, Placement[] placements, int stripHeight) {
+
+		Rectangle canvas = bounds(fragments, placements);
+		AffineTransform[] inverses = inverses(placements, canvas);
+		int[] leading = new int[fragments.length];
+
+		// As the composed images
+		BufferedImage type = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+		SampleModel sampleModel = type.getSampleModel();
+
+		return new StripImage(canvas.width, canvas.height, stripHeight, type.getColorModel(), sampleModel, (y, h) -> {
+
+			int[] pixels = new int[canvas.width * h];
+
+			composeRows(fragments, inverses, leading, pixels, canvas.width, y, y + h);
+
+			return Raster.createWritableRaster(sampleModel.createCompatibleSampleModel(canvas.width, h),
+					new DataBufferInt(pixels, pixels.length), new Point(0, y));
+
+		});
+
+	}
+
+	/**
+	 * Gets the transforms from canvas to fragment coordinates.
+	 */
+	private static AffineTransform[] inverses(Placement[] placements, Rectangle canvas) {
+
+		AffineTransform[] inverses = new AffineTransform[placements.length];
+
+		for (int i = 0; i < placements.length; i++) {
+
+			AffineTransform at = AffineTransform.getTranslateInstance(-canvas.x, -canvas.y);
+			at.concatenate(transform(placements[i]));
+
+			try {
+
+				inverses[i] = at.createInverse();
+
+			} catch (NoninvertibleTransformException e) {
+				throw new IllegalStateException(e); // Translations and rotations always are
+			}
+
+		}
+
+		return inverses;
+
+	}
+
+	/**
+	 * Fills the canvas rows from y0 to y1 (excluded), held in pixels from row
+	 * y0 on, in bands, in parallel.
+	 */
+	private static void composeRows(BufferedImage[] fragments, AffineTransform[] inverses, int[] leading,
+			int[] pixels, int width, int y0, int y1) {
+
+		int bands = (y1 - y0 + BAND_HEIGHT - 1) / BAND_HEIGHT;
+
+		IntStream.range(0, bands).parallel().forEach(band -> {
+
+			int top = y0 + band * BAND_HEIGHT;
+
+			composeBand(fragments, inverses, leading, pixels, width, y0, top, Math.min(y1, top + BAND_HEIGHT));
+
+		});
+
+	}
+
+	/**
+	 * Fills the canvas rows from y0 to y1 (excluded), held in pixels from row
+	 * first on.
+	 */
+	private static void composeBand(BufferedImage[] fragments, AffineTransform[] inverses, int[] leading,
+			int[] pixels, int width, int first, int y0, int y1) {
+
+		int offset = (y0 - first) * width;
+		int length = (y1 - y0) * width;
+
+		// Nothing taken yet
+		Arrays.fill(pixels, offset, offset + length, 0);
+
+		for (int i = 0; i < fragments.length; i++) {
+
+			BufferedImage fragment = fragments[i];
+			AffineTransform inverse = inverses[i];
+
+			int fw = fragment.getWidth(), fh = fragment.getHeight();
+			int lead = leading[i];
+
+			// Source rows needed by the band
+			double minV = Double.MAX_VALUE, maxV = -Double.MAX_VALUE;
+
+			for (Point2D corner : new Point2D[] { new Point2D.Double(0, y0), new Point2D.Double(width, y0),
+					new Point2D.Double(0, y1), new Point2D.Double(width, y1) }) {
+
+				Point2D p = inverse.transform(corner, null);
+				minV = Math.min(minV, p.getY());
+				maxV = Math.max(maxV, p.getY());
+
+			}
+
+			int v0 = Math.max(0, (int) Math.floor(minV) - 1);
+			int v1 = Math.min(fh, (int) Math.ceil(maxV) + 2);
+
+			if (v0 >= v1)
+				continue;
+
+			int[] source = readRows(fragment, v0, v1 - v0);
+
+			// Canvas to fragment: u = m00 x + m01 y + m02, v = m10 x + m11 y + m12
+			double m00 = inverse.getScaleX(), m01 = inverse.getShearX(), m02 = inverse.getTranslateX();
+			double m10 = inverse.getShearY(), m11 = inverse.getScaleY(), m12 = inverse.getTranslateY();
+
+			boolean aligned = m01 == 0 && m10 == 0 && m00 == 1 && m11 == 1 && m02 == Math.rint(m02)
+					&& m12 == Math.rint(m12);
+
+			for (int y = y0; y < y1; y++) {
+
+				int row = (y - first) * width;
+
+				if (aligned) {
+
+					// Plain copy of a row segment
+					int v = y + (int) m12;
+
+					if (v < 0 || v >= fh)
+						continue;
+
+					int du = (int) m02;
+					int x0 = Math.max(0, lead - du), x1 = Math.min(width, fw - du);
+					int src = (v - v0) * fw + du;
+
+					for (int x = x0; x < x1; x++) {
+
+						if (pixels[row + x] == 0)
+							pixels[row + x] = FILLED | source[src + x];
+
+					}
+
+					continue;
+
+				}
+
+				double u0 = m01 * y + m02, v0y = m11 * y + m12;
+
+				// Only the columns where the fragment is
+				double[] span = { 0, width - 1 };
+
+				if (!clip(span, u0, m00, lead, fw - 1) || !clip(span, v0y, m10, 0, fh - 1))
+					continue;
+
+				int x0 = (int) Math.ceil(span[0]), x1 = (int) Math.floor(span[1]);
+
+				for (int x = x0; x <= x1; x++) {
+
+					double u = u0 + m00 * x, v = v0y + m10 * x;
+
+					// Rounding at the span ends
+					if (pixels[row + x] != 0 || u < lead || v < 0 || u > fw - 1 || v > fh - 1)
+						continue;
+
+					pixels[row + x] = FILLED | bilinear(source, fw, v0, v1, u, v);
+
+				}
+
+			}
+
+		}
+
+		// Not covered by any fragment
+		for (int p = offset; p < offset + length; p++)
+			pixels[p] = pixels[p] == 0 ? WHITE : pixels[p] & WHITE;
+
+	}
+
+	/**
+	 * Narrows the span of x so that min <= start + step x <= max.
+	 * @return False if no x is left.
+	 */
+	private static boolean clip(double[] span, double start, double step, double min, double max) {
+
+		if (step == 0)
+			return start >= min && start <= max;
+
+		double a = (min - start) / step, b = (max - start) / step;
+
+		span[0] = Math.max(span[0], Math.min(a, b));
+		span[1] = Math.min(span[1], Math.max(a, b));
+
+		return span[0] <= span[1];
+
+	}
+
+	/**
+	 * Reads the given rows of a fragment as RGB, straight from the raster
+	 * samples for the usual RGB and gray images.
+	 */
+	private static int[] readRows(BufferedImage fragment, int v0, int rows) {
+
+		int fw = fragment.getWidth();
+		Raster raster = fragment.getRaster();
+		ColorModel cm = fragment.getColorModel();
+
+		boolean rgb = cm.getColorSpace().isCS_sRGB() && raster.getNumBands() >= 3;
+		boolean gray = cm.getColorSpace().getType() == ColorSpace.TYPE_GRAY && raster.getNumBands() == 1;
+
+		if (!(cm instanceof ComponentColorModel || cm instanceof DirectColorModel)
+				|| raster.getSampleModel().getSampleSize(0) != 8 || !(rgb || gray))
+			return fragment.getRGB(0, v0, fw, rows, null, 0, fw);
+
+		int bands = raster.getNumBands();
+		int[] samples = raster.getPixels(0, v0, fw, rows, (int[]) null);
+		int[] rgbs = new int[fw * rows];
+
+		for (int p = 0, s = 0; p < rgbs.length; p++, s += bands)
+			rgbs[p] = gray ? samples[s] * 0x010101 : samples[s] << 16 | samples[s + 1] << 8 | samples[s + 2];
+
+		return rgbs;
+
+	}
+
+	/**
+	 * Interpolates the pixel at (u, v) from source rows v0 to v1 (excluded).
+	 */
+	private static int bilinear(int[] source, int fw, int v0, int v1, double u, double v) {
+
+		int iu = (int) u, iv = (int) v;
+
+		// Weights in 1/256 units
+		int wu = (int) ((u - iu) * 256), wv = (int) ((v - iv) * 256);
+
+		int iu1 = Math.min(iu + 1, fw - 1);
+		int r0 = (Math.min(Math.max(iv, v0), v1 - 1) - v0) * fw;
+		int r1 = (Math.min(Math.max(iv + 1, v0), v1 - 1) - v0) * fw;
+
+		int p00 = source[r0 + iu], p01 = source[r0 + iu1];
+		int p10 = source[r1 + iu], p11 = source[r1 + iu1];
+
+		int rgb = 0;
+
+		for (int shift = 0; shift <= 16; shift += 8) {
+
+			int top = ((p00 >> shift) & 0xff) * (256 - wu) + ((p01 >> shift) & 0xff) * wu;
+			int bottom = ((p10 >> shift) & 0xff) * (256 - wu) + ((p11 >> shift) & 0xff) * wu;
+
+			rgb |= ((top * (256 - wv) + bottom * wv + 32768) >> 16) << shift;
+
+		}
+
+		return rgb;
+
+	}
+
+	/**
+	 * Gets the transform from fragment to placement coordinates.
+	 */
+	static AffineTransform transform(Placement placement) {
+
+		AffineTransform at = AffineTransform.getTranslateInstance(placement.getX(), placement.getY());
+		at.rotate(Math.toRadians(placement.getAngle()));
+
+		return at;
+
+	}
+
+}
@@ -0,0 +1,172 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * In-place fast Fourier transform of complex images whose sides are powers
+ * of two. The rows, and then the columns, may be transformed at once in a
+ * fork/join pool, as each one is transformed on its own.
+ *
+ * @author David
+ *
+ */
+class Fft {
+
+	// Rows or columns transformed as a single parallel part
+	private static final int GRAIN = 16;
+
+	private Fft() {
+	}
+
+	/**
+	 * Transforms an image, row by row and then column by column.
+	 *
+	 * @param re      The real parts, row by row.
+	 * @param im      The imaginary parts, row by row.
+	 * @param width   The image width, a power of two.
+	 * @param height  The image height, a power of two.
+	 * @param inverse True for the inverse transform (scaled by 1 / size).
+	 */
+	static void transform(double[] re, double[] im, int width, int height, boolean inverse) {
+		transform(re, im, width, height, inverse, null);
+	}
+
+	/**
+	 * Transforms an image, row by row and then column by column, several at
+	 * once. The result is the same as transforming them one by one.
+	 *
+	 * @param re      The real parts, row by row.
+	 * @param im      The imaginary parts, row by row.
+	 * @param width   The image width, a power of two.
+	 * @param height  The image height, a power of two.
+	 * @param inverse True for the inverse transform (scaled by 1 / size).
+	 * @param pool    The pool the rows and columns are transformed in, or
+	 *                null to transform them on this thread.
+	 */
+	static void transform(double[] re, double[] im, int width, int height, boolean inverse, ForkJoinPool pool) {
+
+		ParallelRanges.run(pool, height, GRAIN, (from, to) -> {
+
+			double[] rowRe = new double[width], rowIm = new double[width];
+
+			for (int y = from; y < to; y++) {
+
+				System.arraycopy(re, y * width, rowRe, 0, width);
+				System.arraycopy(im, y * width, rowIm, 0, width);
+
+				transform(rowRe, rowIm, width, inverse);
+
+				System.arraycopy(rowRe, 0, re, y * width, width);
+				System.arraycopy(rowIm, 0, im, y * width, width);
+
+			}
+
+		});
+
+		double scale = inverse ? 1 / ((double) width * height) : 1;
+
+		ParallelRanges.run(pool, width, GRAIN, (from, to) -> {
+
+			double[] columnRe = new double[height], columnIm = new double[height];
+
+			for (int x = from; x < to; x++) {
+
+				for (int y = 0; y < height; y++) {
+					columnRe[y] = re[y * width + x];
+					columnIm[y] = im[y * width + x];
+				}
+
+				transform(columnRe, columnIm, height, inverse);
+
+				for (int y = 0; y < height; y++) {
+					re[y * width + x] = columnRe[y] * scale;
+					im[y * width + x] = columnIm[y] * scale;
+				}
+
+			}
+
+		});
+
+	}
+
+	/**
+	 * Transforms the first n values, unscaled (radix 2, decimation in time).
+	 */
+	private static void transform(double[] re, double[] im, int n, boolean inverse) {
+
+		// Bit reversal permutation
+		for (int i = 1, j = 0; i < n; i++) {
+
+			int bit = n >> 1;
+
+			for (; (j & bit) != 0; bit >>= 1)
+				j ^= bit;
+
+			j ^= bit;
+
+			if (i < j) {
+
+				double t = re[i];
+				re[i] = re[j];
+				re[j] = t;
+
+				t = im[i];
+				im[i] = im[j];
+				im[j] = t;
+
+			}
+
+		}
+
+		for (int length = 2; length <= n; length <<= 1) {
+
+			double angle = (inverse ? 2 : -2) * Math.PI / length;
+			double stepRe = Math.cos(angle), stepIm = Math.sin(angle);
+
+			for (int start = 0; start < n; start += length) {
+
+				double wRe = 1, wIm = 0;
+
+				for (int k = 0; k < length / 2; k++) {
+
+					int a = start + k, b = a + length / 2;
+
+					double tRe = re[b] * wRe - im[b] * wIm;
+					double tIm = re[b] * wIm + im[b] * wRe;
+
+					re[b] = re[a] - tRe;
+					im[b] = im[a] - tIm;
+					re[a] += tRe;
+					im[a] += tIm;
+
+					double next = wRe * stepRe - wIm * stepIm;
+					wIm = wRe * stepIm + wIm * stepRe;
+					wRe = next;
+
+				}
+
+			}
+
+		}
+
+	}
+
+}
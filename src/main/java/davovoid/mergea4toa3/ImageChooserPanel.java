@@ -26,6 +26,7 @@ import com.jgoodies.forms.layout.FormSpecs;
 import javax.swing.JTextField;
 import javax.swing.TransferHandler;
 
+import java.awt.EventQueue;
 import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.Transferable;
 import java.awt.datatransfer.UnsupportedFlavorException;
@@ -36,8 +37,9 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.imageio.ImageIO;
 import javax.swing.JButton;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
@@ -46,6 +48,8 @@ import javax.swing.border.LineBorder;
 import java.awt.Color;
 import javax.swing.border.EtchedBorder;
 
+import davovoid.mergea4toa3.MemoryAdmission.Footprint;
+
 /**
  * Component used to browse, drag and drop an image.
  * The image can be previewed and the name is displayed.
@@ -55,8 +59,17 @@ import javax.swing.border.EtchedBorder;
  */
 public class ImageChooserPanel extends JPanel {
 	
+	/**
+	 * Longest side of the previews shown, enough to check the scans.
+	 */
+	public static final int PREVIEW_SIZE = 1024;
+	
 	private BufferedImage img, defaultImg;
 	
+	// The file the preview was read from, and its full size
+	private File file;
+	private Footprint footprint;
+	
 	private JImagePanel imgPanel;
 	private JLabel lblName;
 	private JButton btnBrowse;
@@ -72,30 +85,140 @@ public class ImageChooserPanel extends JPanel {
 
 	};
 	private JPanel panel;
+	
+	// Incremented on every load, so only the latest one updates the UI
+	private int loadGeneration = 0;
+	private CompletableFuture<BufferedImage> loading = null;
 
 	/**
-	 * Loads image from file and updates the UI.
+	 * Loads a preview of the image file in the background, showing the
+	 * decoding progress. The full resolution image is only decoded when
+	 * asked for (see {@code loadFullImage()}). The UI is updated once decoded,
+	 * unless another image has been set meanwhile. Images that would not fit
+	 * in the memory available for merging are not loaded.
 	 * 
 	 * @param image The image file
-	 * @throws IOException If the image could not be read properly
+	 * @return The future preview, completed exceptionally with an IOException
+	 * if the image could not be read properly
+	 * @throws IOException If the image could not be read properly, or it is
+	 * too big for the memory available
 	 */
-	public void loadImage(File image) throws IOException {
+	public CompletableFuture<BufferedImage> loadImage(File image) throws IOException {
 
-		img = ImageIO.read(image);
-		updateControls(image);
+		Footprint imageFootprint = Footprint.of(image);
+		
+		long bytes = imageFootprint.getBytes();
+		long budget = MemoryAdmission.forHeap().getBudget();
+		
+		if(RasterBackend.current().isHeap() && bytes > budget)
+			throw new IOException(String.format("The image needs %d MiB once loaded, more than the %d MiB available.",
+					bytes >> 20, budget >> 20));
+		
+		int generation = ++loadGeneration;
+		
+		// Loading animation while decoding
+		imgPanel.deactivateLoading();
+		imgPanel.setLoadingPercent(0d);
+		imgPanel.activateLoading();
+		
+		// Progress is only passed to the EDT when the percent changes
+		AtomicInteger lastPercent = new AtomicInteger(-1);
+		
+		loading = ImageDecoder.decodePreview(image, PREVIEW_SIZE, progress -> {
+			
+			if(lastPercent.getAndSet((int) (progress * 100)) != (int) (progress * 100))
+				EventQueue.invokeLater(() -> {
+					
+					if(generation == loadGeneration)
+						imgPanel.setLoadingPercent(progress);
+					
+				});
+			
+		});
+		
+		loading.whenComplete((loaded, error) -> EventQueue.invokeLater(() -> {
+			
+			if(generation != loadGeneration) return;
+			
+			imgPanel.deactivateLoading();
+			
+			if(error == null) {
+				
+				img = loaded;
+				file = image;
+				footprint = imageFootprint;
+				updateControls(image);
+				
+			}
+			
+		}));
+		
+		return loading;
 
 	}
+	
+	/**
+	 * Whether a preview is still being decoded.
+	 * 
+	 * @return True if {@code getImg()} will change once decoded.
+	 */
+	public boolean isLoading() {
+		return loading != null && !loading.isDone();
+	}
 
 	/**
-	 * Returns current selected image as BufferedImage. The image had already been
-	 * loaded using method {@code loadImage(image)}, so this function would not
-	 * throw any IOException.
+	 * Returns current selected image as BufferedImage. If it was loaded using
+	 * method {@code loadImage(image)}, this is its preview, so this function
+	 * would not throw any IOException. While another image is loading, the
+	 * previous one is returned (see {@code isLoading()}).
 	 * 
-	 * @return The current selected (and loaded) image.
+	 * @return The current selected image, or its preview.
 	 */
 	public BufferedImage getImg() {
 		return img;
 	}
+	
+	/**
+	 * Gets the current selected image at full resolution. If it was loaded
+	 * from file, it is decoded now, in the background, using the current
+	 * {@link RasterBackend}. It is not kept, so that the memory is only used
+	 * while merging.
+	 * 
+	 * @return The future image, completed exceptionally with an IOException
+	 * if the image could not be read properly.
+	 */
+	public CompletableFuture<BufferedImage> loadFullImage() {
+		
+		if(file == null)
+			return CompletableFuture.completedFuture(img);
+		
+		return ImageDecoder.decode(file, null);
+		
+	}
+	
+	/**
+	 * Gets the file of the current selected image.
+	 * 
+	 * @return The file, or null if the image was not loaded from a file.
+	 */
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Gets the size of the current selected image at full resolution, without
+	 * decoding it.
+	 * 
+	 * @return The footprint, or null if there is no image selected.
+	 */
+	public Footprint getFootprint() {
+		
+		if(file == null)
+			return img == null ? null : Footprint.of(img);
+		
+		return footprint;
+		
+	}
 
 	/**
 	 * Sets the image from this control using an already existing BufferedImage
@@ -104,7 +227,11 @@ public class ImageChooserPanel extends JPanel {
 	 * @param img The image to use as loaded image.
 	 */
 	public void setImg(BufferedImage img) {
+		loadGeneration++; // discards any image being loaded
+		imgPanel.deactivateLoading();
 		this.img = img;
+		this.file = null;
+		this.footprint = null;
 		updateControls(null);
 	}
 
@@ -244,15 +371,31 @@ public class ImageChooserPanel extends JPanel {
 	private void guiLoadImage(File file) {
 		try {
 			
-			loadImage(file);
+			loadImage(file).whenComplete((loaded, error) -> {
+				
+				if(error != null)
+					EventQueue.invokeLater(() -> showLoadError(error));
+				
+			});
 			
 		} catch (IOException e1) {
 			
-			JOptionPane.showMessageDialog(null, "Error: file could not be loaded as image.");
+			showLoadError(e1);
 			
-			e1.printStackTrace();
 		}
 	}
+	
+	/**
+	 * Notices the user about an error loading an image.
+	 * @param error The error.
+	 */
+	private void showLoadError(Throwable error) {
+		
+		JOptionPane.showMessageDialog(null, "Error: file could not be loaded as image.\n" + error.getMessage());
+		
+		error.printStackTrace();
+		
+	}
 
 	/**
 	 * Common image dropping method, used by drag&drop or transfer handling.
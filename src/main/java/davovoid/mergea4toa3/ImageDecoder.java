@@ -0,0 +1,243 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.DoubleConsumer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes image files on a shared pool of background threads, so that the
+ * event dispatch thread is never blocked by big scans, and the fragments of a
+ * merge are decoded in parallel. Previews are decoded at reduced resolution,
+ * so that choosing a big scan does not need its full raster.
+ *
+ * @author David
+ *
+ */
+public class ImageDecoder {
+
+	// Enough for the three fragments of a merge, at least
+	private static final int POOL_SIZE = Math.max(3, Runtime.getRuntime().availableProcessors());
+
+	private static final ExecutorService POOL = Executors.newFixedThreadPool(POOL_SIZE,
+			new DaemonThreadFactory("image-decoder"));
+
+	private ImageDecoder() {
+	}
+
+	/**
+	 * Decodes an image file in the background, using the current
+	 * {@link RasterBackend}.
+	 *
+	 * @param file     The image file.
+	 * @param progress Receives the decoding progress, from 0 to 1, on the
+	 *                 decoding thread, or null.
+	 * @return The future image. It completes exceptionally with an IOException
+	 *         if the file could not be read as image. Cancelling it stops the
+	 *         decoding at its next progress report, so its buffers are freed.
+	 */
+	public static CompletableFuture<BufferedImage> decode(File file, DoubleConsumer progress) {
+
+		RasterBackend backend = RasterBackend.current();
+		CompletableFuture<BufferedImage> future = new CompletableFuture<>();
+
+		POOL.execute(() -> {
+
+			// Cancelled before its turn
+			if (future.isDone())
+				return;
+
+			try {
+
+				// Unwinds the reader once cancelled
+				future.complete(backend.read(file, p -> {
+
+					if (future.isCancelled())
+						throw new CancellationException("Decoding cancelled: " + file);
+
+					if (progress != null)
+						progress.accept(p);
+
+				}));
+
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+
+		});
+
+		return future;
+
+	}
+
+	/**
+	 * Decodes a preview of an image file in the background, always in the
+	 * heap, as done by {@link #readPreview(File, int, DoubleConsumer)}.
+	 *
+	 * @param file     The image file.
+	 * @param maxSize  The preview size, see
+	 *                 {@link #readPreview(File, int, DoubleConsumer)}.
+	 * @param progress Receives the decoding progress, from 0 to 1, on the
+	 *                 decoding thread, or null.
+	 * @return The future preview. It completes exceptionally with an
+	 *         IOException if the file could not be read as image.
+	 */
+	public static CompletableFuture<BufferedImage> decodePreview(File file, int maxSize, DoubleConsumer progress) {
+
+		CompletableFuture<BufferedImage> future = new CompletableFuture<>();
+
+		POOL.execute(() -> {
+
+			try {
+
+				future.complete(readPreview(file, maxSize, progress));
+
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+
+		});
+
+		return future;
+
+	}
+
+	/**
+	 * Reads an image file at reduced resolution. The embedded thumbnail is
+	 * used if the file has one at least as big as asked, otherwise the image
+	 * is decoded with source subsampling, so that only the rows and columns
+	 * kept are stored.
+	 *
+	 * @param file     The image file.
+	 * @param maxSize  The minimum size of the longest side of the preview. It
+	 *                 is bigger, up to twice as big, unless the image itself
+	 *                 is smaller.
+	 * @param progress Receives the progress, from 0 to 1, or null.
+	 * @return The preview.
+	 * @throws IOException If the file could not be read as image.
+	 */
+	public static BufferedImage readPreview(File file, int maxSize, DoubleConsumer progress) throws IOException {
+
+		try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+
+			Iterator<ImageReader> readers = iis == null ? null : ImageIO.getImageReaders(iis);
+
+			if (readers == null || !readers.hasNext())
+				throw new IOException("File could not be loaded as image: " + file);
+
+			ImageReader reader = readers.next();
+
+			try {
+
+				reader.setInput(iis, true, true);
+
+				if (progress != null)
+					reader.addIIOReadProgressListener(new RasterBackend.ProgressListener(progress));
+
+				// The smallest thumbnail that is big enough, if any
+				if (reader.readerSupportsThumbnails()) {
+
+					int best = -1, bestSize = Integer.MAX_VALUE;
+
+					for (int t = 0; t < reader.getNumThumbnails(0); t++) {
+
+						int size = Math.max(reader.getThumbnailWidth(0, t), reader.getThumbnailHeight(0, t));
+
+						if (size >= maxSize && size < bestSize) {
+							best = t;
+							bestSize = size;
+						}
+
+					}
+
+					if (best >= 0)
+						return reader.readThumbnail(0, best);
+
+				}
+
+				int subsampling = Math.max(1, Math.max(reader.getWidth(0), reader.getHeight(0)) / maxSize);
+
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+				return reader.read(0, param);
+
+			} finally {
+				reader.dispose();
+			}
+
+		}
+
+	}
+
+	/**
+	 * Decodes several image files in parallel, and waits for all of them.
+	 *
+	 * @param files The image files.
+	 * @return The images, in the same order.
+	 * @throws IOException If any of the files could not be read as image.
+	 */
+	public static BufferedImage[] decodeAll(File... files) throws IOException {
+
+		List<CompletableFuture<BufferedImage>> futures = new ArrayList<>();
+
+		for (File file : files)
+			futures.add(decode(file, null));
+
+		BufferedImage[] images = new BufferedImage[files.length];
+
+		try {
+
+			for (int i = 0; i < files.length; i++)
+				images[i] = futures.get(i).get();
+
+		} catch (ExecutionException e) {
+
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+
+			throw new IOException(e.getCause());
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while decoding images", e);
+
+		}
+
+		return images;
+
+	}
+
+}
@@ -0,0 +1,173 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Mipmap pyramid of an image: the image itself, then versions of half the
+ * size of the previous one, down to a small one. Any scaled version of the
+ * image can then be drawn from the nearest level, which is at most twice as
+ * big, so scaling is fast and does not alias.
+ *
+ * Every level is averaged from the previous one (2x2 pixels into one), which
+ * for halving gives the same result as area averaging.
+ *
+ * @author David
+ *
+ */
+public class ImagePyramid {
+
+	/**
+	 * The pyramid stops once the longest side is not longer than this.
+	 */
+	public static final int MIN_LEVEL_SIZE = 64;
+
+	private final BufferedImage[] levels;
+
+	private ImagePyramid(BufferedImage[] levels) {
+		this.levels = levels;
+	}
+
+	/**
+	 * Builds the pyramid of an image. As it takes a while for big images, it
+	 * is meant to be called on a background thread.
+	 *
+	 * @param img The image, kept as first level (it is not copied).
+	 * @return The pyramid.
+	 * @throws InterruptedException If the thread is interrupted while building.
+	 */
+	public static ImagePyramid build(BufferedImage img) throws InterruptedException {
+
+		int count = 1;
+
+		for (int w = img.getWidth(), h = img.getHeight(); Math.max(w, h) > MIN_LEVEL_SIZE; count++) {
+			w = (w + 1) / 2;
+			h = (h + 1) / 2;
+		}
+
+		BufferedImage[] levels = new BufferedImage[count];
+		levels[0] = img;
+
+		for (int l = 1; l < count; l++)
+			levels[l] = halve(levels[l - 1]);
+
+		return new ImagePyramid(levels);
+
+	}
+
+	/**
+	 * Averages every 2x2 pixels into one. The last row or column is repeated
+	 * if the size is odd.
+	 */
+	private static BufferedImage halve(BufferedImage src) throws InterruptedException {
+
+		int srcWidth = src.getWidth(), srcHeight = src.getHeight();
+		int width = (srcWidth + 1) / 2, height = (srcHeight + 1) / 2;
+
+		BufferedImage dst = new BufferedImage(width, height,
+				src.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+
+		int[] row0 = new int[srcWidth], row1 = new int[srcWidth], out = new int[width];
+
+		for (int y = 0; y < height; y++) {
+
+			if (Thread.interrupted())
+				throw new InterruptedException();
+
+			src.getRGB(0, 2 * y, srcWidth, 1, row0, 0, srcWidth);
+			src.getRGB(0, Math.min(2 * y + 1, srcHeight - 1), srcWidth, 1, row1, 0, srcWidth);
+
+			for (int x = 0; x < width; x++) {
+
+				int x0 = 2 * x, x1 = Math.min(x0 + 1, srcWidth - 1);
+
+				out[x] = average(row0[x0], row0[x1], row1[x0], row1[x1]);
+
+			}
+
+			dst.setRGB(0, y, width, 1, out, 0, width);
+
+		}
+
+		return dst;
+
+	}
+
+	/**
+	 * Averages four ARGB pixels, channel by channel (rounded).
+	 */
+	private static int average(int p0, int p1, int p2, int p3) {
+
+		int argb = 0;
+
+		for (int shift = 0; shift < 32; shift += 8) {
+
+			int sum = (p0 >>> shift & 0xff) + (p1 >>> shift & 0xff) + (p2 >>> shift & 0xff) + (p3 >>> shift & 0xff);
+
+			argb |= ((sum + 2) >> 2) << shift;
+
+		}
+
+		return argb;
+
+	}
+
+	/**
+	 * Gets the image the pyramid was built from.
+	 * @return The first level.
+	 */
+	public BufferedImage getSource() {
+		return levels[0];
+	}
+
+	/**
+	 * Gets the number of levels, the image itself included.
+	 * @return The number of levels.
+	 */
+	public int getLevelCount() {
+		return levels.length;
+	}
+
+	/**
+	 * Gets a level of the pyramid.
+	 * @param level The level, 0 for the image itself.
+	 * @return The image of that level, 2^level times smaller.
+	 */
+	public BufferedImage getLevel(int level) {
+		return levels[level];
+	}
+
+	/**
+	 * Gets the smallest level still not smaller than the image scaled.
+	 * @param scale The scale, relative to the image size.
+	 * @return The level to scale from.
+	 */
+	public int levelFor(double scale) {
+
+		int level = 0;
+
+		while (level + 1 < levels.length && scale * (1 << (level + 1)) <= 1d)
+			level++;
+
+		return level;
+
+	}
+
+}
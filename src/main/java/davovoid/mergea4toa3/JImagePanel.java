@@ -20,10 +20,12 @@ package davovoid.mergea4toa3;
 
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.Cursor;
 import java.awt.EventQueue;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.Shape;
 import java.awt.RenderingHints;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
@@ -32,24 +34,34 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.event.MouseMotionListener;
+import java.awt.event.MouseWheelEvent;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
 import java.io.File;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 
 /**
  * JPanel modified to display an image. The image is dynamically resized using
- * anti-aliasing sizing procedures. The sizing occurs only if the panel changes
- * size, and after certain time, so it is resized asynchronously once the size
- * is stable, not affecting the parent component painting speed.
+ * anti-aliasing sizing procedures. Once set, a pyramid of smaller versions of
+ * the image is built asynchronously, and the image is drawn as tiles scaled
+ * from the nearest version, which are cached (see {@link TileCache}), so
+ * resizing and repainting do not depend on the image size. Missing tiles are
+ * rendered in the background, meanwhile a smaller version is drawn instead.
  * 
  * This panel has also the possibility of showing a loading animation (i.e. if
  * requiring to show that the image is being processed).
  * 
- * This panel can also show a magnifying glass while the cursor goes through.
+ * This panel can also show a magnifying glass while the cursor goes through,
+ * and let the user zoom the image with the mouse wheel and move it dragging.
  * 
  * @author David
  *
@@ -61,20 +73,51 @@ public class JImagePanel extends JPanel {
 
 	private double scaling = 1d; // Value updated later in paintComponent routine
 
-	// Threads used for scaling image per panel size and for the loading animation
-	private Thread scalingThread = null;
-	private Thread loadingThread = null;
+	// Shared by all the panels: builds the image pyramids, renders the tiles
+	// and ticks the loading animations, so no thread is created per image or
+	// resize
+	private static final ScheduledThreadPoolExecutor SCHEDULER = createScheduler();
+	
+	// Pyramid builds wait this long, so only the last image of a burst is built
+	private static final long RESCALE_DELAY_MS = 150;
+	private static final long ANIMATION_PERIOD_MS = 100;
+	
+	// Panels showing the loading animation, all moved by a single tick
+	private static final Set<JImagePanel> ANIMATED = new HashSet<>();
+	private static ScheduledFuture<?> animationTick = null;
+	
+	private ScheduledFuture<?> scalingTask = null;
 	
 	// Loading animation
-	private int loadingAngle = 0;
+	private volatile boolean loading = false;
+	private volatile int loadingAngle = 0;
 	private double loadingPercent=0d;
 
-	// Images (incl. scaled image)
+	// Images (incl. the pyramid of scaled images, once built)
 	private BufferedImage originalImage;
-	private Image scaledImage;
+	private volatile ImagePyramid pyramid;
+	
+	// Scale of the tiles last painted, the only ones worth rendering
+	private volatile double tileScale;
 	
 	private boolean mousefullScale = false;
 	private int mouseX=-1, mouseY=-1;
+	
+	// Magnifying glass buffers, reused while the image and visor size stay
+	private static final BasicStroke VISOR_STROKE = new BasicStroke(1);
+	private BufferedImage visorImg, visorSource;
+	private Object visorPixels;
+	
+	/**
+	 * Most device pixels per image pixel when zooming.
+	 */
+	public static final double MAX_ZOOM_SCALE = 8d;
+	
+	// Zoom (1 fits the image in the panel) and pan from the centered position
+	private boolean zoomable = false;
+	private double zoom = 1d;
+	private int panX = 0, panY = 0;
+	private int dragX = -1, dragY = -1;
 
 	/**
 	 * Gets the set image.
@@ -90,6 +133,7 @@ public class JImagePanel extends JPanel {
 	 */
 	public void setImage(BufferedImage originalImage) {
 		this.originalImage = originalImage;
+		resetZoom();
 		reloadScalingImage();
 		repaint();
 	}
@@ -118,6 +162,96 @@ public class JImagePanel extends JPanel {
 		}
 	}
 
+	/**
+	 * Gets whether the image can be zoomed and moved with the mouse.
+	 * @return True if activated.
+	 */
+	public boolean isZoomable() {
+		return zoomable;
+	}
+
+	/**
+	 * Sets whether the image can be zoomed with the mouse wheel (around the
+	 * cursor) and moved dragging it. Double click fits the image again.
+	 * @param zoomable True to activate.
+	 */
+	public void setZoomable(boolean zoomable) {
+		this.zoomable = zoomable;
+		if(!zoomable)
+			resetZoom();
+	}
+
+	/**
+	 * Fits the whole image in the panel again.
+	 */
+	public void resetZoom() {
+		zoom = 1d;
+		panX = 0;
+		panY = 0;
+		setCursor(Cursor.getDefaultCursor());
+		repaint();
+	}
+
+	/**
+	 * Gets where the image is drawn, in panel coordinates, according to the
+	 * zoom and pan. The pan is limited so that a zoomed image always covers
+	 * the panel.
+	 * @return The image bounds.
+	 */
+	private Rectangle getImageBounds() {
+		
+		int fitWidth = Math.min(getWidth(), getHeight() * originalImage.getWidth() / originalImage.getHeight());
+		int fitHeight = Math.min(getHeight(), getWidth() * originalImage.getHeight() / originalImage.getWidth());
+		
+		int width = (int) Math.round(fitWidth * zoom);
+		int height = (int) Math.round(fitHeight * zoom);
+		
+		panX = clampPan(panX, width, getWidth());
+		panY = clampPan(panY, height, getHeight());
+		
+		return new Rectangle((getWidth() - width) / 2 + panX, (getHeight() - height) / 2 + panY, width, height);
+		
+	}
+	
+	private static int clampPan(int pan, int size, int panelSize) {
+		
+		int max = Math.max(0, (size - panelSize) / 2);
+		return Math.max(-max, Math.min(max, pan));
+		
+	}
+	
+	/**
+	 * Zooms the image keeping the image point under the cursor in place.
+	 * @param e The mouse wheel event.
+	 */
+	private void zoomAround(MouseWheelEvent e) {
+		
+		Rectangle bounds = getImageBounds();
+		
+		if(bounds.isEmpty()) return;
+		
+		// Up to MAX_ZOOM_SCALE device pixels per image pixel
+		double fitWidth = bounds.width / zoom;
+		double maxZoom = Math.max(1d, MAX_ZOOM_SCALE * originalImage.getWidth() / (fitWidth * scaling));
+		
+		double newZoom = Math.max(1d, Math.min(maxZoom, zoom * Math.pow(1.25d, -e.getPreciseWheelRotation())));
+		
+		// Image point under the cursor, relative to the image size
+		double u = (e.getX() - bounds.x) / (double) bounds.width;
+		double v = (e.getY() - bounds.y) / (double) bounds.height;
+		
+		int width = (int) Math.round(bounds.width / zoom * newZoom);
+		int height = (int) Math.round(bounds.height / zoom * newZoom);
+		
+		panX = (int) Math.round(e.getX() - u * width - (getWidth() - width) / 2);
+		panY = (int) Math.round(e.getY() - v * height - (getHeight() - height) / 2);
+		zoom = newZoom;
+		
+		setCursor(zoom > 1d ? Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR) : Cursor.getDefaultCursor());
+		repaint();
+		
+	}
+
 	/**
 	 * Gets the actual panel width according to the OS scaling.
 	 * @return
@@ -143,53 +277,71 @@ public class JImagePanel extends JPanel {
 	 */
 	public void activateLoading() {
 		
-		loadingThread = new Thread() {
+		loading = true;
+		
+		synchronized (ANIMATED) {
 			
-			@Override
-			public void run() {
+			ANIMATED.add(this);
+			
+			if(animationTick == null)
+				animationTick = SCHEDULER.scheduleAtFixedRate(JImagePanel::tickAnimations,
+						0, ANIMATION_PERIOD_MS, TimeUnit.MILLISECONDS);
+			
+		}
+		
+	}
+	
+	/**
+	 * Deactivates the loading animation, if existent.
+	 */
+	public void deactivateLoading() {
+		
+		loading = false;
+		
+		synchronized (ANIMATED) {
+			
+			ANIMATED.remove(this);
+			
+			// No tick while nothing is animated
+			if(ANIMATED.isEmpty() && animationTick != null) {
 				
-				try {
-					
-					while(!isInterrupted()) {
-						
-						loadingAngle += 10;
-						loadingAngle %=360;
-
-						//System.out.println(loadingAngle);
-						
-						repaint();
-						
-						Thread.sleep(100);
-						
-					}
-					
-				} catch (InterruptedException e) {
-				}
+				animationTick.cancel(false);
+				animationTick = null;
 				
 			}
 			
-		};
+		}
 		
-		loadingThread.start();
+		repaint();
 		
 	}
 	
 	/**
-	 * Deactivates the loading animation, if existent.
+	 * Moves the loading animation of all the animated panels.
 	 */
-	public void deactivateLoading() {
+	private static void tickAnimations() {
 		
-		try {
+		synchronized (ANIMATED) {
 			
-			if(loadingThread!=null)
-				loadingThread.interrupt();
-			
-			loadingThread = null;
+			for(JImagePanel panel : ANIMATED) {
+				
+				panel.loadingAngle = (panel.loadingAngle + 10) % 360;
+				panel.repaint();
+				
+			}
 			
-		} catch (Exception e) {
 		}
 		
 	}
+	
+	private static ScheduledThreadPoolExecutor createScheduler() {
+		
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(2, new DaemonThreadFactory("image-panel"));
+		scheduler.setRemoveOnCancelPolicy(true);
+		
+		return scheduler;
+		
+	}
 
 	/**
 	 * Gets the loading percent set to the panel for loading animation.
@@ -211,60 +363,47 @@ public class JImagePanel extends JPanel {
 	}
 
 	/**
-	 * Reloads the scaling image as a thread. It waits some time and, if not
-	 * interrupted, it gets scaled.
+	 * Builds the pyramid of the image in the background, so that the image can
+	 * be drawn scaled at any size. The build waits a little, and if recalled
+	 * meanwhile (or while building) the previous one is cancelled.
 	 */
 	private void reloadScalingImage() {
-		if (scalingThread != null)
-			scalingThread.interrupt(); // If recalled, interrupt the previous thread
+		if (scalingTask != null)
+			scalingTask.cancel(true); // If recalled, cancel the previous build
 
-		scalingThread = new Thread() {
-
-			@Override
-			public void run() {
-
-				try {
-
-					// Waits 1 second
-					if (scaledImage != null)
-						Thread.sleep(1000);
-
-					// If not interrupted means the panel has not been resized
-					// So it can be painted now using EventQueue
-					EventQueue.invokeLater(new Runnable() {
-
-						@Override
-						public void run() {
-
-							if (originalImage == null)
-								return;
-
-							//System.out.println("Painting...");
+		// Tiles of the previous image are no longer needed
+		if (pyramid != null)
+			TileCache.shared().invalidate(pyramid);
+		
+		pyramid = null;
+		
+		BufferedImage image = originalImage;
+		
+		if (image == null)
+			return;
 
-							int width = Math.min(getWidthCorr(),
-									getHeightCorr() * originalImage.getWidth() / originalImage.getHeight());
+		scalingTask = SCHEDULER.schedule(() -> {
 
-							int height = Math.min(getHeightCorr(),
-									getWidthCorr() * originalImage.getHeight() / originalImage.getWidth());
+			try {
 
-							//System.out.format("Resize: %d x %d\r\n", width, height);
+				ImagePyramid built = ImagePyramid.build(image);
 
-							scaledImage = originalImage.getScaledInstance(width, height, Image.SCALE_AREA_AVERAGING);
+				// Painted using EventQueue, if the image is still the same
+				EventQueue.invokeLater(() -> {
 
-							thisObject.repaint();
+					if (originalImage != image)
+						return;
 
-						}
+					pyramid = built;
 
-					});
+					thisObject.repaint();
 
-				} catch (InterruptedException e) {
-				}
+				});
 
+			} catch (InterruptedException e) {
 			}
 
-		};
-
-		scalingThread.start();
+		}, RESCALE_DELAY_MS, TimeUnit.MILLISECONDS);
 	}
 
 	public JImagePanel() {
@@ -275,12 +414,9 @@ public class JImagePanel extends JPanel {
 
 			public void componentResized(ComponentEvent e) {
 
-				// Reload scaling image once resized
-				// No worries on calling it loads of times,
-				// it is considered so the previous call gets
-				// interrupted, so only if the component stops
-				// getting resized the image gets rescaled.
-				reloadScalingImage();
+				// The tiles at the new size are scaled from the pyramid
+				// when painting, so there is nothing to rescale here
+				repaint();
 
 			}
 
@@ -299,6 +435,31 @@ public class JImagePanel extends JPanel {
 				
 			}
 			
+			@Override
+			public void mousePressed(MouseEvent e) {
+				
+				// Start of a drag to move the zoomed image
+				dragX = e.getX();
+				dragY = e.getY();
+				
+			}
+			
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				
+				// Double click fits the image again
+				if(zoomable && e.getClickCount() == 2)
+					resetZoom();
+				
+			}
+			
+		});
+		
+		addMouseWheelListener(e -> {
+			
+			if(zoomable && originalImage != null)
+				zoomAround(e);
+			
 		});
 		
 		addMouseMotionListener(new MouseMotionAdapter() {
@@ -329,6 +490,26 @@ public class JImagePanel extends JPanel {
 				
 			}
 			
+			@Override
+			public void mouseDragged(MouseEvent e) {
+				
+				if(!zoomable || zoom <= 1d) return;
+				
+				// Moves the image, without magnifying glass meanwhile
+				
+				panX += e.getX() - dragX;
+				panY += e.getY() - dragY;
+				
+				dragX = e.getX();
+				dragY = e.getY();
+				
+				mouseX=-1;
+				mouseY=-1;
+				
+				repaint();
+				
+			}
+			
 		});
 
 	}
@@ -348,6 +529,119 @@ public class JImagePanel extends JPanel {
 
 	}
 
+	/**
+	 * Draws the visible tiles of the image scaled, using the shared tile
+	 * cache. Tiles are in device pixels, so they are drawn without the OS
+	 * scaling.
+	 * 
+	 * Tiles not cached are rendered on the shared scheduler, and repainted
+	 * once rendered. Meanwhile their part is drawn from the pyramid level
+	 * smaller than the one they are rendered from, with fast scaling, so
+	 * painting never waits (i.e. while the panel is being resized).
+	 * @param g2d The graphics to draw on.
+	 * @param pyramid The pyramid of the image.
+	 * @param x Left position of the image, in panel coordinates.
+	 * @param y Top position of the image, in panel coordinates.
+	 * @param scale The image scale, in device pixels.
+	 */
+	private void drawTiles(Graphics2D g2d, ImagePyramid pyramid, int x, int y, double scale) {
+		
+		BufferedImage source = pyramid.getSource();
+		
+		int scaledWidth = (int) Math.ceil(source.getWidth() * scale);
+		int scaledHeight = (int) Math.ceil(source.getHeight() * scale);
+		
+		// Visible part of the scaled image, in device pixels
+		Rectangle visible = new Rectangle(0, 0, scaledWidth, scaledHeight);
+		Rectangle clip = g2d.getClipBounds();
+		
+		if (clip != null)
+			visible = visible.intersection(new Rectangle(
+					(int) Math.floor((clip.x - x) * scaling), (int) Math.floor((clip.y - y) * scaling),
+					(int) Math.ceil(clip.width * scaling) + 1, (int) Math.ceil(clip.height * scaling) + 1));
+		
+		if (visible.isEmpty())
+			return;
+		
+		AffineTransform previous = g2d.getTransform();
+		
+		g2d.translate(x, y);
+		g2d.scale(1d / scaling, 1d / scaling);
+		
+		int size = TileCache.TILE_SIZE;
+		
+		tileScale = scale;
+		
+		// Smaller level drawn until the tiles are rendered
+		BufferedImage fallback = null;
+		AffineTransform fallbackTransform = null;
+		
+		for (int tileY = visible.y / size; tileY <= (visible.y + visible.height - 1) / size; tileY++)
+			for (int tileX = visible.x / size; tileX <= (visible.x + visible.width - 1) / size; tileX++) {
+				
+				BufferedImage tile = TileCache.shared().getCachedTile(pyramid, scale, tileX, tileY);
+				
+				if (tile != null) {
+					
+					g2d.drawImage(tile, tileX * size, tileY * size, null);
+					continue;
+					
+				}
+				
+				TileCache.shared().renderLater(pyramid, scale, tileX, tileY, SCHEDULER,
+						() -> this.pyramid == pyramid && tileScale == scale, this::repaint);
+				
+				if (fallback == null) {
+					
+					fallback = pyramid.getLevel(Math.min(pyramid.getLevelCount() - 1, pyramid.levelFor(scale) + 1));
+					fallbackTransform = AffineTransform.getScaleInstance(scale * source.getWidth() / fallback.getWidth(),
+							scale * source.getHeight() / fallback.getHeight());
+					
+				}
+				
+				Shape clipShape = g2d.getClip();
+				
+				g2d.clipRect(tileX * size, tileY * size, size, size);
+				g2d.drawImage(fallback, fallbackTransform, null);
+				
+				g2d.setClip(clipShape);
+				
+			}
+		
+		g2d.setTransform(previous);
+		
+	}
+
+	/**
+	 * Gets the visor image of the magnifying glass, which is compatible with
+	 * the image, so pixels are copied in bulk without conversion. It is only
+	 * created again if the image or the visor size changes.
+	 * @param visorWidth The visor width, in device pixels.
+	 * @param visorHeight The visor height, in device pixels.
+	 * @return The visor image.
+	 */
+	private BufferedImage getVisorImg(int visorWidth, int visorHeight) {
+		
+		if(visorImg == null || visorSource != originalImage
+				|| visorImg.getWidth() != visorWidth || visorImg.getHeight() != visorHeight) {
+			
+			ColorModel cm = originalImage.getColorModel();
+			
+			visorSource = originalImage;
+			visorImg = new BufferedImage(cm, cm.createCompatibleWritableRaster(visorWidth, visorHeight),
+					cm.isAlphaPremultiplied(), null);
+			
+			// Big enough for the largest copy
+			visorPixels = originalImage.getRaster().getDataElements(0, 0,
+					Math.min(visorWidth, originalImage.getWidth()),
+					Math.min(visorHeight, originalImage.getHeight()), null);
+			
+		}
+		
+		return visorImg;
+		
+	}
+
 	@Override
 	public void paintComponent(Graphics g) {
 
@@ -366,16 +660,24 @@ public class JImagePanel extends JPanel {
 
 		// Image related rendering
 		
-		if (originalImage != null && scaledImage != null) {
-				
-			int width = Math.min(getWidth(), getHeight() * originalImage.getWidth() / originalImage.getHeight());
+		if (originalImage != null) {
+			
+			// Only the part within the panel gets drawn, however zoomed
+			
+			Rectangle bounds = getImageBounds();
+			
+			int width = bounds.width;
+			int height = bounds.height;
 	
-			int height = Math.min(getHeight(), getWidth() * originalImage.getHeight() / originalImage.getWidth());
+			int x = bounds.x;
+			int y = bounds.y;
 	
-			int x = (getWidth() - width) / 2;
-			int y = (getHeight() - height) / 2;
-	
-			g2d.drawImage(scaledImage, x, y, width, height, null);
+			ImagePyramid currentPyramid = pyramid;
+			
+			if (currentPyramid != null && currentPyramid.getSource() == originalImage)
+				drawTiles(g2d, currentPyramid, x, y, width * scaling / originalImage.getWidth());
+			else
+				g2d.drawImage(originalImage, x, y, width, height, null); // Fast, rough scaling until built
 
 			// Mouse zoom function
 			
@@ -399,39 +701,49 @@ public class JImagePanel extends JPanel {
 					int visorWidth = (int) (200*scaling);
 					int visorHeight = (int) (200*scaling);
 					
-					BufferedImage visorImg = new BufferedImage(visorWidth,visorHeight,BufferedImage.TYPE_INT_RGB);
+					// Part of the visor over the original image
+					
+					int visorx = posx-visorWidth/2;
+					int visory = posy-visorHeight/2;
+					
+					int originalx = Math.max(0, visorx);
+					int originaly = Math.max(0, visory);
+					
+					int copyWidth = Math.min(originalImage.getWidth(), visorx+visorWidth) - originalx;
+					int copyHeight = Math.min(originalImage.getHeight(), visory+visorHeight) - originaly;
+					
+					// Bulk copy of those pixels to the reused visor
 					
-					// Iterate visor pixels and corresponding it the original image pixel
+					BufferedImage visor = getVisorImg(visorWidth, visorHeight);
 					
-					for(int vx=0; vx<visorWidth; vx++) {
-						
-						int originalx = posx-visorWidth/2+vx;
-		
-						for(int vy=0; vy<visorHeight; vy++) {
-							
-							int originaly = posy-visorHeight/2+vy;
-		
-							visorImg.setRGB(vx, vy,
-									originalx<0 || originalx>=originalImage.getWidth()
-									|| originaly<0 || originaly>=originalImage.getHeight() ?
-									Color.white.getRGB() :
-									originalImage.getRGB(originalx, originaly));
-							
-						}
-						
-					}
+					visorPixels = originalImage.getRaster().getDataElements(originalx, originaly, copyWidth, copyHeight, visorPixels);
+					visor.getRaster().setDataElements(0, 0, copyWidth, copyHeight, visorPixels);
 					
 					// Change scaling to keep proportions
+					int visorLeft = mouseX - (int) (visorWidth/scaling)/2;
+					int visorTop = mouseY - (int) (visorHeight/scaling)/2;
+					
 					visorWidth /= scaling;
 					visorHeight /= scaling;
 					
-					// Draw visor
-					g2d.drawImage(visorImg, mouseX-visorWidth/2, mouseY-visorHeight/2, visorWidth, visorHeight, null);
+					// Draw visor: white where there is no image
+					g2d.setColor(Color.white);
+					g2d.fillRect(visorLeft, visorTop, visorWidth, visorHeight);
+					
+					// The copied pixels, in device pixels (1:1)
+					g2d.translate(visorLeft, visorTop);
+					g2d.scale(1d/scaling, 1d/scaling);
+					
+					g2d.drawImage(visor, originalx-visorx, originaly-visory,
+							originalx-visorx+copyWidth, originaly-visory+copyHeight,
+							0, 0, copyWidth, copyHeight, null);
+					
+					g2d.setTransform(t);
 					
 					// Draw visor border
 					g2d.setColor(Color.white);
-					g2d.setStroke(new BasicStroke(1));
-					g2d.drawRect(mouseX-visorWidth/2, mouseY-visorHeight/2, visorWidth, visorHeight);
+					g2d.setStroke(VISOR_STROKE);
+					g2d.drawRect(visorLeft, visorTop, visorWidth, visorHeight);
 					
 				}
 				
@@ -441,7 +753,7 @@ public class JImagePanel extends JPanel {
 		
 		// Loading animation if applies
 		
-		if(loadingThread!=null) {
+		if(loading) {
 			
 			int width = 200;
 			int height = 200;
@@ -0,0 +1,519 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Estimates where a fragment is on the working image from matching corner
+ * points, before the merger search, so that the merger only has to refine
+ * the position around it.
+ *
+ * Both the right part of the working image and the left part of the
+ * fragment (where they overlap) are reduced to gray at about
+ * {@link #TARGET_HEIGHT} rows. Corners are detected on them with the Harris
+ * response, at most one per cell so that they spread over the strip, and
+ * described by the normalized gray patch around them, in fixed point.
+ * Patches are not rotated: scans are never rotated more than a few degrees,
+ * and a patch still matches at such angles. Every fragment corner is matched to the
+ * working corner with the most correlated patch, if clearly better than the
+ * second one, and the rotation and translation agreed by the most matches
+ * are found with RANSAC and refined by least squares.
+ *
+ * Matching scores every fragment corner against every working corner in its
+ * band, so it is the inner loop of the estimate: the working patches are
+ * packed one after the other into a single array, and every correlation is
+ * an int dot product over it, which the JIT can vectorize (unlike a float
+ * sum, whose order it must keep).
+ *
+ * The estimate is deterministic, and null whenever too few matches agree,
+ * so that the full search is run then.
+ *
+ * @author David
+ *
+ */
+public class KeypointAligner {
+
+	/**
+	 * Rows of the reduced images the corners are detected on.
+	 */
+	public static final int TARGET_HEIGHT = 800;
+
+	/**
+	 * Part of the fragment width taken as overlap strip, on both images.
+	 */
+	public static final double STRIP = 0.75;
+
+	/**
+	 * Fewest matches agreeing for the estimate to be given.
+	 */
+	public static final int MIN_INLIERS = 8;
+
+	/**
+	 * Largest rotation considered, in degrees.
+	 */
+	public static final double MAX_ANGLE = 5;
+
+	/**
+	 * Largest vertical shift considered, relative to the fragment height.
+	 */
+	public static final double MAX_SHIFT = 0.1;
+
+	/**
+	 * Default margin left before the estimated position for the merger to
+	 * refine it, relative to the fragment width.
+	 */
+	public static final double DEFAULT_MARGIN = 0.02;
+
+	// Side of the cells keeping one corner each, in reduced pixels
+	private static final int CELL = 12;
+	private static final int MAX_CORNERS = 2000;
+
+	// Patch radius and sampling step, in reduced pixels: corners of text look
+	// all alike, so the patch takes in the words around
+	private static final int RADIUS = 12, STEP = 2;
+
+	private static final double MIN_CORRELATION = 0.8, RATIO = 0.95;
+
+	// Patch values in 1/UNIT units: as patches have unit norm, a correlation
+	// is at most UNIT * UNIT in absolute value, so it fits an int
+	private static final int UNIT = 1 << 14;
+	private static final int ITERATIONS = 1000;
+
+	// Inlier distance, in reduced pixels
+	private static final double TOLERANCE = 1.5;
+
+	private KeypointAligner() {
+	}
+
+	/**
+	 * A corner, in full scale image coordinates, with its patch.
+	 */
+	private static class Corner {
+
+		final double x, y;
+		final float response;
+		final short[] patch;
+
+		Corner(double x, double y, float response, short[] patch) {
+			this.x = x;
+			this.y = y;
+			this.response = response;
+			this.patch = patch;
+		}
+
+	}
+
+	/**
+	 * Estimates the placement of a fragment on the working image.
+	 *
+	 * @param working  The working image, with its right part overlapping the
+	 *                 fragment.
+	 * @param fragment The fragment to place.
+	 * @return The estimated placement, in working image coordinates (with no
+	 *         deviation index), or null if it could not be estimated.
+	 */
+	public static Placement align(BufferedImage working, BufferedImage fragment) {
+
+		int scale = Math.max(1, (int) Math.round(Math.max(working.getHeight(), fragment.getHeight())
+				/ (double) TARGET_HEIGHT));
+
+		int strip = Math.min((int) Math.round(STRIP * fragment.getWidth()), working.getWidth());
+
+		// Multiple of the scale, so reduced pixels do not straddle the strip
+		strip -= strip % scale;
+
+		if (strip / scale < 4 * RADIUS)
+			return null;
+
+		int workingX = working.getWidth() - strip;
+
+		List<Corner> workingCorners = corners(working, workingX, strip, scale);
+		List<Corner> fragmentCorners = corners(fragment, 0, strip, scale);
+
+		// Corners may only match that far up or down
+		double band = MAX_SHIFT * fragment.getHeight() + strip * Math.sin(Math.toRadians(MAX_ANGLE));
+
+		List<Corner[]> matches = match(fragmentCorners, workingCorners, band);
+
+		if (matches.size() < MIN_INLIERS)
+			return null;
+
+		return estimate(matches, TOLERANCE * scale);
+
+	}
+
+	/**
+	 * Gets the first working image column the merger shall search from, so
+	 * that the fragment, as estimated, is a margin away from it.
+	 *
+	 * @param estimate The estimated placement.
+	 * @param height   The fragment height.
+	 * @param margin   The margin, in pixels.
+	 * @return The column, never negative.
+	 */
+	public static int cropStart(Placement estimate, int height, int margin) {
+
+		// The bottom-left corner is further left when turned clockwise
+		double left = Math.min(estimate.getX(),
+				estimate.getX() - height * Math.sin(Math.toRadians(estimate.getAngle())));
+
+		return Math.max(0, (int) Math.floor(left) - margin);
+
+	}
+
+	/**
+	 * Detects the corners of a strip of an image.
+	 */
+	private static List<Corner> corners(BufferedImage img, int x0, int width, int scale) {
+
+		int w = width / scale, h = img.getHeight() / scale;
+		float[] gray = Luminance.of(img, x0, 0, width, img.getHeight(), scale).toFloats();
+
+		// Gradient products
+		float[] xx = new float[w * h], yy = new float[w * h], xy = new float[w * h];
+
+		for (int y = 1; y < h - 1; y++) {
+
+			for (int x = 1; x < w - 1; x++) {
+
+				int p = y * w + x;
+				float gx = gray[p + 1] - gray[p - 1];
+				float gy = gray[p + w] - gray[p - w];
+
+				xx[p] = gx * gx;
+				yy[p] = gy * gy;
+				xy[p] = gx * gy;
+
+			}
+
+		}
+
+		boxSum(xx, w, h);
+		boxSum(yy, w, h);
+		boxSum(xy, w, h);
+
+		// The strongest corner of every cell
+		List<Corner> corners = new ArrayList<>();
+		float strongest = 0;
+
+		for (int cy = RADIUS + 1; cy < h - RADIUS - 1; cy += CELL) {
+
+			for (int cx = RADIUS + 1; cx < w - RADIUS - 1; cx += CELL) {
+
+				float best = 0;
+				int bestX = -1, bestY = -1;
+
+				for (int y = cy; y < Math.min(cy + CELL, h - RADIUS - 1); y++) {
+
+					for (int x = cx; x < Math.min(cx + CELL, w - RADIUS - 1); x++) {
+
+						int p = y * w + x;
+						float trace = xx[p] + yy[p];
+						float response = xx[p] * yy[p] - xy[p] * xy[p] - 0.04f * trace * trace;
+
+						if (response > best) {
+							best = response;
+							bestX = x;
+							bestY = y;
+						}
+
+					}
+
+				}
+
+				if (bestX < 0)
+					continue;
+
+				short[] patch = patch(gray, w, bestX, bestY);
+
+				if (patch == null)
+					continue;
+
+				strongest = Math.max(strongest, best);
+
+				corners.add(new Corner(x0 + (bestX + 0.5) * scale - 0.5, (bestY + 0.5) * scale - 0.5, best, patch));
+
+			}
+
+		}
+
+		// Weak corners are mostly noise
+		float threshold = strongest * 0.01f;
+		corners.removeIf(c -> c.response < threshold);
+
+		if (corners.size() > MAX_CORNERS) {
+			corners.sort(Comparator.comparingDouble((Corner c) -> c.response).reversed());
+			corners = new ArrayList<>(corners.subList(0, MAX_CORNERS));
+		}
+
+		return corners;
+
+	}
+
+	/**
+	 * Replaces every value by the sum of the 5 by 5 square around it.
+	 */
+	private static void boxSum(float[] values, int w, int h) {
+
+		float[] rows = new float[values.length];
+
+		for (int y = 0; y < h; y++) {
+
+			for (int x = 2; x < w - 2; x++) {
+
+				int p = y * w + x;
+				rows[p] = values[p - 2] + values[p - 1] + values[p] + values[p + 1] + values[p + 2];
+
+			}
+
+		}
+
+		for (int y = 2; y < h - 2; y++) {
+
+			for (int x = 0; x < w; x++) {
+
+				int p = y * w + x;
+				values[p] = rows[p - 2 * w] + rows[p - w] + rows[p] + rows[p + w] + rows[p + 2 * w];
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Gets the patch around a point, with zero mean and unit norm, in 1/UNIT
+	 * units.
+	 * @return The patch, or null if flat.
+	 */
+	private static short[] patch(float[] gray, int w, int cx, int cy) {
+
+		int side = 2 * RADIUS / STEP + 1;
+		float[] patch = new float[side * side];
+		float mean = 0;
+
+		for (int y = -RADIUS, i = 0; y <= RADIUS; y += STEP)
+			for (int x = -RADIUS; x <= RADIUS; x += STEP, i++)
+				mean += patch[i] = gray[(cy + y) * w + cx + x];
+
+		mean /= patch.length;
+
+		float norm = 0;
+
+		for (int i = 0; i < patch.length; i++) {
+			patch[i] -= mean;
+			norm += patch[i] * patch[i];
+		}
+
+		// Less contrast than the scanner noise
+		if (norm < patch.length * 4)
+			return null;
+
+		float unit = UNIT / (float) Math.sqrt(norm);
+		short[] fixed = new short[patch.length];
+
+		for (int i = 0; i < patch.length; i++)
+			fixed[i] = (short) Math.round(patch[i] * unit);
+
+		return fixed;
+
+	}
+
+	/**
+	 * Matches every fragment corner to the working corner with the most
+	 * correlated patch within the vertical band, if clearly the best one.
+	 * @return The matches, as fragment and working corners.
+	 */
+	private static List<Corner[]> match(List<Corner> fragmentCorners, List<Corner> workingCorners, double band) {
+
+		List<Corner[]> matches = new ArrayList<>();
+
+		// By row, to only go through the band
+		List<Corner> candidates = new ArrayList<>(workingCorners);
+		candidates.sort(Comparator.comparingDouble(c -> c.y));
+
+		double[] rows = candidates.stream().mapToDouble(c -> c.y).toArray();
+
+		if (candidates.isEmpty())
+			return matches;
+
+		// The patches of the candidates, one after the other in the same order
+		int length = candidates.get(0).patch.length;
+		short[] patches = new short[candidates.size() * length];
+
+		for (int c = 0; c < candidates.size(); c++)
+			System.arraycopy(candidates.get(c).patch, 0, patches, c * length, length);
+
+		double minCorrelation = MIN_CORRELATION * UNIT * UNIT;
+
+		for (Corner f : fragmentCorners) {
+
+			int best = Integer.MIN_VALUE, second = Integer.MIN_VALUE;
+			Corner match = null;
+
+			int first = Arrays.binarySearch(rows, f.y - band);
+
+			for (int c = first < 0 ? -first - 1 : first; c < rows.length && rows[c] <= f.y + band; c++) {
+
+				int correlation = dot(f.patch, patches, c * length);
+
+				if (correlation > best) {
+					second = best;
+					best = correlation;
+					match = candidates.get(c);
+				} else if (correlation > second) {
+					second = correlation;
+				}
+
+			}
+
+			if (best >= minCorrelation && second < RATIO * best)
+				matches.add(new Corner[] { f, match });
+
+		}
+
+		return matches;
+
+	}
+
+	/**
+	 * Gets the dot product of a patch and the one packed from offset on.
+	 */
+	private static int dot(short[] patch, short[] patches, int offset) {
+
+		int sum = 0;
+
+		for (int i = 0; i < patch.length; i++)
+			sum += patch[i] * patches[offset + i];
+
+		return sum;
+
+	}
+
+	/**
+	 * Finds the rotation and translation most matches agree with.
+	 * @return The placement, or null if too few matches agree.
+	 */
+	private static Placement estimate(List<Corner[]> matches, double tolerance) {
+
+		// The same matches always give the same estimate
+		Random random = new Random(matches.size());
+
+		double maxSin = Math.sin(Math.toRadians(MAX_ANGLE));
+		List<Corner[]> bestInliers = Collections.emptyList();
+
+		for (int i = 0; i < ITERATIONS; i++) {
+
+			Corner[] a = matches.get(random.nextInt(matches.size()));
+			Corner[] b = matches.get(random.nextInt(matches.size()));
+
+			double fdx = b[0].x - a[0].x, fdy = b[0].y - a[0].y;
+			double wdx = b[1].x - a[1].x, wdy = b[1].y - a[1].y;
+
+			double length = Math.hypot(fdx, fdy);
+
+			// Too close to tell the angle, or not a rigid motion
+			if (length < 20 * tolerance || Math.abs(Math.hypot(wdx, wdy) - length) > 2 * tolerance)
+				continue;
+
+			double angle = Math.atan2(fdx * wdy - fdy * wdx, fdx * wdx + fdy * wdy);
+
+			if (Math.abs(Math.sin(angle)) > maxSin)
+				continue;
+
+			double cos = Math.cos(angle), sin = Math.sin(angle);
+			double tx = a[1].x - (cos * a[0].x - sin * a[0].y);
+			double ty = a[1].y - (sin * a[0].x + cos * a[0].y);
+
+			List<Corner[]> inliers = inliers(matches, cos, sin, tx, ty, tolerance);
+
+			if (inliers.size() > bestInliers.size())
+				bestInliers = inliers;
+
+		}
+
+		if (bestInliers.size() < MIN_INLIERS)
+			return null;
+
+		// Least squares rotation and translation of the inliers
+		double fcx = 0, fcy = 0, wcx = 0, wcy = 0;
+
+		for (Corner[] m : bestInliers) {
+			fcx += m[0].x;
+			fcy += m[0].y;
+			wcx += m[1].x;
+			wcy += m[1].y;
+		}
+
+		int n = bestInliers.size();
+		fcx /= n;
+		fcy /= n;
+		wcx /= n;
+		wcy /= n;
+
+		double cross = 0, dot = 0;
+
+		for (Corner[] m : bestInliers) {
+
+			double fx = m[0].x - fcx, fy = m[0].y - fcy;
+			double wx = m[1].x - wcx, wy = m[1].y - wcy;
+
+			cross += fx * wy - fy * wx;
+			dot += fx * wx + fy * wy;
+
+		}
+
+		double angle = Math.atan2(cross, dot);
+		double cos = Math.cos(angle), sin = Math.sin(angle);
+
+		// Where the fragment top-left corner goes
+		double x = wcx - (cos * fcx - sin * fcy);
+		double y = wcy - (sin * fcx + cos * fcy);
+
+		return new Placement((int) Math.round(x), (int) Math.round(y), Math.toDegrees(angle), Double.NaN);
+
+	}
+
+	private static List<Corner[]> inliers(List<Corner[]> matches, double cos, double sin, double tx, double ty,
+			double tolerance) {
+
+		List<Corner[]> inliers = new ArrayList<>();
+
+		for (Corner[] m : matches) {
+
+			double x = cos * m[0].x - sin * m[0].y + tx;
+			double y = sin * m[0].x + cos * m[0].y + ty;
+
+			if (Math.hypot(x - m[1].x, y - m[1].y) <= tolerance)
+				inliers.add(m);
+
+		}
+
+		return inliers;
+
+	}
+
+}
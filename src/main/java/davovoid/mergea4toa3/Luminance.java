@@ -0,0 +1,280 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * A part of an image as packed luminance, one byte per pixel, row by row.
+ * The registration engines read every image region they score once into
+ * these, at full scale or reduced while reading, so that comparing
+ * placements only runs over primitive arrays, with no color unpacking nor
+ * calls per pixel.
+ *
+ * @author David
+ *
+ */
+final class Luminance {
+
+	// Pixels whose squared sums fit an int accumulator (255 * 255 each)
+	private static final int BLOCK = 32768;
+
+	final byte[] values;
+	final int width, height;
+
+	Luminance(byte[] values, int width, int height) {
+		this.values = values;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Reads a part of an image as luminance.
+	 *
+	 * @param img    The image.
+	 * @param x0     The first column of the part.
+	 * @param y0     The first row of the part.
+	 * @param width  The width of the part.
+	 * @param height The height of the part.
+	 * @return The luminance of the part.
+	 */
+	static Luminance of(BufferedImage img, int x0, int y0, int width, int height) {
+
+		byte[] values = new byte[width * height];
+		int[] rgb = new int[width];
+
+		for (int y = 0; y < height; y++)
+			readRow(img, x0, y0 + y, width, values, y * width, rgb);
+
+		return new Luminance(values, width, height);
+
+	}
+
+	/**
+	 * Reads a part of an image as luminance, reduced while reading it row by
+	 * row, so that the part is never held at full scale. The same as reading
+	 * it and then reducing it (see {@link #reduce(int)}).
+	 *
+	 * @param img    The image.
+	 * @param x0     The first column of the part.
+	 * @param y0     The first row of the part.
+	 * @param width  The width of the part.
+	 * @param height The height of the part.
+	 * @param scale  The scale reduction.
+	 * @return The reduced luminance of the part.
+	 */
+	static Luminance of(BufferedImage img, int x0, int y0, int width, int height, int scale) {
+
+		if (scale == 1)
+			return of(img, x0, y0, width, height);
+
+		int w = width / scale, h = height / scale;
+		byte[] reduced = new byte[w * h];
+		byte[] row = new byte[w * scale];
+		int[] rgb = new int[w * scale];
+		int[] sums = new int[w];
+
+		int area = scale * scale;
+
+		for (int y = 0; y < h; y++) {
+
+			Arrays.fill(sums, 0);
+
+			for (int dy = 0; dy < scale; dy++) {
+
+				readRow(img, x0, y0 + y * scale + dy, row.length, row, 0, rgb);
+
+				for (int x = 0; x < w; x++)
+					for (int dx = 0; dx < scale; dx++)
+						sums[x] += row[x * scale + dx] & 0xff;
+
+			}
+
+			for (int x = 0; x < w; x++)
+				reduced[y * w + x] = (byte) ((sums[x] + area / 2) / area);
+
+		}
+
+		return new Luminance(reduced, w, h);
+
+	}
+
+	/**
+	 * Reads the luminance of width pixels of an image row into values, from
+	 * offset on.
+	 * @param rgb A buffer of at least width pixels.
+	 */
+	private static void readRow(BufferedImage img, int x0, int y, int width, byte[] values, int offset, int[] rgb) {
+
+		if (img.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+
+			// Already luminance, whatever the buffer
+			img.getRaster().getSamples(x0, y, width, 1, 0, rgb);
+
+			for (int x = 0; x < width; x++)
+				values[offset + x] = (byte) rgb[x];
+
+			return;
+
+		}
+
+		img.getRGB(x0, y, width, 1, rgb, 0, width);
+
+		// 0.299, 0.587 and 0.114 in 1/256 units
+		for (int x = 0; x < width; x++) {
+			int pixel = rgb[x];
+			values[offset + x] = (byte) ((77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff)
+					+ 29 * (pixel & 0xff) + 128) >> 8);
+		}
+
+	}
+
+	/**
+	 * Reduces the luminance, averaging every scale by scale square. The
+	 * last columns and rows are left out if the size is not a multiple of
+	 * the scale.
+	 *
+	 * @param scale The scale reduction.
+	 * @return The reduced luminance, or this one for scale 1.
+	 */
+	Luminance reduce(int scale) {
+
+		if (scale == 1)
+			return this;
+
+		int w = width / scale, h = height / scale;
+		byte[] reduced = new byte[w * h];
+		int[] sums = new int[w];
+
+		int area = scale * scale;
+
+		for (int y = 0; y < h; y++) {
+
+			Arrays.fill(sums, 0);
+
+			for (int dy = 0; dy < scale; dy++) {
+
+				int base = (y * scale + dy) * width;
+
+				for (int x = 0; x < w; x++)
+					for (int dx = 0; dx < scale; dx++)
+						sums[x] += values[base + x * scale + dx] & 0xff;
+
+			}
+
+			for (int x = 0; x < w; x++)
+				reduced[y * w + x] = (byte) ((sums[x] + area / 2) / area);
+
+		}
+
+		return new Luminance(reduced, w, h);
+
+	}
+
+	/**
+	 * Copies a part of the luminance.
+	 *
+	 * @return The w by h luminance at (x0, y0).
+	 */
+	Luminance crop(int x0, int y0, int w, int h) {
+
+		byte[] values = new byte[w * h];
+
+		for (int y = 0; y < h; y++)
+			System.arraycopy(this.values, (y0 + y) * width + x0, values, y * w, w);
+
+		return new Luminance(values, w, h);
+
+	}
+
+	/**
+	 * Gets the luminance values as floats, from 0 to 255.
+	 */
+	float[] toFloats() {
+
+		float[] floats = new float[values.length];
+
+		for (int p = 0; p < values.length; p++)
+			floats[p] = values[p] & 0xff;
+
+		return floats;
+
+	}
+
+	/**
+	 * Gets the luminance at (u, v), interpolating the nearest pixels. Both
+	 * must be within the image, which may be a single column or row.
+	 */
+	double sample(double u, double v) {
+
+		// Nothing to interpolate along a single pixel side
+		int right = width > 1 ? 1 : 0, below = height > 1 ? 1 : 0;
+
+		int iu = Math.min((int) u, width - 1 - right), iv = Math.min((int) v, height - 1 - below);
+		double fu = u - iu, fv = v - iv;
+		int p = iv * width + iu, down = below * width;
+
+		return ((values[p] & 0xff) * (1 - fu) + (values[p + right] & 0xff) * fu) * (1 - fv)
+				+ ((values[p + down] & 0xff) * (1 - fu) + (values[p + down + right] & 0xff) * fu) * fv;
+
+	}
+
+	/**
+	 * Adds up, over the pixels where the mask is 1 (and not where it is 0),
+	 * the sums of both luminances, of their squares and of their product.
+	 *
+	 * @param a    The first luminance values.
+	 * @param b    The second luminance values, as many.
+	 * @param mask The mask, as many.
+	 * @param sums The sums to add to: count, a, b, a a, b b and a b.
+	 */
+	static void accumulate(byte[] a, byte[] b, byte[] mask, long[] sums) {
+
+		for (int start = 0; start < a.length; start += BLOCK) {
+
+			int end = Math.min(a.length, start + BLOCK);
+			int n = 0, sa = 0, sb = 0, saa = 0, sbb = 0, sab = 0;
+
+			for (int p = start; p < end; p++) {
+
+				int m = mask[p];
+				int x = (a[p] & 0xff) * m, y = (b[p] & 0xff) * m;
+
+				n += m;
+				sa += x;
+				sb += y;
+				saa += x * x;
+				sbb += y * y;
+				sab += x * y;
+
+			}
+
+			sums[0] += n;
+			sums[1] += sa;
+			sums[2] += sb;
+			sums[3] += saa;
+			sums[4] += sbb;
+			sums[5] += sab;
+
+		}
+
+	}
+
+}
@@ -39,6 +39,15 @@ public class MainClass {
 	 */
 	public static void main(String[] args) {
 		
+		// Any argument means headless batch mode, no window is created
+		
+		if(args.length>0) {
+			
+			System.setProperty("java.awt.headless", "true");
+			System.exit(BatchMerger.execute(args));
+			
+		}
+		
         /*System.setProperty("sun.java2d.uiScale", "1.0");
         System.setProperty("glass.win.uiScale", "100%");
         System.setProperty("prism.allowhidpi", "false");*/
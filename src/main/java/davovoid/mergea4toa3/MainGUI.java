@@ -29,6 +29,10 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
@@ -44,8 +48,8 @@ import com.jgoodies.forms.layout.FormLayout;
 import com.jgoodies.forms.layout.ColumnSpec;
 import com.jgoodies.forms.layout.RowSpec;
 
-import davovoid.libmergea4toa3.A3Merger;
 import davovoid.libmergea4toa3.A3MergerStudyEvent;
+import davovoid.mergea4toa3.MemoryAdmission.Footprint;
 
 import com.jgoodies.forms.layout.FormSpecs;
 import javax.swing.JLabel;
@@ -85,14 +89,18 @@ public class MainGUI extends JFrame {
 	private JImagePanel imgMerged;
 	
 	BufferedImage result = null;
-	Thread mergingThread = null;
+	
+	// Runs the merges, one at a time, once their memory is admitted
+	private final MergeScheduler mergeScheduler = new MergeScheduler(1, MemoryAdmission.forHeap());
+	
+	private CancellationToken mergeCancellation = null;
+	private List<CompletableFuture<BufferedImage>> mergeLoading = null;
 	private ImageChooserPanel centerImagePanel;
 	private ImageChooserPanel rightImagePanel;
 	private JLabel lblNewLabel_4;
 	private JPanel cardPanel;
 	private JPanel panel_2;
 	
-	private int numberOfMergedImages = 0;
 	private JPanel panel_3;
 	private JButton btnGoBack;
 	private JLabel lblProcessing;
@@ -242,11 +250,21 @@ public class MainGUI extends JFrame {
 		btnMergeImages.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
 
-				// Check that all images had been selected
+				// Check that all images had been selected and loaded
 				
-				if(leftImagePanel.getImg()==null
-						|| centerImagePanel.getImg()==null
-						|| rightImagePanel.getImg()==null) {
+				if(leftImagePanel.isLoading()
+						|| centerImagePanel.isLoading()
+						|| rightImagePanel.isLoading()) {
+					
+					JOptionPane.showMessageDialog(null, "Please wait until all images are loaded.");
+					
+					return;
+					
+				}
+				
+				if(leftImagePanel.getFile()==null
+						|| centerImagePanel.getFile()==null
+						|| rightImagePanel.getFile()==null) {
 					
 					JOptionPane.showMessageDialog(null, "Please select all required images on the left.");
 					
@@ -254,158 +272,135 @@ public class MainGUI extends JFrame {
 					
 				}
 				
-				// Loads the images
+				// Check that the merge fits in memory, as running out of it
+				// partway would leave the merge hanging
 				
-				BufferedImage imgLeft = leftImagePanel.getImg();
-				BufferedImage imgCenter = centerImagePanel.getImg();
-				BufferedImage imgRight = rightImagePanel.getImg();
+				if(!confirmMemory(leftImagePanel.getFootprint(),
+						centerImagePanel.getFootprint(),
+						rightImagePanel.getFootprint())) return;
 				
-				// Sets the displayed image
-				imgMerged.setImage(imgLeft);
+				// Sets the displayed image (the preview, until loaded)
+				imgMerged.setImage(leftImagePanel.getImg());
 				imgMerged.updateUI();
 				
+				lblStatus.setForeground(Color.black);
+				lblStatus.setText("Loading full resolution images...");
+				
+				// Only the previews are loaded, so the images are decoded now,
+				// in parallel
+				
+				CompletableFuture<BufferedImage> futureLeft = leftImagePanel.loadFullImage();
+				CompletableFuture<BufferedImage> futureCenter = centerImagePanel.loadFullImage();
+				CompletableFuture<BufferedImage> futureRight = rightImagePanel.loadFullImage();
+				
+				mergeLoading = Arrays.asList(futureLeft, futureCenter, futureRight);
+				
 				// Go to the prewiew and working panel
 				((CardLayout) cardPanel.getLayout()).show(cardPanel, "previewPanel");
-				numberOfMergedImages = 0;
 				
-				// Define thread, then started
+				// Token stopping this merge if going back
+				
+				CancellationToken cancellation = new CancellationToken();
+				mergeCancellation = cancellation;
 				
-				mergingThread = new Thread() {
+				// Shows the progress at a fixed rate, whatever the number of
+				// events sent by the merger
+				
+				ProgressDispatcher progressDispatcher = new ProgressDispatcher(snapshot -> {
+					
+					if(!cancellation.isCancelled())
+						showMergeProgress(snapshot);
+					
+				});
+				
+				// The merge is run as any batch job, kept instead of written
+				
+				MergeJob job = new MergeJob(leftImagePanel.getFile(), centerImagePanel.getFile(),
+						rightImagePanel.getFile(), null);
+				
+				// The progress is passed to the dispatcher, which shows it at a
+				// fixed rate using the EventQueue
+				
+				A3MergerStudyEvent mergeProgress = new A3MergerStudyEvent() {
 					
-					public void run(){
+					public void updateStudyProgress(double progress, int firstScaleRed, int scaleRed,
+							int xMinFindRange, int xMaxFindRange, int yMinFindRange, int yMaxFindRange,
+							int currentxpos, int currentypos, double currentangle, int bestxpos, int bestypos,
+							double bestangle, double smallestdeviation) {
+						
+						progressDispatcher.setFragment(job.getMergingFragment());
+						progressDispatcher.updateStudyProgress(progress, firstScaleRed, scaleRed, xMinFindRange,
+								xMaxFindRange, yMinFindRange, yMaxFindRange, currentxpos, currentypos, currentangle,
+								bestxpos, bestypos, bestangle, smallestdeviation);
 						
-						// The A3 Merger
+					}
+					
+				};
+				
+				// Merged once its memory is admitted and the images decoded
+				
+				mergeScheduler.submit(job,
+						() -> new BufferedImage[] { futureLeft.join(), futureCenter.join(), futureRight.join() },
+						mergeProgress, cancellation).whenComplete((merged, error) -> {
+					
+					progressDispatcher.stop();
+					
+					EventQueue.invokeLater(() -> {
 						
-						A3Merger merger = new A3Merger(imgLeft);
-						merger.setScannerLeftCorrection(true);
+						// Stopped by the user, who is already back to the set-up menu
+						if(cancellation.isCancelled()) return;
 						
-						// Defines what the A3Merger shall do when some progress
-						// is done, and using and EventQueue
-						merger.setMergerStudyEvent(new A3MergerStudyEvent() {
-
-							@Override
-							public void updateStudyProgress(double progress, int firstScaleRed, int scaleRed, int xMinFindRange,
-									int xMaxFindRange, int yMinFindRange, int yMaxFindRange, int currentxpos, int currentypos,
-									double currentangle, int bestxpos, int bestypos, double bestangle,
-									double smallestdeviation) {
-
-								EventQueue.invokeLater(new Runnable() {
-									
-									public void run() {
-										
-										// Calculate progress
-										double progressBarNum = progress * 50d + (double)(50*numberOfMergedImages);
-										
-										// Loading percent for the image component
-										imgMerged.setLoadingPercent(progressBarNum/100d);
-										
-										// Prepare the status text
-										
-										String whatisbeingmerged = numberOfMergedImages==0 ? "center" : "right";
-										
-										// deviation memory
-										
-										processDevResults[numberOfMergedImages] = smallestdeviation;
-										
-										String currentStatus = numberOfMergedImages==0 ? "" : String.format("Finished center, index: %.2f | ", processDevResults[0]);
-										
-										if(scaleRed==1) {
-
-											currentStatus += String.format("(%.1f%%) Merging %s... Final processing, lowest index: %.2f.",
-													progressBarNum, whatisbeingmerged, smallestdeviation);
-											
-										}
-										
-										else if(firstScaleRed==scaleRed) {
-
-											currentStatus += String.format("(%.1f%%) Merging %s... First exploring (scale 1/%d), lowest index: %.2f.",
-													progressBarNum, whatisbeingmerged, scaleRed, smallestdeviation);
-											
-										} else {
-
-											currentStatus += String.format("(%.1f%%) Merging %s... Improving precision (scale 1/%d), lowest index: %.2f.",
-													progressBarNum, whatisbeingmerged, scaleRed, smallestdeviation);
-											
-										}
-										
-										lblStatus.setText(currentStatus);
-										
-										// Green if good (small) deviation
-										lblStatus.setForeground(smallestdeviation<100 ? Color.green.darker() : Color.red.darker());
-										
-										pbStatus.setValue((int) (progressBarNum * 10d));
-										
-									}
-									
-								});
-								
-								
-							}
+						if(error != null) {
 							
-						});
-						
-						// Center to left
-						merger.mergeImageOnRight(imgCenter, true);
-						result = merger.getWorkingImg();
-
-						EventQueue.invokeLater(new Runnable() {
+							// Also cancelled decoding, which has no cause
+							Throwable cause = error instanceof CompletionException ? error.getCause() : error;
 							
-							public void run() {
-
-								numberOfMergedImages = 1;
-								
-								// Sets the displayed image
-								imgMerged.setImage(result);
-								imgMerged.updateUI();
-								
-							}
+							JOptionPane.showMessageDialog(null, "Error: images could not be merged.\n"
+									+ (cause != null && cause.getMessage() != null ? cause.getMessage() : error.toString()));
 							
-						});
-
-						// Right to merged (left+center)
-						merger.mergeImageOnRight(imgRight, true);
+							setUIEnable(true);
+							((CardLayout) cardPanel.getLayout()).show(cardPanel, "optionsPanel");
+							
+							error.printStackTrace();
+							
+							return;
+							
+						}
+						
+						result = merged;
+						processDevResults = job.getDeviations();
 						
-						result = merger.getWorkingImg();
+						// Sets the displayed image
+						imgMerged.setImage(result);
+						imgMerged.updateUI();
+						
+						// Finished
 
-						EventQueue.invokeLater(new Runnable() {
+						lblStatus.setForeground(Color.green.darker());
+						
+						String devs = "";
+						
+						for(double dev : processDevResults) {
 							
-							public void run() {
-
-								// Sets the displayed image
-								imgMerged.setImage(result);
-								imgMerged.updateUI();
-								
-								// Finished
-
-								lblStatus.setForeground(Color.green.darker());
-								
-								String devs = "";
-								
-								for(double dev : processDevResults) {
-									
-									devs += (devs.length()>0 ? " / " : "") + String.format("%.2f (%s)", dev, dev<100 ? "OK" : "Too high");
-									
-									if(dev>100) lblStatus.setForeground(Color.red.darker());
-									
-								}
-								
-								lblStatus.setText("Finished processing merge. Indexes = " + devs);
-								
-								pbStatus.setValue(pbStatus.getMinimum());
-
-								setUIEnable(true);
-								
-							}
+							devs += (devs.length()>0 ? " / " : "") + String.format("%.2f (%s)", dev, dev<100 ? "OK" : "Too high");
 							
-						});
+							if(dev>100) lblStatus.setForeground(Color.red.darker());
+							
+						}
 						
-					}
+						lblStatus.setText("Finished processing merge. Indexes = " + devs);
+						
+						pbStatus.setValue(pbStatus.getMinimum());
+
+						setUIEnable(true);
+						
+					});
 					
-				};
+				});
 
 				setUIEnable(false);
 				
-				mergingThread.start();
+				progressDispatcher.start();
 				
 			}
 		});
@@ -508,6 +503,8 @@ public class MainGUI extends JFrame {
 		imgMerged.setOpaque(true);
 		imgMerged.setBackground(Color.white);
 		imgMerged.setMousefullScale(true);
+		imgMerged.setZoomable(true);
+		imgMerged.setToolTipText("Mouse wheel to zoom, drag to move, double click to fit.");
 		panel_1.add(imgMerged, "2, 4, fill, fill");
 		
 		lblStatus = new JLabel("Ready.");
@@ -525,15 +522,23 @@ public class MainGUI extends JFrame {
 		btnGoBack = new JButton("< Go back");
 		btnGoBack.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				if(mergingThread!=null) {
+				if(mergeCancellation!=null) {
 					
-					try {
-						
-						mergingThread.stop(); // kills merging thread
-						
-					} catch (Exception e1) {
-						e1.printStackTrace();
-					}
+					// Stops the merging thread at its next progress event,
+					// which frees its images
+					mergeCancellation.cancel();
+					mergeCancellation = null;
+					
+				}
+				
+				if(mergeLoading!=null) {
+					
+					// Stops decoding the full resolution images, if not yet
+					// decoded
+					for(CompletableFuture<BufferedImage> loading : mergeLoading)
+						loading.cancel(false);
+					
+					mergeLoading = null;
 					
 				}
 				
@@ -560,7 +565,7 @@ public class MainGUI extends JFrame {
 					
 					try {
 						
-						ImageIO.write(result,
+						StripImageWriter.write(result,
 								FilenameUtils.getExtension(fileChooser.getSelectedFile().getName()),
 								fileChooser.getSelectedFile());
 
@@ -601,6 +606,84 @@ public class MainGUI extends JFrame {
 		
 	}
 
+	/**
+	 * Predicts the memory needed to merge the given images, which are still
+	 * to be loaded at full resolution, and asks the user whether to go on if
+	 * it exceeds the memory available.
+	 * @param footprints The sizes of the images to merge.
+	 * @return True if the merge may start.
+	 */
+	private boolean confirmMemory(Footprint... footprints) {
+		
+		Runtime runtime = Runtime.getRuntime();
+		
+		long neededBytes = MemoryAdmission.estimatePeakBytes(RasterBackend.current().isHeap(), footprints);
+		long availableBytes = MemoryAdmission.forHeap().getBudget() - (runtime.totalMemory() - runtime.freeMemory());
+		
+		if(neededBytes <= availableBytes) return true;
+		
+		return JOptionPane.showConfirmDialog(null,
+				String.format("Merging these images needs about %d MiB, but only %d MiB are available.\n"
+						+ "The program might run out of memory; consider running it with a higher -Xmx value.\n\n"
+						+ "Merge anyway?", neededBytes >> 20, Math.max(0, availableBytes) >> 20),
+				"Not enough memory", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE) == JOptionPane.YES_OPTION;
+		
+	}
+
+	/**
+	 * Shows the merge progress: status text, progress bar and loading
+	 * animation.
+	 * @param snapshot The latest merge state.
+	 */
+	private void showMergeProgress(ProgressDispatcher.Snapshot snapshot) {
+		
+		int fragment = snapshot.getFragment();
+		double smallestdeviation = snapshot.getSmallestDeviation();
+		
+		// Calculate progress
+		double progressBarNum = snapshot.getProgress() * 50d + (double)(50*fragment);
+		
+		// Loading percent for the image component
+		imgMerged.setLoadingPercent(progressBarNum/100d);
+		
+		// Prepare the status text
+		
+		String whatisbeingmerged = fragment==0 ? "center" : "right";
+		
+		// deviation memory
+		
+		processDevResults[fragment] = smallestdeviation;
+		
+		String currentStatus = fragment==0 ? "" : String.format("Finished center, index: %.2f | ", processDevResults[0]);
+		
+		if(snapshot.getScaleRed()==1) {
+
+			currentStatus += String.format("(%.1f%%) Merging %s... Final processing, lowest index: %.2f.",
+					progressBarNum, whatisbeingmerged, smallestdeviation);
+			
+		}
+		
+		else if(snapshot.getFirstScaleRed()==snapshot.getScaleRed()) {
+
+			currentStatus += String.format("(%.1f%%) Merging %s... First exploring (scale 1/%d), lowest index: %.2f.",
+					progressBarNum, whatisbeingmerged, snapshot.getScaleRed(), smallestdeviation);
+			
+		} else {
+
+			currentStatus += String.format("(%.1f%%) Merging %s... Improving precision (scale 1/%d), lowest index: %.2f.",
+					progressBarNum, whatisbeingmerged, snapshot.getScaleRed(), smallestdeviation);
+			
+		}
+		
+		lblStatus.setText(currentStatus);
+		
+		// Green if good (small) deviation
+		lblStatus.setForeground(smallestdeviation<100 ? Color.green.darker() : Color.red.darker());
+		
+		pbStatus.setValue((int) (progressBarNum * 10d));
+		
+	}
+
 	/**
 	 * Sets the frame enable status, and sets buttons/labels text accordingly.
 	 * Used when starting/stopping/finishing image processing/merge.
@@ -0,0 +1,319 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.SampleModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Admission control for merges, so that the jobs running at the same time do
+ * not exceed the heap. The peak memory of every job is predicted from the size
+ * and raster type of its images, and a job only starts once its memory fits
+ * in the budget. A job that would not fit even alone is run alone once the
+ * rest have finished, so it gets the whole heap.
+ *
+ * Jobs are admitted in arrival order, so big jobs are not starved by smaller
+ * ones.
+ *
+ * @author David
+ *
+ */
+public class MemoryAdmission {
+
+	// Part of the maximum heap that merges may use, the rest is left
+	// for the GUI, image decoders and so
+	private static final double HEAP_BUDGET_RATIO = 0.85;
+
+	// The working image created by the merger, assumed as 4 bytes per pixel
+	private static final int WORKING_BYTES_PER_PIXEL = 4;
+
+	// Reduced scale copies used by the merger while searching, relative to
+	// the full scale images
+	private static final double SEARCH_OVERHEAD_RATIO = 0.25;
+
+	private final long budget;
+
+	private long reserved = 0;
+	private final Deque<Object> waiting = new ArrayDeque<>();
+
+	/**
+	 * Creates an admission controller.
+	 * @param budget The bytes that the running jobs may use altogether.
+	 */
+	public MemoryAdmission(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Creates an admission controller using most of the maximum heap.
+	 * @return The admission controller.
+	 */
+	public static MemoryAdmission forHeap() {
+		return new MemoryAdmission((long) (Runtime.getRuntime().maxMemory() * HEAP_BUDGET_RATIO));
+	}
+
+	/**
+	 * Gets the bytes that the running jobs may use altogether.
+	 * @return The budget.
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Waits until the job fits in the budget and reserves its memory. A job
+	 * bigger than the whole budget waits until no other job is running, and
+	 * then runs alone.
+	 *
+	 * @param bytes The predicted peak memory of the job.
+	 * @return True if admitted to run alone because of its size.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public synchronized boolean acquire(long bytes) throws InterruptedException {
+
+		Object turn = new Object();
+		waiting.addLast(turn);
+
+		try {
+
+			while (waiting.peekFirst() != turn || (reserved > 0 && reserved + bytes > budget))
+				wait();
+
+		} finally {
+
+			// Admitted or interrupted, the next job takes the turn
+			waiting.remove(turn);
+			notifyAll();
+
+		}
+
+		reserved += bytes;
+
+		return bytes > budget;
+
+	}
+
+	/**
+	 * Releases the memory reserved by a job.
+	 * @param bytes The bytes reserved when admitted.
+	 */
+	public synchronized void release(long bytes) {
+
+		reserved -= bytes;
+		notifyAll();
+
+	}
+
+	/**
+	 * Predicts the peak memory of merging the given fragments, from left to
+	 * right: the fragments themselves, the working image before and after
+	 * merging the last fragment, and the reduced scale copies used while
+	 * searching.
+	 *
+	 * @param fragments The footprint of every fragment.
+	 * @return The predicted peak memory, in bytes.
+	 */
+	public static long estimatePeakBytes(Footprint... fragments) {
+		return estimatePeakBytes(true, fragments);
+	}
+
+	/**
+	 * Predicts the peak heap memory of merging the given fragments, as
+	 * {@link #estimatePeakBytes(Footprint...)}, but optionally leaving out the
+	 * fragments, if they are kept out of the heap.
+	 *
+	 * @param inputsOnHeap True if the fragments are kept in the heap.
+	 * @param fragments    The footprint of every fragment.
+	 * @return The predicted peak heap memory, in bytes.
+	 */
+	public static long estimatePeakBytes(boolean inputsOnHeap, Footprint... fragments) {
+
+		long inputBytes = 0;
+		long width = 0, height = 0;
+
+		for (Footprint fragment : fragments) {
+
+			if (inputsOnHeap)
+				inputBytes += fragment.getBytes();
+
+			// Upper bound: no overlap at all
+			width += fragment.getWidth();
+			height = Math.max(height, fragment.getHeight());
+
+		}
+
+		long workingBytes = width * height * WORKING_BYTES_PER_PIXEL;
+
+		return (long) ((inputBytes + 2 * workingBytes) * (1d + SEARCH_OVERHEAD_RATIO));
+
+	}
+
+	/**
+	 * Predicts the peak heap memory of merging the given fragments by
+	 * registering every pair of neighbours at once and then composing all of
+	 * them onto a single canvas (see {@link Compositor}): the fragments, and
+	 * the biggest of the working images of all the pairs, with their reduced
+	 * scale copies, and the canvas.
+	 *
+	 * @param inputsOnHeap True if the fragments are kept in the heap.
+	 * @param fragments    The footprint of every fragment.
+	 * @return The predicted peak heap memory, in bytes.
+	 */
+	public static long estimateComposedPeakBytes(boolean inputsOnHeap, Footprint... fragments) {
+
+		long inputBytes = 0, pairBytes = 0;
+		long width = 0, height = 0;
+
+		for (int i = 0; i < fragments.length; i++) {
+
+			if (inputsOnHeap)
+				inputBytes += fragments[i].getBytes();
+
+			width += fragments[i].getWidth();
+			height = Math.max(height, fragments[i].getHeight());
+
+			if (i > 0)
+				pairBytes += (long) (fragments[i - 1].getWidth() + fragments[i].getWidth())
+						* Math.max(fragments[i - 1].getHeight(), fragments[i].getHeight()) * WORKING_BYTES_PER_PIXEL;
+
+		}
+
+		long canvasBytes = width * height * WORKING_BYTES_PER_PIXEL;
+
+		return inputBytes + Math.max((long) (pairBytes * (1d + SEARCH_OVERHEAD_RATIO)), canvasBytes);
+
+	}
+
+	/**
+	 * The size and pixel depth of an image, either loaded or not.
+	 */
+	public static class Footprint {
+
+		private final int width, height;
+		private final int bitsPerPixel;
+
+		public Footprint(int width, int height, int bitsPerPixel) {
+			this.width = width;
+			this.height = height;
+			this.bitsPerPixel = bitsPerPixel;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public int getBitsPerPixel() {
+			return bitsPerPixel;
+		}
+
+		/**
+		 * Gets the bytes used by the image pixels once loaded.
+		 * @return The bytes.
+		 */
+		public long getBytes() {
+			return ((long) width * bitsPerPixel + 7) / 8 * height;
+		}
+
+		/**
+		 * Gets the footprint of a loaded image.
+		 * @param img The image.
+		 * @return The footprint.
+		 */
+		public static Footprint of(BufferedImage img) {
+			return new Footprint(img.getWidth(), img.getHeight(), bitsPerPixel(img.getSampleModel()));
+		}
+
+		/**
+		 * Gets the footprint that an image file will have once loaded, only
+		 * reading the image header.
+		 *
+		 * @param file The image file.
+		 * @return The footprint.
+		 * @throws IOException If the file could not be read as image.
+		 */
+		public static Footprint of(File file) throws IOException {
+
+			try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+
+				Iterator<ImageReader> readers = iis == null ? null : ImageIO.getImageReaders(iis);
+
+				if (readers == null || !readers.hasNext())
+					throw new IOException("File could not be loaded as image: " + file);
+
+				ImageReader reader = readers.next();
+
+				try {
+
+					reader.setInput(iis, true, true);
+
+					// The raw type is the one used when decoding, if known
+					ImageTypeSpecifier type = reader.getRawImageType(0);
+
+					if (type == null)
+						type = reader.getImageTypes(0).next();
+
+					return new Footprint(reader.getWidth(0), reader.getHeight(0),
+							bitsPerPixel(type.getSampleModel(1, 1)));
+
+				} finally {
+					reader.dispose();
+				}
+
+			}
+
+		}
+
+		private static int bitsPerPixel(SampleModel sm) {
+
+			int dataTypeSize = DataBuffer.getDataTypeSize(sm.getDataType());
+
+			if (sm instanceof BandedSampleModel)
+				return sm.getNumBands() * dataTypeSize;
+
+			if (sm instanceof MultiPixelPackedSampleModel)
+				return ((MultiPixelPackedSampleModel) sm).getPixelBitStride();
+
+			if (sm instanceof ComponentSampleModel)
+				return ((ComponentSampleModel) sm).getPixelStride() * dataTypeSize;
+
+			return sm.getNumDataElements() * dataTypeSize;
+
+		}
+
+	}
+
+}
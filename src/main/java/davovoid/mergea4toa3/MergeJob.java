@@ -0,0 +1,941 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FilenameUtils;
+
+import davovoid.libmergea4toa3.A3MergerStudyEvent;
+import davovoid.mergea4toa3.MemoryAdmission.Footprint;
+
+/**
+ * A single merge job: the fragments of the same sheet, from left to right or
+ * from top to bottom (usually the left, center and right fragments of an A3
+ * sheet), and the file where the merged result shall be written. The job does
+ * not depend on any AWT component, so it can be run headless.
+ *
+ * @author David
+ *
+ */
+public class MergeJob {
+
+	private static final String MERGED_SUFFIX = "-merged";
+
+	// Fragment registrations, when merging in parallel
+	private static final ExecutorService REGISTRATION_POOL = Executors
+			.newCachedThreadPool(new DaemonThreadFactory("merge-registration"));
+
+	/**
+	 * The highest deviation index of a good merge.
+	 */
+	public static final double MAX_DEVIATION = 100;
+
+	/**
+	 * The deviation index of a placement that could not be scored, as when
+	 * the overlap is blank paper. It is above {@link #MAX_DEVIATION}, so it
+	 * is never taken for a good merge.
+	 */
+	public static final double NO_SIGNAL = 400;
+
+	private final List<File> fragments;
+	private final Arrangement arrangement;
+	private final File output;
+
+	// Deviation index of each merge (every fragment but the first), as last
+	// reported
+	private final double[] deviations;
+
+	// Best placement of each merge (every fragment but the first), as last
+	// reported
+	private final Placement[] placements;
+	private volatile int fragmentsMerged = 0;
+
+	// Fragment merged by each thread, for the progress events
+	private final ThreadLocal<Integer> merging = new ThreadLocal<>();
+
+	private volatile MergeMetrics metrics;
+	private SearchWindow searchWindow;
+	private boolean preAlignment = false;
+	private boolean parallel = false;
+	private RegistrationEngine engine = new MergerEngine();
+
+	/**
+	 * Creates a job for the given triplet.
+	 *
+	 * @param left   The left image file.
+	 * @param center The center image file.
+	 * @param right  The right image file.
+	 * @param output The file the merged image will be written to, or null if
+	 *               it is kept instead (see {@link MergeScheduler}).
+	 */
+	public MergeJob(File left, File center, File right, File output) {
+		this(Arrays.asList(left, center, right), Arrangement.HORIZONTAL, output);
+	}
+
+	/**
+	 * Creates a job for the given fragments.
+	 *
+	 * @param fragments   The image files, from left to right or from top to
+	 *                    bottom.
+	 * @param arrangement How the fragments are laid out.
+	 * @param output      The file the merged image will be written to, or
+	 *                    null if it is kept instead (see
+	 *                    {@link MergeScheduler}).
+	 * @throws IllegalArgumentException If there are less than two fragments.
+	 */
+	public MergeJob(List<File> fragments, Arrangement arrangement, File output) {
+
+		if (fragments.size() < 2)
+			throw new IllegalArgumentException("At least two fragments are needed, got " + fragments.size());
+
+		this.fragments = new ArrayList<>(fragments);
+		this.arrangement = arrangement;
+		this.output = output;
+
+		deviations = new double[fragments.size() - 1];
+		placements = new Placement[fragments.size() - 1];
+
+	}
+
+	/**
+	 * Gets the fragment image files.
+	 * @return The files, from left to right or from top to bottom.
+	 */
+	public List<File> getFragments() {
+		return Collections.unmodifiableList(fragments);
+	}
+
+	public Arrangement getArrangement() {
+		return arrangement;
+	}
+
+	public File getOutput() {
+		return output;
+	}
+
+	/**
+	 * Gets the job name, used for console and status messages.
+	 * @return The name of the output file, or of the first fragment if there
+	 *         is none.
+	 */
+	public String getName() {
+		return output != null ? output.getName() : fragments.get(0).getName();
+	}
+
+	/**
+	 * Gets how many fragments have already been merged onto the first one (0
+	 * while merging the second one, 1 while merging the third one... up to the
+	 * number of fragments minus one once finished).
+	 * @return The number of merged fragments.
+	 */
+	public int getFragmentsMerged() {
+		return fragmentsMerged;
+	}
+
+	/**
+	 * Gets the fragment the calling thread is merging, meant to be used from
+	 * the progress events, as several fragments may be merged at once.
+	 * @return The index of the merge (0 for the second fragment, 1 for the
+	 *         third one...), or the number of merged fragments if called from
+	 *         elsewhere.
+	 */
+	public int getMergingFragment() {
+
+		Integer fragment = merging.get();
+		return fragment != null ? fragment : fragmentsMerged;
+
+	}
+
+	/**
+	 * Gets the deviation indexes reported for the merge of every fragment but
+	 * the first one (the center and right ones, for a triplet).
+	 * @return A copy of the deviation indexes.
+	 */
+	public double[] getDeviations() {
+		return deviations.clone();
+	}
+
+	/**
+	 * Gets the best placements reported for the merge of every fragment but
+	 * the first one, that is, where each fragment was placed onto the working
+	 * image, in the first fragment coordinates.
+	 * @return A copy of the placements, null for fragments not merged yet.
+	 */
+	public Placement[] getPlacements() {
+		return placements.clone();
+	}
+
+	/**
+	 * Sets the window narrowing the search around the fragment positions of
+	 * the previous sheets.
+	 * @param searchWindow The window, usually shared by the jobs of a batch,
+	 *                     or null for the full search.
+	 */
+	public void setSearchWindow(SearchWindow searchWindow) {
+		this.searchWindow = searchWindow;
+	}
+
+	/**
+	 * Sets whether every fragment position is first estimated from matching
+	 * corners (see {@link KeypointAligner}), so that the merger only searches
+	 * around it. When no estimate is found, the search window is used, if
+	 * any.
+	 * @param preAlignment True to estimate the positions first.
+	 */
+	public void setPreAlignment(boolean preAlignment) {
+		this.preAlignment = preAlignment;
+	}
+
+	/**
+	 * Sets whether every fragment is registered on its previous one, all at
+	 * once, and then all are composed in a single pass, instead of merging
+	 * every fragment onto the already merged previous ones. Then the reported
+	 * placements are combined, so they are still relative to the first
+	 * fragment.
+	 * @param parallel True to register all the fragments at once.
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	public RegistrationEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Sets the engine finding where every fragment is, the library merger by
+	 * default.
+	 * @param engine The engine.
+	 */
+	public void setEngine(RegistrationEngine engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * Gets the metrics of the last merge.
+	 * @return The metrics, or null if never merged.
+	 */
+	public MergeMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Loads the images, and merges them.
+	 *
+	 * @param event The event receiving the merge progress, or null.
+	 * @return The merged image.
+	 * @throws IOException If any of the images could not be read.
+	 */
+	public BufferedImage merge(A3MergerStudyEvent event) throws IOException {
+
+		return merge(load(), event);
+
+	}
+
+	/**
+	 * Loads the images in parallel, using the current {@link RasterBackend}.
+	 *
+	 * @return The images, in the fragments order.
+	 * @throws IOException If any of the images could not be read.
+	 */
+	public BufferedImage[] load() throws IOException {
+		return ImageDecoder.decodeAll(fragments.toArray(new File[0]));
+	}
+
+	/**
+	 * Merges the three already loaded images of a triplet.
+	 *
+	 * @param imgLeft   The left image.
+	 * @param imgCenter The center image.
+	 * @param imgRight  The right image.
+	 * @param event     The event receiving the merge progress, or null.
+	 * @return The merged image.
+	 */
+	public BufferedImage merge(BufferedImage imgLeft, BufferedImage imgCenter, BufferedImage imgRight,
+			A3MergerStudyEvent event) {
+		return merge(new BufferedImage[] { imgLeft, imgCenter, imgRight }, event);
+	}
+
+	/**
+	 * Merges the already loaded images.
+	 *
+	 * @param images The images, in the fragments order.
+	 * @param event  The event receiving the merge progress, or null.
+	 * @return The merged image.
+	 */
+	public BufferedImage merge(BufferedImage[] images, A3MergerStudyEvent event) {
+		return merge(images, event, new CancellationToken());
+	}
+
+	/**
+	 * Merges the already loaded images, unless cancelled meanwhile.
+	 *
+	 * @param images       The images, in the fragments order.
+	 * @param event        The event receiving the merge progress, or null.
+	 * @param cancellation The token stopping the merge.
+	 * @return The merged image.
+	 * @throws CancellationException If cancelled before finishing.
+	 * @throws IllegalArgumentException If the number of images is not the
+	 *                                  number of fragments.
+	 */
+	public BufferedImage merge(BufferedImage[] images, A3MergerStudyEvent event, CancellationToken cancellation) {
+
+		return merge(images, event, cancellation, true);
+
+	}
+
+	/**
+	 * Merges the already loaded images, and writes the result to the output
+	 * file, using the output file extension as image format. Merges composed
+	 * from their placements (in parallel, or from the cache) are composed
+	 * while writing, strip by strip, so the merged image is never held whole
+	 * (see {@link StripImageWriter}); the image drawn by the library merger
+	 * is as big as the merged sheet.
+	 *
+	 * @param images The images, in the fragments order.
+	 * @param event  The event receiving the merge progress, or null.
+	 * @throws IOException If the image could not be written.
+	 * @throws IllegalArgumentException If the number of images is not the
+	 *                                  number of fragments.
+	 */
+	public void mergeAndWrite(BufferedImage[] images, A3MergerStudyEvent event) throws IOException {
+		mergeAndWrite(images, event, new CancellationToken());
+	}
+
+	/**
+	 * Merges the already loaded images, and writes the result to the output
+	 * file, unless cancelled meanwhile (see
+	 * {@link #mergeAndWrite(BufferedImage[], A3MergerStudyEvent)}).
+	 *
+	 * @param images       The images, in the fragments order.
+	 * @param event        The event receiving the merge progress, or null.
+	 * @param cancellation The token stopping the merge.
+	 * @throws IOException If the image could not be written.
+	 * @throws CancellationException If cancelled before finishing.
+	 * @throws IllegalArgumentException If the number of images is not the
+	 *                                  number of fragments.
+	 */
+	public void mergeAndWrite(BufferedImage[] images, A3MergerStudyEvent event, CancellationToken cancellation)
+			throws IOException {
+
+		BufferedImage result = merge(images, event, cancellation, false);
+
+		if (result != null)
+			write(result);
+		else
+			StripImageWriter.write(images, composedPlacements(), FilenameUtils.getExtension(output.getName()),
+					output);
+
+	}
+
+	/**
+	 * Merges the already loaded images, unless cancelled meanwhile.
+	 *
+	 * @param canvas True to compose the merges composed from their
+	 *               placements, false to leave them to the caller.
+	 * @return The merged image, or null if left to the caller.
+	 */
+	private BufferedImage merge(BufferedImage[] images, A3MergerStudyEvent event, CancellationToken cancellation,
+			boolean canvas) {
+
+		if (images.length != fragments.size())
+			throw new IllegalArgumentException(
+					String.format("Expected %d images, got %d", fragments.size(), images.length));
+
+		fragmentsMerged = 0;
+		Arrays.fill(placements, null);
+
+		MergeMetrics metrics = new MergeMetrics(getName());
+		this.metrics = metrics;
+
+		// Merged before? Then the search is skipped. Narrowed searches may
+		// find other placements, so they are cached apart
+		AlignmentCache cache = AlignmentCache.current();
+		String key = cache == null ? null
+				: AlignmentCache.key((parallel ? "parallel;" : "sequential;") + arrangement + ";" + engine.getName()
+						+ (preAlignment ? ";prealign" : "") + (searchWindow != null ? ";window" : ""), images);
+		AlignmentCache.Entry cached = cache == null ? null : cache.get(key);
+
+		BufferedImage result;
+
+		if (cached != null && cached.getPlacements().length == placements.length) {
+
+			Placement[] found = cached.getPlacements();
+
+			for (int f = 0; f < found.length; f++) {
+				placements[f] = found[f];
+				deviations[f] = found[f].getDeviation();
+			}
+
+			fragmentsMerged = placements.length;
+			metrics.cached();
+
+			// Composed again, unless kept as the engine drew it
+			result = cached.getMerged();
+
+		} else {
+
+			// As the merger expects them, from left to right
+			BufferedImage[] row = new BufferedImage[images.length];
+
+			for (int i = 0; i < images.length; i++)
+				row[i] = arrangement.toRow(images[i]);
+
+			if (parallel) {
+
+				mergeParallel(row, event, cancellation);
+				result = null;
+
+			} else {
+
+				result = arrangement.fromRow(mergeSequential(row, event, cancellation));
+
+				for (int f = 0; f < placements.length; f++)
+					placements[f] = arrangement.fromRow(placements[f]);
+
+			}
+
+		}
+
+		if (result == null && canvas)
+			result = compose(images);
+
+		metrics.done();
+
+		try {
+
+			MergeMetrics.export(metrics);
+
+		} catch (IOException e) {
+			// The merge is still fine
+			System.err.println("Merge metrics could not be written: " + e);
+		}
+
+		if (cache != null && !metrics.isCached() && !Arrays.asList(placements).contains(null)) {
+
+			try {
+
+				// Composed again from the placements, unless asked to keep
+				// what the engine drew
+				cache.put(key, placements, !parallel && cache.keepsImages() ? result : null);
+
+			} catch (IOException e) {
+				// The merge is still fine
+				System.err.println("Merge could not be cached: " + e);
+			}
+
+		}
+
+		return result;
+
+	}
+
+	/**
+	 * Merges every fragment onto the already merged previous ones. Every
+	 * placement is found in working image coordinates, and then given in the
+	 * first fragment ones, as the engine may have moved it.
+	 */
+	private BufferedImage mergeSequential(BufferedImage[] row, A3MergerStudyEvent event,
+			CancellationToken cancellation) {
+
+		BufferedImage working = row[0];
+
+		// Top-left corner of the first fragment in the working image
+		int originX = 0, originY = 0;
+
+		for (int f = 0; f < placements.length; f++) {
+
+			if (f > 0)
+				cancellation.checkCancelled();
+
+			working = mergeFragment(f, working, row[f + 1], event, cancellation);
+			fragmentsMerged = f + 1;
+
+			Placement placement = placements[f];
+
+			if (placement != null) {
+
+				Point offset = engine.workingOffset(placement, row[f + 1].getWidth(), row[f + 1].getHeight());
+
+				placements[f] = new Placement(placement.getX() - originX, placement.getY() - originY,
+						placement.getAngle(), placement.getDeviation());
+
+				originX += offset.x;
+				originY += offset.y;
+
+			}
+
+		}
+
+		return working;
+
+	}
+
+	/**
+	 * Finds where every fragment is on its previous one, all at once, so
+	 * that all of them can be composed at once.
+	 */
+	private void mergeParallel(BufferedImage[] row, A3MergerStudyEvent event, CancellationToken cancellation) {
+
+		// Any registration failing stops the rest
+		CancellationToken registration = new CancellationToken(cancellation);
+
+		// The given event may not be thread safe
+		A3MergerStudyEvent serialized = event == null ? null : new A3MergerStudyEvent() {
+
+			@Override
+			public synchronized void updateStudyProgress(double progress, int firstScaleRed, int scaleRed,
+					int xMinFindRange, int xMaxFindRange, int yMinFindRange, int yMaxFindRange, int currentxpos,
+					int currentypos, double currentangle, int bestxpos, int bestypos, double bestangle,
+					double smallestdeviation) {
+
+				event.updateStudyProgress(progress, firstScaleRed, scaleRed, xMinFindRange, xMaxFindRange,
+						yMinFindRange, yMaxFindRange, currentxpos, currentypos, currentangle, bestxpos, bestypos,
+						bestangle, smallestdeviation);
+
+			}
+
+		};
+
+		// Only the placements are kept (the merged images are dropped at once,
+		// not to be alive while composing)
+		List<Future<?>> registrations = new ArrayList<>();
+
+		for (int f = 1; f < placements.length; f++) {
+
+			int merge = f;
+
+			registrations.add(REGISTRATION_POOL
+					.submit(() -> mergeFragment(merge, row[merge], row[merge + 1], serialized, registration) != null));
+
+		}
+
+		try {
+
+			// The first one on this thread
+			mergeFragment(0, row[0], row[1], serialized, registration);
+
+			for (Future<?> future : registrations)
+				future.get();
+
+		} catch (RuntimeException | Error e) {
+
+			registration.cancel();
+			throw e;
+
+		} catch (ExecutionException e) {
+
+			registration.cancel();
+
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+
+			throw new IllegalStateException(e.getCause());
+
+		} catch (InterruptedException e) {
+
+			registration.cancel();
+			Thread.currentThread().interrupt();
+
+			throw new CancellationException("Interrupted while merging");
+
+		}
+
+		if (Arrays.asList(placements).contains(null))
+			throw new IllegalStateException("The merger did not report any placement");
+
+		// Every placement in first fragment coordinates, as if merged in
+		// sequence, and then back in the job arrangement
+		Placement previous = new Placement(0, 0, 0, Double.NaN);
+
+		for (int f = 0; f < placements.length; f++) {
+
+			previous = previous.place(placements[f]);
+			placements[f] = arrangement.fromRow(previous);
+
+		}
+
+		fragmentsMerged = placements.length;
+
+	}
+
+	/**
+	 * Composes the fragments at their placements, in first fragment
+	 * coordinates and in the job arrangement.
+	 */
+	private BufferedImage compose(BufferedImage[] images) {
+		return Compositor.compose(images, composedPlacements());
+	}
+
+	/**
+	 * Gets the placement of every fragment, the first one included, in first
+	 * fragment coordinates and in the job arrangement.
+	 */
+	private Placement[] composedPlacements() {
+
+		Placement[] composed = new Placement[placements.length + 1];
+		composed[0] = new Placement(0, 0, 0, Double.NaN);
+
+		System.arraycopy(placements, 0, composed, 1, placements.length);
+
+		return composed;
+
+	}
+
+	/**
+	 * Merges a fragment onto the working image, only around its estimated
+	 * position if pre-aligning, or its previous position if there is a search
+	 * window, and with the full search if not or if that was not good
+	 * enough. Its placement and deviation index are recorded, in working
+	 * image coordinates.
+	 */
+	private BufferedImage mergeFragment(int f, BufferedImage working, BufferedImage fragment,
+			A3MergerStudyEvent event, CancellationToken cancellation) {
+
+		MergeMetrics.Fragment recording = metrics.fragmentStarted(f);
+
+		// Remember the deviation and metrics before passing the progress on
+		A3MergerStudyEvent recorder = cancellation.wrap(new A3MergerStudyEvent() {
+
+			@Override
+			public void updateStudyProgress(double progress, int firstScaleRed, int scaleRed, int xMinFindRange,
+					int xMaxFindRange, int yMinFindRange, int yMaxFindRange, int currentxpos, int currentypos,
+					double currentangle, int bestxpos, int bestypos, double bestangle, double smallestdeviation) {
+
+				deviations[f] = smallestdeviation;
+				placements[f] = new Placement(bestxpos, bestypos, bestangle, smallestdeviation);
+				recording.candidate(scaleRed);
+
+				if (event != null)
+					event.updateStudyProgress(progress, firstScaleRed, scaleRed, xMinFindRange, xMaxFindRange,
+							yMinFindRange, yMaxFindRange, currentxpos, currentypos, currentangle, bestxpos, bestypos,
+							bestangle, smallestdeviation);
+
+			}
+
+		});
+
+		merging.set(f);
+
+		try {
+
+			int start = 0;
+
+			if (preAlignment) {
+
+				long preAlignStart = System.nanoTime();
+				Placement estimate = KeypointAligner.align(working, fragment);
+
+				recording.preAligned(System.nanoTime() - preAlignStart, estimate != null);
+
+				if (estimate != null)
+					start = KeypointAligner.cropStart(estimate, fragment.getHeight(),
+							(int) Math.round(KeypointAligner.DEFAULT_MARGIN * fragment.getWidth()));
+
+				if (start >= working.getWidth())
+					start = 0;
+
+			}
+
+			if (start == 0 && searchWindow != null)
+				start = searchWindow.cropStart(f, fragment.getWidth(), working.getWidth());
+
+			if (start > 0) {
+
+				BufferedImage merged = engine.mergeOnRight(
+						working.getSubimage(start, 0, working.getWidth() - start, working.getHeight()), fragment,
+						recorder);
+
+				// Back to working image coordinates
+				Placement placement = placements[f];
+
+				if (placement != null)
+					placements[f] = new Placement(placement.getX() + start, placement.getY(), placement.getAngle(),
+							placement.getDeviation());
+
+				// A blank overlap cannot be scored by the full search either,
+				// so the narrowed placement is kept
+				BufferedImage result = placement != null
+						&& (placement.getDeviation() < MAX_DEVIATION || placement.getDeviation() == NO_SIGNAL)
+								? SearchWindow.stitch(working, start, merged,
+										engine.workingOffset(placement, fragment.getWidth(), fragment.getHeight()))
+								: null;
+
+				if (result != null) {
+
+					if (searchWindow != null)
+						searchWindow.update(f, placements[f], true);
+					recording.done(arrangement.fromRow(placements[f]));
+
+					return result;
+
+				}
+
+				if (searchWindow != null)
+					searchWindow.fallback(f);
+
+				recording.fallback();
+				cancellation.checkCancelled();
+
+			}
+
+			BufferedImage result = engine.mergeOnRight(working, fragment, recorder);
+
+			if (searchWindow != null)
+				searchWindow.update(f, placements[f], false);
+
+			recording.done(arrangement.fromRow(placements[f]));
+
+			return result;
+
+		} finally {
+			merging.remove();
+		}
+
+	}
+
+	/**
+	 * Writes the merged image to the output file strip by strip, using the
+	 * output file extension as image format.
+	 *
+	 * @param result The merged image.
+	 * @throws IOException If the image could not be written.
+	 */
+	public void write(BufferedImage result) throws IOException {
+
+		StripImageWriter.write(result, FilenameUtils.getExtension(output.getName()), output);
+
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+
+	/**
+	 * Predicts the peak heap memory of this job, only reading the image
+	 * headers. Inputs kept out of the heap are not counted.
+	 *
+	 * @return The predicted peak memory, in bytes.
+	 * @throws IOException If any of the image headers could not be read.
+	 */
+	public long estimatePeakBytes() throws IOException {
+
+		boolean inputsOnHeap = RasterBackend.current().isHeap();
+
+		Footprint[] row = new Footprint[fragments.size()];
+		long transposedBytes = 0;
+
+		for (int i = 0; i < row.length; i++) {
+
+			Footprint footprint = Footprint.of(fragments.get(i));
+
+			if (arrangement == Arrangement.HORIZONTAL) {
+
+				row[i] = footprint;
+
+			} else {
+
+				// Merged transposed, and the copies are always on the heap
+				row[i] = new Footprint(footprint.getHeight(), footprint.getWidth(), footprint.getBitsPerPixel());
+				transposedBytes += footprint.getBytes();
+
+			}
+
+		}
+
+		return transposedBytes + (parallel ? MemoryAdmission.estimateComposedPeakBytes(inputsOnHeap, row)
+				: MemoryAdmission.estimatePeakBytes(inputsOnHeap, row));
+
+	}
+
+	/**
+	 * Builds the jobs from a folder of scans. The image files are sorted by
+	 * name and taken three by three as left, center and right fragments.
+	 * Files named as merged results are ignored.
+	 *
+	 * @param folder    The folder containing the scans.
+	 * @param outFolder The folder where the merged images will be written.
+	 * @param format    The output image format (file extension).
+	 * @return The list of jobs.
+	 * @throws IOException If the folder could not be listed or the number of
+	 *                     images is not a multiple of three.
+	 */
+	public static List<MergeJob> fromFolder(File folder, File outFolder, String format) throws IOException {
+		return fromFolder(folder, outFolder, format, 3, Arrangement.HORIZONTAL);
+	}
+
+	/**
+	 * Builds the jobs from a folder of scans. The image files are sorted by
+	 * name and taken in groups of the given size as the fragments of every
+	 * job. Files named as merged results are ignored.
+	 *
+	 * @param folder      The folder containing the scans.
+	 * @param outFolder   The folder where the merged images will be written.
+	 * @param format      The output image format (file extension).
+	 * @param count       The number of fragments of every job.
+	 * @param arrangement How the fragments are laid out.
+	 * @return The list of jobs.
+	 * @throws IOException If the folder could not be listed or the number of
+	 *                     images is not a multiple of the count.
+	 */
+	public static List<MergeJob> fromFolder(File folder, File outFolder, String format, int count,
+			Arrangement arrangement) throws IOException {
+
+		// Previous results are not taken as scans
+		File[] files = folder.listFiles(f -> f.isFile()
+				&& !FilenameUtils.getBaseName(f.getName()).endsWith(MERGED_SUFFIX)
+				&& ImageIO.getImageReadersBySuffix(FilenameUtils.getExtension(f.getName())).hasNext());
+
+		if (files == null)
+			throw new IOException("Folder could not be listed: " + folder);
+
+		Arrays.sort(files);
+
+		if (files.length % count != 0)
+			throw new IOException(
+					String.format("Found %d images in %s, not a multiple of %d", files.length, folder, count));
+
+		List<MergeJob> jobs = new ArrayList<>();
+
+		for (int i = 0; i < files.length; i += count) {
+
+			jobs.add(new MergeJob(Arrays.asList(files).subList(i, i + count), arrangement,
+					defaultOutput(files[i], outFolder, format)));
+
+		}
+
+		return jobs;
+
+	}
+
+	/**
+	 * Builds the jobs from a manifest file. Every non empty line not starting
+	 * with '#' describes a triplet as {@code left;center;right[;output]}, or
+	 * any number of fragments as
+	 * {@code [horizontal:|vertical:]first;...;last[>output]} (horizontal by
+	 * default). Relative paths are resolved against the manifest folder, and
+	 * if no output is given, it is named after the first image.
+	 *
+	 * @param manifest  The manifest file (UTF-8).
+	 * @param outFolder The folder where the merged images will be written.
+	 * @param format    The output image format, used if no output is given.
+	 * @return The list of jobs.
+	 * @throws IOException If the manifest could not be read or is malformed.
+	 */
+	public static List<MergeJob> fromManifest(File manifest, File outFolder, String format) throws IOException {
+
+		File base = manifest.getAbsoluteFile().getParentFile();
+		List<MergeJob> jobs = new ArrayList<>();
+		int lineNumber = 0;
+
+		for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+
+			lineNumber++;
+			line = line.trim();
+
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+
+			Arrangement arrangement = Arrangement.HORIZONTAL;
+			boolean triplet = true;
+
+			for (Arrangement a : Arrangement.values()) {
+
+				String prefix = a.name().toLowerCase() + ":";
+
+				if (line.toLowerCase().startsWith(prefix)) {
+					arrangement = a;
+					line = line.substring(prefix.length());
+					triplet = false;
+				}
+
+			}
+
+			String outputName = null;
+			int arrow = line.indexOf('>');
+
+			if (arrow >= 0) {
+				outputName = line.substring(arrow + 1);
+				line = line.substring(0, arrow);
+				triplet = false;
+			}
+
+			List<String> parts = new ArrayList<>(Arrays.asList(line.split(";")));
+
+			if (triplet) {
+
+				if (parts.size() < 3 || parts.size() > 4)
+					throw new IOException(String.format("%s:%d: expected left;center;right[;output]", manifest, lineNumber));
+
+				if (parts.size() == 4)
+					outputName = parts.remove(3);
+
+			} else if (parts.size() < 2) {
+
+				throw new IOException(String.format("%s:%d: expected at least two fragments", manifest, lineNumber));
+
+			}
+
+			List<File> files = new ArrayList<>();
+
+			for (String part : parts)
+				files.add(resolve(base, part));
+
+			jobs.add(new MergeJob(files, arrangement, outputName != null ? resolve(outFolder, outputName)
+					: defaultOutput(files.get(0), outFolder, format)));
+
+		}
+
+		return jobs;
+
+	}
+
+	private static File resolve(File base, String path) {
+
+		File file = new File(path.trim());
+		return file.isAbsolute() ? file : new File(base, file.getPath());
+
+	}
+
+	private static File defaultOutput(File first, File outFolder, String format) {
+		return new File(outFolder, FilenameUtils.getBaseName(first.getName()) + MERGED_SUFFIX + "." + format);
+	}
+
+}
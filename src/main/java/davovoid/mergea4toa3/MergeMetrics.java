@@ -0,0 +1,457 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Where a merge spends its time: for every fragment, how long each scale of
+ * the coarse to fine search took and how many candidate placements it tried,
+ * and the final placement and deviation index.
+ *
+ * The merger sends a progress event for every candidate it tries, so the
+ * candidates are counted from the events. Every fragment is recorded from
+ * the thread merging it.
+ *
+ * If the {@code mergea4toa3.metrics} system property names a file, every
+ * finished merge is appended to it as a JSON line (see {@link #toJson()}).
+ *
+ * @author David
+ *
+ */
+public class MergeMetrics {
+
+	/**
+	 * The system property naming the JSON lines file metrics are exported to.
+	 */
+	public static final String PROPERTY = "mergea4toa3.metrics";
+
+	/**
+	 * A search scale of a fragment merge.
+	 */
+	public static class Phase {
+
+		private final int scaleRed;
+		private long nanos;
+		private long candidates;
+
+		Phase(int scaleRed) {
+			this.scaleRed = scaleRed;
+		}
+
+		/**
+		 * Gets the scale reduction of this phase (1 for full scale).
+		 * @return The scale reduction.
+		 */
+		public int getScaleRed() {
+			return scaleRed;
+		}
+
+		/**
+		 * Gets the time spent in this phase.
+		 * @return The time, in nanoseconds.
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		/**
+		 * Gets the candidate placements tried in this phase.
+		 * @return The number of candidates.
+		 */
+		public long getCandidates() {
+			return candidates;
+		}
+
+		/**
+		 * Gets the candidate placements tried per second in this phase.
+		 * @return The candidates per second, 0 if no time was measured.
+		 */
+		public double getCandidatesPerSecond() {
+			return nanos > 0 ? candidates * 1e9 / nanos : 0;
+		}
+
+	}
+
+	/**
+	 * The merge of a fragment: its phases and result.
+	 */
+	public static class Fragment {
+
+		private final int index;
+		private final List<Phase> phases = new ArrayList<>();
+		private Placement placement;
+
+		private long preAlignNanos;
+		private Boolean preAligned;
+		private boolean fallback;
+
+		private Phase phase;
+		private long phaseStart = System.nanoTime();
+
+		Fragment(int index) {
+			this.index = index;
+		}
+
+		/**
+		 * Gets the merge index (0 for the second fragment, 1 for the third
+		 * one...; 0 center and 1 right for a triplet).
+		 * @return The index.
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * Gets the search phases, in the order they were run.
+		 * @return The phases.
+		 */
+		public List<Phase> getPhases() {
+			return phases;
+		}
+
+		/**
+		 * Gets where the fragment was placed, with its final deviation index.
+		 * @return The placement, or null if not finished.
+		 */
+		public Placement getPlacement() {
+			return placement;
+		}
+
+		/**
+		 * Gets the time spent merging the fragment, pre-alignment included.
+		 * @return The time, in nanoseconds.
+		 */
+		public long getNanos() {
+			return preAlignNanos + phases.stream().mapToLong(Phase::getNanos).sum();
+		}
+
+		/**
+		 * Gets the time spent estimating the fragment position from corners.
+		 * @return The time, in nanoseconds, 0 if not pre-aligned.
+		 */
+		public long getPreAlignNanos() {
+			return preAlignNanos;
+		}
+
+		/**
+		 * Gets whether the fragment position was estimated from corners.
+		 * @return True if estimated, false if not found, or null if not
+		 *         pre-aligned.
+		 */
+		public Boolean getPreAligned() {
+			return preAligned;
+		}
+
+		/**
+		 * Gets whether a narrowed search was not good enough, so the full one
+		 * was run.
+		 * @return True if searched again in full.
+		 */
+		public boolean isFallback() {
+			return fallback;
+		}
+
+		/**
+		 * Records the estimation of the fragment position from corners, before
+		 * the search.
+		 * @param nanos     The time it took, in nanoseconds.
+		 * @param estimated Whether a position was estimated.
+		 */
+		public void preAligned(long nanos, boolean estimated) {
+
+			preAlignNanos = nanos;
+			preAligned = estimated;
+
+			// Not counted in the first phase
+			phaseStart = System.nanoTime();
+
+		}
+
+		/**
+		 * Records that a narrowed search was not good enough, so the full one
+		 * will be run.
+		 */
+		public void fallback() {
+			fallback = true;
+		}
+
+		/**
+		 * Records a candidate tried by the merger.
+		 * @param scaleRed The scale reduction of the candidate.
+		 */
+		public void candidate(int scaleRed) {
+
+			long now = System.nanoTime();
+
+			if (phase == null || phase.scaleRed != scaleRed) {
+
+				closePhase(now);
+
+				phase = new Phase(scaleRed);
+				phases.add(phase);
+
+			}
+
+			phase.candidates++;
+
+			// Up to the latest candidate, as the merger tells nothing later
+			phase.nanos = now - phaseStart;
+
+		}
+
+		/**
+		 * Records the end of the fragment merge.
+		 * @param placement Where the fragment was placed, with its deviation
+		 *                  index.
+		 */
+		public void done(Placement placement) {
+
+			closePhase(System.nanoTime());
+
+			this.placement = placement;
+			phase = null;
+
+		}
+
+		private void closePhase(long now) {
+
+			if (phase != null)
+				phase.nanos = now - phaseStart;
+
+			phaseStart = now;
+
+		}
+
+	}
+
+	private final String name;
+	private final List<Fragment> fragments = new ArrayList<>();
+
+	private final long start = System.nanoTime();
+	private long nanos;
+	private boolean cached = false;
+
+	/**
+	 * Creates the metrics of a merge, starting its time.
+	 * @param name The merge name.
+	 */
+	public MergeMetrics(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the fragment merges recorded so far.
+	 * @return The fragments, in the order they were started.
+	 */
+	public synchronized List<Fragment> getFragments() {
+		return new ArrayList<>(fragments);
+	}
+
+	/**
+	 * Records the start of a fragment merge. Fragments may be merged at once,
+	 * each recorded from its own thread.
+	 * @param index The merge index (0 second fragment, 1 third...).
+	 * @return The fragment, recording its merge.
+	 */
+	public synchronized Fragment fragmentStarted(int index) {
+
+		Fragment fragment = new Fragment(index);
+		fragments.add(fragment);
+
+		return fragment;
+
+	}
+
+	/**
+	 * Records the end of the whole merge.
+	 */
+	public void done() {
+		nanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Records that the placements were taken from the alignment cache, so
+	 * no fragment was searched.
+	 */
+	public void cached() {
+		cached = true;
+	}
+
+	/**
+	 * Gets whether the placements were taken from the alignment cache.
+	 * @return True if no fragment was searched.
+	 */
+	public boolean isCached() {
+		return cached;
+	}
+
+	/**
+	 * Gets the time the whole merge took, which is less than the sum of its
+	 * fragments if merged at once.
+	 * @return The time, in nanoseconds.
+	 */
+	public long getNanos() {
+		return nanos;
+	}
+
+	/**
+	 * Gives the metrics as a single line JSON object, as in:
+	 *
+	 * <pre>
+	 * {"name":"scan-001-merged.png","millis":5234.1,"fragments":[
+	 *   {"index":0,"x":1240,"y":-3,"angle":0.125,"deviation":42.17,"millis":2612.4,
+	 *    "preAlignMillis":402.8,"preAligned":true,"fallback":false,"phases":[
+	 *     {"scaleRed":8,"millis":310.2,"candidates":9604,"candidatesPerSecond":30960.7},
+	 *     ...]},
+	 *   ...]}
+	 * </pre>
+	 *
+	 * (without the line breaks, and without the pre-alignment fields if not
+	 * pre-aligned). Merges taken from the alignment cache have
+	 * {@code "cached":true} after their time, and no fragments.
+	 *
+	 * @return The JSON line.
+	 */
+	public String toJson() {
+
+		StringBuilder json = new StringBuilder();
+
+		json.append("{\"name\":\"").append(escape(name)).append("\"");
+		json.append(",\"millis\":").append(millis(nanos));
+
+		if (cached)
+			json.append(",\"cached\":true");
+
+		json.append(",\"fragments\":[");
+
+		List<Fragment> fragments = getFragments();
+
+		for (int i = 0; i < fragments.size(); i++) {
+
+			Fragment f = fragments.get(i);
+			Placement p = f.placement;
+
+			json.append(i > 0 ? ",{" : "{");
+			json.append("\"index\":").append(f.index).append(",");
+
+			if (p != null)
+				json.append(String.format(Locale.ROOT, "\"x\":%d,\"y\":%d,\"angle\":%s,\"deviation\":%s,", p.getX(),
+						p.getY(), number(p.getAngle()), number(p.getDeviation())));
+
+			json.append("\"millis\":").append(millis(f.getNanos()));
+
+			if (f.preAligned != null)
+				json.append(",\"preAlignMillis\":").append(millis(f.preAlignNanos)).append(",\"preAligned\":")
+						.append(f.preAligned).append(",\"fallback\":").append(f.fallback);
+			json.append(",\"phases\":[");
+
+			for (int j = 0; j < f.phases.size(); j++) {
+
+				Phase phase = f.phases.get(j);
+
+				json.append(j > 0 ? ",{" : "{");
+				json.append(String.format(Locale.ROOT, "\"scaleRed\":%d,\"millis\":%s,\"candidates\":%d,\"candidatesPerSecond\":%s}",
+						phase.scaleRed, millis(phase.nanos), phase.candidates, number(phase.getCandidatesPerSecond())));
+
+			}
+
+			json.append("]}");
+
+		}
+
+		json.append("]}");
+
+		return json.toString();
+
+	}
+
+	private static String millis(long nanos) {
+		return number(nanos / 1e6);
+	}
+
+	private static String number(double value) {
+
+		// JSON has no NaN nor infinities
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			return "null";
+
+		return String.format(Locale.ROOT, "%.3f", value);
+
+	}
+
+	private static String escape(String text) {
+
+		StringBuilder escaped = new StringBuilder();
+
+		for (char c : text.toCharArray()) {
+
+			if (c == '"' || c == '\\')
+				escaped.append('\\').append(c);
+			else if (c < 0x20)
+				escaped.append(String.format("\\u%04x", (int) c));
+			else
+				escaped.append(c);
+
+		}
+
+		return escaped.toString();
+
+	}
+
+	/**
+	 * Appends the metrics to the file named by the system property, if any.
+	 * Merges finishing at once are written one after the other.
+	 *
+	 * @param metrics The metrics of a finished merge.
+	 * @throws IOException If the file could not be written.
+	 */
+	public static void export(MergeMetrics metrics) throws IOException {
+
+		String file = System.getProperty(PROPERTY);
+
+		if (file == null || file.isEmpty())
+			return;
+
+		String line = metrics.toJson() + System.lineSeparator();
+
+		synchronized (MergeMetrics.class) {
+
+			try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(file), true),
+					StandardCharsets.UTF_8)) {
+				writer.write(line);
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,226 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import davovoid.libmergea4toa3.A3MergerStudyEvent;
+
+/**
+ * Runs several merge jobs at once on a bounded pool of worker threads. Every
+ * job uses its own registration engine, and the jobs exceeding the pool size
+ * are queued until a worker is free.
+ *
+ * Jobs go through two stages. A loader thread waits for the predicted memory
+ * of the job to be admitted by a {@link MemoryAdmission}, and decodes its
+ * images in parallel. Then a worker merges it. The loader keeps at most one
+ * job decoded ahead of the busy workers, so the next job is ready as soon
+ * as a worker is free.
+ *
+ * @author David
+ *
+ */
+public class MergeScheduler {
+
+	private final ExecutorService loader;
+	private final ExecutorService executor;
+	private final int poolSize;
+	private final MemoryAdmission admission;
+
+	// Jobs being merged, plus the one decoded ahead
+	private final Semaphore slots;
+
+	/**
+	 * Creates a scheduler with the given number of workers.
+	 * @param poolSize  The maximum number of jobs merged at the same time.
+	 * @param admission The admission control for the job memory.
+	 */
+	public MergeScheduler(int poolSize, MemoryAdmission admission) {
+
+		this.poolSize = Math.max(1, poolSize);
+		this.admission = admission;
+
+		slots = new Semaphore(this.poolSize + 1);
+
+		loader = Executors.newSingleThreadExecutor(new DaemonThreadFactory("merge-loader"));
+		executor = Executors.newFixedThreadPool(this.poolSize, new DaemonThreadFactory("merge-worker"));
+
+	}
+
+	/**
+	 * Gets the maximum number of jobs merged at the same time.
+	 * @return The pool size.
+	 */
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	/**
+	 * Queues a job. Once its memory is admitted, the job is loaded and, once a
+	 * worker is free, merged and, if it has an output file, written.
+	 *
+	 * @param job   The job to run.
+	 * @param event The event receiving the progress of this job, or null.
+	 * @return The future merged image, or the future null if it was written to
+	 *         the job output (so it is not kept in memory).
+	 */
+	public CompletableFuture<BufferedImage> submit(MergeJob job, A3MergerStudyEvent event) {
+		return submit(job, job::load, event, new CancellationToken());
+	}
+
+	/**
+	 * Queues a job whose images are loaded by the caller (i.e. images already
+	 * being decoded), which may stop it. Once its memory is admitted, the
+	 * images are waited for and, once a worker is free, the job is merged
+	 * and, if it has an output file, written.
+	 *
+	 * @param job          The job to run.
+	 * @param images       Gets the images, in the fragments order.
+	 * @param event        The event receiving the progress of this job, or
+	 *                     null.
+	 * @param cancellation The token stopping the job: it is not merged if
+	 *                     cancelled before, and stops merging if cancelled
+	 *                     meanwhile, completing the future with a
+	 *                     CancellationException.
+	 * @return The future merged image, or the future null if it was written to
+	 *         the job output (so it is not kept in memory).
+	 */
+	public CompletableFuture<BufferedImage> submit(MergeJob job, Callable<BufferedImage[]> images,
+			A3MergerStudyEvent event, CancellationToken cancellation) {
+
+		CompletableFuture<BufferedImage> future = new CompletableFuture<>();
+
+		loader.execute(() -> load(job, images, event, cancellation, future));
+
+		return future;
+
+	}
+
+	/**
+	 * Loader stage: admits and decodes the job, then passes it to a worker.
+	 */
+	private void load(MergeJob job, Callable<BufferedImage[]> images, A3MergerStudyEvent event,
+			CancellationToken cancellation, CompletableFuture<BufferedImage> future) {
+
+		long bytes = 0;
+		boolean slotTaken = false, admitted = false;
+
+		try {
+
+			slots.acquire();
+			slotTaken = true;
+
+			bytes = job.estimatePeakBytes();
+			admission.acquire(bytes);
+			admitted = true;
+
+			BufferedImage[] loaded = images.call();
+
+			long admittedBytes = bytes;
+			executor.execute(() -> merge(job, loaded, event, cancellation, admittedBytes, future));
+
+		} catch (Throwable e) {
+
+			if (admitted)
+				admission.release(bytes);
+
+			if (slotTaken)
+				slots.release();
+
+			future.completeExceptionally(e);
+
+		}
+
+	}
+
+	/**
+	 * Worker stage: merges and writes the job, then frees its memory.
+	 */
+	private void merge(MergeJob job, BufferedImage[] images, A3MergerStudyEvent event,
+			CancellationToken cancellation, long bytes, CompletableFuture<BufferedImage> future) {
+
+		try {
+
+			// Stopped while waiting for a worker
+			cancellation.checkCancelled();
+
+			if (job.getOutput() == null) {
+
+				future.complete(job.merge(images, event, cancellation));
+
+			} else {
+
+				// Composed merges are composed while written
+				job.mergeAndWrite(images, event, cancellation);
+				future.complete(null);
+
+			}
+
+		} catch (Throwable e) {
+
+			future.completeExceptionally(e);
+
+		} finally {
+
+			admission.release(bytes);
+			slots.release();
+
+		}
+
+	}
+
+	/**
+	 * Stops accepting jobs. Already queued jobs are still run.
+	 */
+	public void shutdown() {
+
+		// The loader still passes its queued jobs to the workers
+		loader.execute(executor::shutdown);
+		loader.shutdown();
+
+	}
+
+	/**
+	 * Calculates a pool size that neither exceeds the available processors nor,
+	 * given the peak memory of a typical job, the memory budget. More workers
+	 * would only wait for their memory to be admitted.
+	 *
+	 * @param jobBytes  The predicted peak memory of a typical job.
+	 * @param admission The admission control for the job memory.
+	 * @return The recommended pool size, at least 1.
+	 */
+	public static int defaultPoolSize(long jobBytes, MemoryAdmission admission) {
+
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		if (jobBytes <= 0)
+			return cores;
+
+		long jobs = admission.getBudget() / jobBytes;
+
+		return (int) Math.max(1, Math.min(cores, jobs));
+
+	}
+
+}
@@ -0,0 +1,73 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+import davovoid.libmergea4toa3.A3Merger;
+import davovoid.libmergea4toa3.A3MergerStudyEvent;
+
+/**
+ * The library merger: a coarse to fine search of the position and angle
+ * with the smallest pixel deviation, with the scanner left correction.
+ *
+ * The merged image is as big as the working image and the placed fragment
+ * together, so the working image is moved down by the fragment part above
+ * it (and right by any part on its left).
+ *
+ * @author David
+ *
+ */
+public class MergerEngine implements RegistrationEngine {
+
+	/**
+	 * The engine name.
+	 */
+	public static final String NAME = "merger";
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public BufferedImage mergeOnRight(BufferedImage working, BufferedImage fragment, A3MergerStudyEvent event) {
+
+		A3Merger merger = new A3Merger(working);
+		merger.setScannerLeftCorrection(true);
+		merger.setMergerStudyEvent(event);
+
+		merger.mergeImageOnRight(fragment, true);
+
+		return merger.getWorkingImg();
+
+	}
+
+	@Override
+	public Point workingOffset(Placement placement, int width, int height) {
+
+		Rectangle bounds = placement.bounds(width, height);
+
+		return new Point(Math.max(0, -bounds.x), Math.max(0, -bounds.y));
+
+	}
+
+}
@@ -0,0 +1,165 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * DataBuffer keeping its pixels out of the heap, either in direct buffers or
+ * in memory-mapped temporary files. Byte, short and int data types are
+ * supported, which covers the images created by the ImageIO readers.
+ *
+ * Each bank is limited to 2 GiB, as any Java buffer.
+ *
+ * @author David
+ *
+ */
+public class OffHeapDataBuffer extends DataBuffer {
+
+	private final ByteBuffer[] bytes;
+	private final ShortBuffer[] shorts;
+	private final IntBuffer[] ints;
+
+	/**
+	 * Creates the buffer.
+	 *
+	 * @param dataType One of {@code TYPE_BYTE}, {@code TYPE_USHORT},
+	 *                 {@code TYPE_SHORT} or {@code TYPE_INT}.
+	 * @param size     The number of elements of every bank.
+	 * @param numBanks The number of banks.
+	 * @param mapped   True to map temporary files, false to use direct
+	 *                 buffers.
+	 * @throws IOException If a temporary file could not be created or mapped.
+	 */
+	public OffHeapDataBuffer(int dataType, int size, int numBanks, boolean mapped) throws IOException {
+
+		super(checkDataType(dataType), size, numBanks);
+
+		bytes = new ByteBuffer[numBanks];
+		shorts = new ShortBuffer[numBanks];
+		ints = new IntBuffer[numBanks];
+
+		long bankBytes = (long) size * (getDataTypeSize(dataType) / 8);
+
+		if (bankBytes > Integer.MAX_VALUE)
+			throw new IOException(String.format("Raster bank of %d MiB exceeds the 2 GiB limit", bankBytes >> 20));
+
+		for (int b = 0; b < numBanks; b++) {
+
+			ByteBuffer buffer = mapped ? map((int) bankBytes) : ByteBuffer.allocateDirect((int) bankBytes);
+			buffer.order(ByteOrder.nativeOrder());
+
+			bytes[b] = buffer;
+			shorts[b] = buffer.asShortBuffer();
+			ints[b] = buffer.asIntBuffer();
+
+		}
+
+	}
+
+	private static int checkDataType(int dataType) {
+
+		switch (dataType) {
+
+		case TYPE_BYTE:
+		case TYPE_USHORT:
+		case TYPE_SHORT:
+		case TYPE_INT:
+			return dataType;
+
+		default:
+			throw new IllegalArgumentException("Unsupported data type: " + dataType);
+
+		}
+
+	}
+
+	/**
+	 * Maps a new temporary file. The file is deleted right away where the OS
+	 * allows it (the mapping keeps it alive), otherwise on exit.
+	 */
+	private static ByteBuffer map(int length) throws IOException {
+
+		File file = File.createTempFile("mergea4toa3-", ".raster");
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+
+			raf.setLength(length);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+		} finally {
+
+			if (!file.delete())
+				file.deleteOnExit();
+
+		}
+
+	}
+
+	@Override
+	public int getElem(int bank, int i) {
+
+		switch (dataType) {
+
+		case TYPE_BYTE:
+			return bytes[bank].get(i + offsets[bank]) & 0xff;
+
+		case TYPE_USHORT:
+			return shorts[bank].get(i + offsets[bank]) & 0xffff;
+
+		case TYPE_SHORT:
+			return shorts[bank].get(i + offsets[bank]);
+
+		default:
+			return ints[bank].get(i + offsets[bank]);
+
+		}
+
+	}
+
+	@Override
+	public void setElem(int bank, int i, int val) {
+
+		switch (dataType) {
+
+		case TYPE_BYTE:
+			bytes[bank].put(i + offsets[bank], (byte) val);
+			break;
+
+		case TYPE_USHORT:
+		case TYPE_SHORT:
+			shorts[bank].put(i + offsets[bank], (short) val);
+			break;
+
+		default:
+			ints[bank].put(i + offsets[bank], val);
+
+		}
+
+	}
+
+}
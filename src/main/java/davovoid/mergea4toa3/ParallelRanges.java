@@ -0,0 +1,107 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a loop over a range of indexes in a fork/join pool, halving the range
+ * until the parts are no bigger than a grain. The parts only depend on the
+ * range and the grain, not on the threads, so loops writing every index on
+ * their own give the same result however they are run.
+ *
+ * @author David
+ *
+ */
+final class ParallelRanges {
+
+	/**
+	 * The loop body over a part of the range.
+	 */
+	interface Body {
+
+		/**
+		 * Runs the loop over the indexes from from to to (excluded).
+		 */
+		void run(int from, int to);
+
+	}
+
+	private static class Part extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Body body;
+		private final int from, to, grain;
+
+		Part(Body body, int from, int to, int grain) {
+			this.body = body;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (to - from <= grain) {
+				body.run(from, to);
+				return;
+			}
+
+			int middle = (from + to) >>> 1;
+
+			invokeAll(new Part(body, from, middle, grain), new Part(body, middle, to, grain));
+
+		}
+
+	}
+
+	private ParallelRanges() {
+	}
+
+	/**
+	 * Runs a loop over the indexes from 0 to count (excluded).
+	 *
+	 * @param pool  The pool the parts are run in, or null to run the whole
+	 *              loop on this thread.
+	 * @param count The number of indexes.
+	 * @param grain The most indexes run as a single part.
+	 * @param body  The loop body.
+	 */
+	static void run(ForkJoinPool pool, int count, int grain, Body body) {
+
+		if (pool == null || count <= grain) {
+			body.run(0, count);
+			return;
+		}
+
+		Part all = new Part(body, 0, count, grain);
+
+		// Already a worker of the pool: its parts are forked from here
+		if (ForkJoinTask.getPool() == pool)
+			all.invoke();
+		else
+			pool.invoke(all);
+
+	}
+
+}
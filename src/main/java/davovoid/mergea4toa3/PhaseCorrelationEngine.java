@@ -0,0 +1,582 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import davovoid.libmergea4toa3.A3MergerStudyEvent;
+
+/**
+ * Finds the fragment position by phase correlation: the normalized cross
+ * power spectrum of two images has a single peak at their offset, so every
+ * offset is tried at once in O(n log n), instead of measuring the deviation
+ * of every candidate position.
+ *
+ * The right part of the working image (as wide as the fragment) and the
+ * fragment are read once as {@link Luminance}, which is reduced to about
+ * {@link #TARGET_HEIGHT} rows and correlated once for every angle of a small
+ * rotation sweep, the fragment rotated by it. The angle with the highest
+ * peak is refined by fitting a parabola to the peaks of its neighbours. Then
+ * the offset is refined at full scale, correlating a tile of the overlap
+ * with the fragment placed as found.
+ *
+ * The sweep has only a few angles, so instead of correlating them at once,
+ * every correlation is split over a fork/join pool: the rows and columns of
+ * its transforms, its cross power spectrum and its peak search, every part
+ * keeping the first highest value of its own range. The parts do not depend
+ * on the threads, so neither does the placement found.
+ *
+ * The deviation index given is 200 times one minus the correlation of both
+ * tiles with the fragment placed as found, so that it is below
+ * {@link MergeJob#MAX_DEVIATION} when they are correlated by more than 0.5,
+ * or {@link MergeJob#NO_SIGNAL} when the overlap is too small or blank.
+ *
+ * As with the scanner left correction of the library merger, the left edge
+ * of the fragment is not taken into account (it may show the lid shadow).
+ * The fragment is kept where both overlap but for that edge, so that the
+ * blank corners left by rotated fragments before are covered. As with the
+ * library merger too, the working image is not moved: the merged image keeps
+ * its coordinates, and the fragment rows above it are left out.
+ *
+ * @author David
+ *
+ */
+public class PhaseCorrelationEngine implements RegistrationEngine {
+
+	/**
+	 * The engine name.
+	 */
+	public static final String NAME = "phase";
+
+	/**
+	 * Rows of the reduced images correlated for every angle.
+	 */
+	public static final int TARGET_HEIGHT = 256;
+
+	/**
+	 * Default rotation sweep limit and step, in degrees.
+	 */
+	public static final double DEFAULT_MAX_ANGLE = 1, DEFAULT_ANGLE_STEP = 0.5;
+
+	/**
+	 * Largest side of the full scale tile refining the offset.
+	 */
+	public static final int TILE = 256;
+
+	// Part of the fragment width not taken into account, on its left
+	private static final double LEFT_SKIP = 0.02;
+
+	// Spectrum values, and fragment rows, handled as a single parallel part
+	private static final int GRAIN = 1 << 14, ROW_GRAIN = 16;
+
+	private final double maxAngle, angleStep;
+	private final ForkJoinPool pool;
+
+	/**
+	 * Creates an engine with the default rotation sweep, its correlations
+	 * split over the common pool.
+	 */
+	public PhaseCorrelationEngine() {
+		this(DEFAULT_MAX_ANGLE, DEFAULT_ANGLE_STEP);
+	}
+
+	/**
+	 * Creates an engine, its correlations split over the common pool.
+	 * @param maxAngle  The largest rotation tried, either way, in degrees.
+	 * @param angleStep The step between the rotations tried, in degrees.
+	 */
+	public PhaseCorrelationEngine(double maxAngle, double angleStep) {
+		this(maxAngle, angleStep, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Creates an engine.
+	 * @param maxAngle  The largest rotation tried, either way, in degrees.
+	 * @param angleStep The step between the rotations tried, in degrees.
+	 * @param pool      The pool the correlations are split over, or null to
+	 *                  run them on the merging thread.
+	 */
+	public PhaseCorrelationEngine(double maxAngle, double angleStep, ForkJoinPool pool) {
+		this.maxAngle = maxAngle;
+		this.angleStep = angleStep;
+		this.pool = pool;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public BufferedImage mergeOnRight(BufferedImage working, BufferedImage fragment, A3MergerStudyEvent event) {
+
+		BufferedImage[] images = { fragment, working };
+		Placement[] placements = { register(working, fragment, event), new Placement(0, 0, 0, Double.NaN) };
+
+		Rectangle bounds = Compositor.bounds(images, placements);
+
+		// From the working image top
+		return Compositor.compose(images, placements,
+				new Rectangle(0, 0, bounds.x + bounds.width, bounds.y + bounds.height),
+				new int[] { (int) Math.ceil(LEFT_SKIP * fragment.getWidth()), 0 });
+
+	}
+
+	/**
+	 * Finds the fragment placement, reporting every angle tried.
+	 *
+	 * @return The placement, in working image coordinates.
+	 */
+	Placement register(BufferedImage working, BufferedImage fragment, A3MergerStudyEvent event) {
+
+		int scale = Math.max(1,
+				(int) Math.round(Math.max(working.getHeight(), fragment.getHeight()) / (double) TARGET_HEIGHT));
+
+		int strip = Math.min(fragment.getWidth(), working.getWidth());
+		strip -= strip % scale;
+
+		int stripX = working.getWidth() - strip;
+
+		// Full scale for the tiles, reduced for the sweep
+		Luminance workingStrip = Luminance.of(working, stripX, 0, strip, working.getHeight());
+		Luminance fragmentFull = Luminance.of(fragment, 0, 0, fragment.getWidth(), fragment.getHeight());
+
+		Luminance w = workingStrip.reduce(scale), f = fragmentFull.reduce(scale);
+
+		int skip = (int) Math.ceil(LEFT_SKIP * f.width);
+
+		// Room for the fragment rotated either way
+		double maxSin = Math.sin(Math.toRadians(maxAngle));
+		int ox = (int) Math.ceil(f.height * maxSin) + 1, oy = (int) Math.ceil(f.width * maxSin) + 1;
+		int bw = f.width + 2 * ox, bh = f.height + 2 * oy;
+
+		// Big enough not to wrap any offset around
+		int n = powerOfTwo(w.width + bw), m = powerOfTwo(w.height + bh);
+
+		double[] wRe = new double[n * m], wIm = new double[n * m];
+		ink(w, wRe, n);
+		Fft.transform(wRe, wIm, n, m, false, pool);
+
+		int steps = (int) Math.floor(maxAngle / angleStep + 1e-9);
+		double[] peaks = new double[2 * steps + 1];
+		double[][] offsets = new double[peaks.length][];
+
+		// One angle after the other, reusing the same buffers
+		double[] re = new double[n * m], im = new double[n * m];
+
+		int best = -1;
+		Placement bestPlacement = null;
+
+		for (int i = 0; i < peaks.length; i++) {
+
+			double angle = (i - steps) * angleStep;
+
+			Arrays.fill(re, 0);
+			Arrays.fill(im, 0);
+
+			rotatedInk(f, re, n, bw, bh, angle, ox, oy, skip, pool);
+			Fft.transform(re, im, n, m, false, pool);
+
+			offsets[i] = correlate(wRe, wIm, re, im, n, m, w.width, w.height, pool);
+			peaks[i] = offsets[i][2];
+
+			// Top-left corner, in reduced working strip coordinates
+			double tx = offsets[i][0] + ox, ty = offsets[i][1] + oy;
+			Placement placement = toFullScale(tx, ty, angle, scale, stripX);
+
+			// The first one on ties
+			if (best < 0 || peaks[i] > peaks[best]) {
+				best = i;
+				bestPlacement = placement;
+			}
+
+			// No deviation index until refined
+			event.updateStudyProgress((i + 1d) / (peaks.length + 1), scale, scale, stripX - bw * scale,
+					working.getWidth(), -bh * scale, working.getHeight(), placement.getX(), placement.getY(), angle,
+					bestPlacement.getX(), bestPlacement.getY(), bestPlacement.getAngle(), MergeJob.NO_SIGNAL);
+
+		}
+
+		// Between the best angle and its neighbours
+		double angle = (best - steps) * angleStep;
+
+		if (best > 0 && best < peaks.length - 1) {
+
+			double curvature = peaks[best - 1] - 2 * peaks[best] + peaks[best + 1];
+
+			if (curvature < 0)
+				angle += angleStep * 0.5 * (peaks[best - 1] - peaks[best + 1]) / curvature;
+
+		}
+
+		double tx = offsets[best][0] + ox, ty = offsets[best][1] + oy;
+		Placement coarse = toFullScale(tx, ty, angle, scale, stripX);
+
+		// Twice, as the tiles are placed better the second time
+		Placement placement = refine(workingStrip, stripX, fragmentFull,
+				refine(workingStrip, stripX, fragmentFull, coarse, pool), pool);
+		angle = placement.getAngle();
+
+		double deviation = deviation(workingStrip, stripX, fragmentFull, placement);
+
+		placement = new Placement(placement.getX(), placement.getY(), angle, deviation);
+
+		event.updateStudyProgress(1, scale, 1, placement.getX(), placement.getX(), placement.getY(),
+				placement.getY(), placement.getX(), placement.getY(), angle, placement.getX(), placement.getY(),
+				angle, deviation);
+
+		return placement;
+
+	}
+
+	/**
+	 * Correlates a fragment spectrum with the working one.
+	 * @param pool The pool the correlation is split over, or null.
+	 * @return The offset of the fragment on the working image, with sub-pixel
+	 *         precision, and the peak height.
+	 */
+	private static double[] correlate(double[] wRe, double[] wIm, double[] re, double[] im, int n, int m, int ww,
+			int wh, ForkJoinPool pool) {
+
+		// Normalized cross power spectrum
+		ParallelRanges.run(pool, re.length, GRAIN, (from, to) -> {
+
+			for (int p = from; p < to; p++) {
+
+				double cr = wRe[p] * re[p] + wIm[p] * im[p];
+				double ci = wIm[p] * re[p] - wRe[p] * im[p];
+				double magnitude = Math.sqrt(cr * cr + ci * ci);
+
+				re[p] = magnitude > 1e-12 ? cr / magnitude : 0;
+				im[p] = magnitude > 1e-12 ? ci / magnitude : 0;
+
+			}
+
+		});
+
+		Fft.transform(re, im, n, m, true, pool);
+
+		// The first highest value of every part, then of all of them in order
+		int parts = (re.length + GRAIN - 1) / GRAIN;
+		int[] peaks = new int[parts];
+
+		ParallelRanges.run(pool, parts, 1, (from, to) -> {
+
+			for (int part = from; part < to; part++) {
+
+				int first = part * GRAIN, last = Math.min(re.length, first + GRAIN);
+				int peak = first;
+
+				for (int p = first + 1; p < last; p++)
+					if (re[p] > re[peak])
+						peak = p;
+
+				peaks[part] = peak;
+
+			}
+
+		});
+
+		int peak = peaks[0];
+
+		for (int part = 1; part < parts; part++)
+			if (re[peaks[part]] > re[peak])
+				peak = peaks[part];
+
+		int kx = peak % n, ky = peak / n;
+
+		double dx = subPixel(re, peak, kx > 0 ? peak - 1 : peak + n - 1, kx < n - 1 ? peak + 1 : peak - n + 1);
+		double dy = subPixel(re, peak, ky > 0 ? peak - n : peak + n * (m - 1), ky < m - 1 ? peak + n : peak - n * (m - 1));
+
+		// Offsets past the working image are negative ones, wrapped around
+		return new double[] { (kx >= ww ? kx - n : kx) + dx, (ky >= wh ? ky - m : ky) + dy, re[peak] };
+
+	}
+
+	/**
+	 * Gets the sub-pixel position of a peak, fitting a parabola to it and
+	 * its neighbours.
+	 */
+	private static double subPixel(double[] values, int peak, int before, int after) {
+
+		double curvature = values[before] - 2 * values[peak] + values[after];
+
+		return curvature < 0 ? 0.5 * (values[before] - values[after]) / curvature : 0;
+
+	}
+
+	/**
+	 * Refines the placement correlating two full scale tiles of the overlap,
+	 * one above the other, with the fragment placed as found: the offset of
+	 * each tile gives a point of the fragment on the working image, and both
+	 * points give the rotation and translation.
+	 * @return The refined placement, or the given one if the overlap is too
+	 *         small.
+	 */
+	private static Placement refine(Luminance working, int stripX, Luminance fragment, Placement placement,
+			ForkJoinPool pool) {
+
+		int[] tiles = tiles(working, stripX, fragment, placement);
+
+		if (tiles == null)
+			return placement;
+
+		int tile = tiles[0], tx0 = tiles[1];
+		int[] ty0 = { tiles[2], tiles[3] };
+
+		double[][] points = new double[2][];
+
+		for (int i = 0; i < 2; i++) {
+
+			Luminance w = working.crop(tx0 - stripX, ty0[i], tile, tile);
+			Luminance f = placed(fragment, placement, tx0, ty0[i], tile, null);
+
+			double[] wRe = new double[tile * tile], wIm = new double[tile * tile];
+			double[] re = new double[tile * tile], im = new double[tile * tile];
+
+			windowedInk(w, wRe);
+			windowedInk(f, re);
+
+			Fft.transform(wRe, wIm, tile, tile, false, pool);
+			Fft.transform(re, im, tile, tile, false, pool);
+
+			// Small residual offsets only, either way
+			double[] offset = correlate(wRe, wIm, re, im, tile, tile, tile / 2, tile / 2, pool);
+
+			// The fragment point at the tile center, and where it really is
+			double cx = tx0 + tile / 2d, cy = ty0[i] + tile / 2d;
+			double[] q = toFragment(placement, cx - offset[0], cy - offset[1]);
+
+			points[i] = new double[] { q[0], q[1], cx, cy };
+
+		}
+
+		double fdx = points[1][0] - points[0][0], fdy = points[1][1] - points[0][1];
+		double wdx = points[1][2] - points[0][2], wdy = points[1][3] - points[0][3];
+
+		double angle = Math.atan2(fdx * wdy - fdy * wdx, fdx * wdx + fdy * wdy);
+		double cos = Math.cos(angle), sin = Math.sin(angle);
+
+		// Where the top-left corner goes, from the midpoint of both
+		double fx = (points[0][0] + points[1][0]) / 2, fy = (points[0][1] + points[1][1]) / 2;
+		double x = (points[0][2] + points[1][2]) / 2 - (cos * fx - sin * fy);
+		double y = (points[0][3] + points[1][3]) / 2 - (sin * fx + cos * fy);
+
+		return new Placement((int) Math.round(x), (int) Math.round(y), Math.toDegrees(angle), placement.getDeviation());
+
+	}
+
+	/**
+	 * Gets the fragment point placed at (x, y).
+	 */
+	private static double[] toFragment(Placement placement, double x, double y) {
+
+		double cos = Math.cos(Math.toRadians(placement.getAngle())), sin = Math.sin(Math.toRadians(placement.getAngle()));
+		double dx = x - placement.getX(), dy = y - placement.getY();
+
+		return new double[] { cos * dx + sin * dy, -sin * dx + cos * dy };
+
+	}
+
+	/**
+	 * Gets the full scale placement of a reduced working strip one.
+	 */
+	private static Placement toFullScale(double tx, double ty, double angle, int scale, int stripX) {
+
+		// Reduced pixels are centered at c = (scale - 1) / 2, so the corner
+		// moves by (I - R) c
+		double c = (scale - 1) / 2d;
+		double cos = Math.cos(Math.toRadians(angle)), sin = Math.sin(Math.toRadians(angle));
+
+		double x = stripX + scale * tx + c - (cos * c - sin * c);
+		double y = scale * ty + c - (sin * c + cos * c);
+
+		return new Placement((int) Math.round(x), (int) Math.round(y), angle, Double.NaN);
+
+	}
+
+	/**
+	 * Gets the full scale tiles of the overlap with the working strip,
+	 * centered in its upper and lower halves.
+	 * @return The tile side, its first column and the first row of each
+	 *         tile, or null if the overlap is too small.
+	 */
+	private static int[] tiles(Luminance working, int stripX, Luminance fragment, Placement placement) {
+
+		int x0 = Math.max(stripX, placement.getX());
+		int x1 = Math.min(stripX + working.width, placement.getX() + fragment.width);
+		int y0 = Math.max(0, placement.getY()), y1 = Math.min(working.height, placement.getY() + fragment.height);
+
+		int tile = Integer.highestOneBit(Math.max(1, Math.min(TILE, Math.min(x1 - x0, (y1 - y0) / 2))));
+
+		if (tile < 32)
+			return null;
+
+		int half = (y1 - y0) / 2;
+
+		return new int[] { tile, (x0 + x1 - tile) / 2, y0 + (half - tile) / 2, y0 + half + (half - tile) / 2 };
+
+	}
+
+	/**
+	 * Gets the deviation index of the full scale tiles of the overlap, the
+	 * fragment placed as given: 200 times one minus their correlation.
+	 * @return The index, or {@link MergeJob#NO_SIGNAL} if the overlap is too
+	 *         small or blank.
+	 */
+	private static double deviation(Luminance working, int stripX, Luminance fragment, Placement placement) {
+
+		int[] tiles = tiles(working, stripX, fragment, placement);
+
+		if (tiles == null)
+			return MergeJob.NO_SIGNAL;
+
+		int tile = tiles[0];
+
+		// Count, sums, sums of squares and of products
+		long[] sums = new long[6];
+		byte[] mask = new byte[tile * tile];
+
+		for (int i = 2; i < 4; i++) {
+
+			Luminance w = working.crop(tiles[1] - stripX, tiles[i], tile, tile);
+			Luminance f = placed(fragment, placement, tiles[1], tiles[i], tile, mask);
+
+			Luminance.accumulate(w.values, f.values, mask, sums);
+
+		}
+
+		double count = sums[0];
+		double variance = (sums[3] - sums[1] * (double) sums[1] / count) * (sums[4] - sums[2] * (double) sums[2] / count);
+
+		// Blank paper correlates with nothing
+		if (count == 0 || variance <= 0)
+			return MergeJob.NO_SIGNAL;
+
+		return 200 * (1 - (sums[5] - sums[1] * (double) sums[2] / count) / Math.sqrt(variance));
+
+	}
+
+	private static int powerOfTwo(int value) {
+		return Integer.highestOneBit(Math.max(1, value - 1)) << 1;
+	}
+
+	/**
+	 * Gets the fragment as placed on the working image, in the square tile at
+	 * (x0, y0) of it, white where it is not.
+	 * @param mask If not null, set to 1 where the fragment is and 0 where not.
+	 */
+	private static Luminance placed(Luminance fragment, Placement placement, int x0, int y0, int tile, byte[] mask) {
+
+		double cos = Math.cos(Math.toRadians(placement.getAngle()));
+		double sin = Math.sin(Math.toRadians(placement.getAngle()));
+
+		byte[] values = new byte[tile * tile];
+
+		for (int y = 0; y < tile; y++) {
+
+			for (int x = 0; x < tile; x++) {
+
+				// Back to fragment coordinates
+				double dx = x0 + x - placement.getX(), dy = y0 + y - placement.getY();
+				double u = cos * dx + sin * dy, v = -sin * dx + cos * dy;
+
+				boolean inside = u >= 0 && v >= 0 && u <= fragment.width - 1 && v <= fragment.height - 1;
+				int p = y * tile + x;
+
+				values[p] = (byte) (inside ? (int) Math.round(fragment.sample(u, v)) : 255);
+
+				if (mask != null)
+					mask[p] = (byte) (inside ? 1 : 0);
+
+			}
+
+		}
+
+		return new Luminance(values, tile, tile);
+
+	}
+
+	/**
+	 * Writes the ink (darkness) of every pixel, so that the padding is blank
+	 * paper.
+	 */
+	private static void ink(Luminance img, double[] target, int stride) {
+
+		for (int y = 0; y < img.height; y++)
+			for (int x = 0; x < img.width; x++)
+				target[y * stride + x] = 255 - (img.values[y * img.width + x] & 0xff);
+
+	}
+
+	/**
+	 * Writes the ink of the image rotated by the angle around its top-left
+	 * corner, which goes to (ox, oy), skipping the first columns. The rotated
+	 * image fits in bw by bh.
+	 */
+	private static void rotatedInk(Luminance img, double[] target, int stride, int bw, int bh, double angle, int ox,
+			int oy, int skip, ForkJoinPool pool) {
+
+		double cos = Math.cos(Math.toRadians(angle)), sin = Math.sin(Math.toRadians(angle));
+
+		ParallelRanges.run(pool, bh, ROW_GRAIN, (from, to) -> {
+
+			for (int y = from; y < to; y++) {
+
+				for (int x = 0; x < bw; x++) {
+
+					double dx = x - ox, dy = y - oy;
+					double u = cos * dx + sin * dy, v = -sin * dx + cos * dy;
+
+					if (u >= skip && v >= 0 && u <= img.width - 1 && v <= img.height - 1)
+						target[y * stride + x] = 255 - img.sample(u, v);
+
+				}
+
+			}
+
+		});
+
+	}
+
+	/**
+	 * Writes the ink of the image, faded to the borders with a Hann window so
+	 * that they do not correlate.
+	 */
+	private static void windowedInk(Luminance img, double[] target) {
+
+		for (int y = 0; y < img.height; y++) {
+
+			double wy = 0.5 - 0.5 * Math.cos(2 * Math.PI * y / (img.height - 1));
+
+			for (int x = 0; x < img.width; x++) {
+
+				double wx = 0.5 - 0.5 * Math.cos(2 * Math.PI * x / (img.width - 1));
+				target[y * img.width + x] = (255 - (img.values[y * img.width + x] & 0xff)) * wx * wy;
+
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.Rectangle;
+
+/**
+ * Where a fragment is placed onto the image it is merged with: its position
+ * and angle, as found by the merger (or as generated, for synthetic
+ * fragments), and the deviation index of that placement.
+ *
+ * A fragment pixel q is placed at (x, y) + R(angle) q, that is, (x, y) is
+ * where its top-left corner goes and the fragment is rotated about it,
+ * clockwise for positive angles (as y grows downwards). This is how the
+ * library merger reports its best position and angle: the registration
+ * regression tests merge synthetic fragments generated this way and check
+ * it finds their placements, and the {@link Compositor} draws them so.
+ *
+ * @author David
+ *
+ */
+public class Placement {
+
+	private final int x, y;
+	private final double angle;
+	private final double deviation;
+
+	/**
+	 * Creates a placement.
+	 *
+	 * @param x         The horizontal position, in pixels.
+	 * @param y         The vertical position, in pixels.
+	 * @param angle     The angle, in degrees.
+	 * @param deviation The deviation index, or NaN if not known.
+	 */
+	public Placement(int x, int y, double angle, double deviation) {
+		this.x = x;
+		this.y = y;
+		this.angle = angle;
+		this.deviation = deviation;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	public double getAngle() {
+		return angle;
+	}
+
+	public double getDeviation() {
+		return deviation;
+	}
+
+	/**
+	 * Gets the area covered by a fragment placed so.
+	 *
+	 * @param width  The fragment width.
+	 * @param height The fragment height.
+	 * @return The smallest rectangle holding the placed fragment.
+	 */
+	public Rectangle bounds(int width, int height) {
+		return Compositor.transform(this).createTransformedShape(new Rectangle(width, height)).getBounds();
+	}
+
+	/**
+	 * Places a fragment given relative to the fragment of this placement, that
+	 * is, gives its placement in the coordinates this placement is relative
+	 * to. A fragment pixel p is placed at (x, y) + R(angle) p.
+	 *
+	 * @param relative The placement relative to this fragment.
+	 * @return The placement, with the deviation index of the relative one.
+	 */
+	public Placement place(Placement relative) {
+
+		double theta = Math.toRadians(angle);
+		double cos = Math.cos(theta), sin = Math.sin(theta);
+
+		return new Placement((int) Math.round(x + cos * relative.x - sin * relative.y),
+				(int) Math.round(y + sin * relative.x + cos * relative.y), angle + relative.angle, relative.deviation);
+
+	}
+
+	@Override
+	public String toString() {
+		return String.format("x = %d, y = %d, angle = %.3f, index = %.2f", x, y, angle, deviation);
+	}
+
+}
@@ -0,0 +1,188 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.util.function.Consumer;
+
+import javax.swing.Timer;
+
+import davovoid.libmergea4toa3.A3MergerStudyEvent;
+
+/**
+ * Passes the merge progress to the UI at a fixed rate. The merger sends an
+ * event for every position it tries, far more than the UI can show, so the
+ * events only keep the latest state, which a timer on the event dispatch
+ * thread samples and shows if it changed. Intermediate events are dropped,
+ * and the merging thread never waits for the UI.
+ *
+ * @author David
+ *
+ */
+public class ProgressDispatcher implements A3MergerStudyEvent {
+
+	/**
+	 * Default samples per second.
+	 */
+	public static final int DEFAULT_RATE = 20;
+
+	/**
+	 * The merge state at some point.
+	 */
+	public static class Snapshot {
+
+		private final int fragment;
+		private final double progress;
+		private final int firstScaleRed, scaleRed;
+		private final double smallestDeviation;
+
+		Snapshot(int fragment, double progress, int firstScaleRed, int scaleRed, double smallestDeviation) {
+			this.fragment = fragment;
+			this.progress = progress;
+			this.firstScaleRed = firstScaleRed;
+			this.scaleRed = scaleRed;
+			this.smallestDeviation = smallestDeviation;
+		}
+
+		/**
+		 * Gets the fragment being merged, as set by
+		 * {@link ProgressDispatcher#setFragment(int)}.
+		 * @return The fragment index.
+		 */
+		public int getFragment() {
+			return fragment;
+		}
+
+		/**
+		 * Gets the progress of the fragment merge.
+		 * @return The progress, from 0 to 1.
+		 */
+		public double getProgress() {
+			return progress;
+		}
+
+		/**
+		 * Gets the scale reduction the search started with.
+		 * @return The first scale reduction.
+		 */
+		public int getFirstScaleRed() {
+			return firstScaleRed;
+		}
+
+		/**
+		 * Gets the current scale reduction (1 for full scale).
+		 * @return The scale reduction.
+		 */
+		public int getScaleRed() {
+			return scaleRed;
+		}
+
+		/**
+		 * Gets the lowest deviation index found so far.
+		 * @return The deviation index.
+		 */
+		public double getSmallestDeviation() {
+			return smallestDeviation;
+		}
+
+	}
+
+	private final Consumer<Snapshot> listener;
+	private final Timer timer;
+
+	private volatile int fragment = 0;
+	private volatile Snapshot latest = null;
+	private Snapshot shown = null; // only used on the EDT
+
+	/**
+	 * Creates a dispatcher sampling at the default rate.
+	 * @param listener Receives the latest state, on the event dispatch thread.
+	 */
+	public ProgressDispatcher(Consumer<Snapshot> listener) {
+		this(listener, DEFAULT_RATE);
+	}
+
+	/**
+	 * Creates a dispatcher.
+	 * @param listener Receives the latest state, on the event dispatch thread.
+	 * @param rate     The samples per second, at most.
+	 */
+	public ProgressDispatcher(Consumer<Snapshot> listener, int rate) {
+
+		this.listener = listener;
+
+		timer = new Timer(1000 / rate, e -> dispatch());
+		timer.setCoalesce(true);
+
+	}
+
+	/**
+	 * Starts sampling.
+	 */
+	public void start() {
+		timer.start();
+	}
+
+	/**
+	 * Stops sampling. Any state not shown yet is dropped.
+	 */
+	public void stop() {
+		timer.stop();
+	}
+
+	/**
+	 * Sets the fragment being merged, recorded by the following events.
+	 * @param fragment The fragment index.
+	 */
+	public void setFragment(int fragment) {
+		this.fragment = fragment;
+	}
+
+	/**
+	 * Gets the latest state, whether shown or not.
+	 * @return The latest state, or null if there were no events yet.
+	 */
+	public Snapshot getLatest() {
+		return latest;
+	}
+
+	@Override
+	public void updateStudyProgress(double progress, int firstScaleRed, int scaleRed, int xMinFindRange,
+			int xMaxFindRange, int yMinFindRange, int yMaxFindRange, int currentxpos, int currentypos,
+			double currentangle, int bestxpos, int bestypos, double bestangle, double smallestdeviation) {
+
+		latest = new Snapshot(fragment, progress, firstScaleRed, scaleRed, smallestdeviation);
+
+	}
+
+	/**
+	 * Shows the latest state, if not already shown.
+	 */
+	private void dispatch() {
+
+		Snapshot snapshot = latest;
+
+		if (snapshot == null || snapshot == shown)
+			return;
+
+		shown = snapshot;
+		listener.accept(snapshot);
+
+	}
+
+}
@@ -0,0 +1,292 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.function.DoubleConsumer;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Where the pixels of the loaded images are kept. Images kept out of the heap
+ * are still plain BufferedImages, so the merger and the image panels use them
+ * as any other, only slower to access.
+ *
+ * The backend is chosen with the {@code mergea4toa3.raster} system property
+ * ({@code heap}, {@code direct} or {@code mapped}), heap by default. Note
+ * that the working image is created by the merger itself, so it is always
+ * kept in the heap.
+ *
+ * @author David
+ *
+ */
+public enum RasterBackend {
+
+	/**
+	 * Usual BufferedImages, in the heap.
+	 */
+	HEAP,
+
+	/**
+	 * Direct buffers, limited by {@code -XX:MaxDirectMemorySize}.
+	 */
+	DIRECT,
+
+	/**
+	 * Memory-mapped temporary files, paged by the OS as needed.
+	 */
+	MAPPED;
+
+	/**
+	 * The system property choosing the backend.
+	 */
+	public static final String PROPERTY = "mergea4toa3.raster";
+
+	/**
+	 * Gets the backend chosen by the system property.
+	 * @return The backend, HEAP if not set.
+	 * @throws IllegalArgumentException If the property value is not valid.
+	 */
+	public static RasterBackend current() {
+
+		String value = System.getProperty(PROPERTY, "heap");
+
+		try {
+
+			return valueOf(value.toUpperCase());
+
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown raster backend: " + value);
+		}
+
+	}
+
+	/**
+	 * Whether the pixels are kept in the heap.
+	 * @return True for the HEAP backend.
+	 */
+	public boolean isHeap() {
+		return this == HEAP;
+	}
+
+	/**
+	 * Creates an empty image of the given type.
+	 *
+	 * @param type   The image type.
+	 * @param width  The image width.
+	 * @param height The image height.
+	 * @return The image.
+	 * @throws IOException If the pixel memory could not be set up.
+	 */
+	public BufferedImage create(ImageTypeSpecifier type, int width, int height) throws IOException {
+
+		SampleModel sm = type.getSampleModel(width, height);
+
+		if (isHeap() || bankSize(sm) < 0)
+			return type.createBufferedImage(width, height);
+
+		int banks = sm instanceof BandedSampleModel ? sm.getNumBands() : 1;
+
+		WritableRaster raster = Raster.createWritableRaster(sm,
+				new OffHeapDataBuffer(sm.getDataType(), bankSize(sm), banks, this == MAPPED), null);
+
+		return new BufferedImage(type.getColorModel(), raster, type.getColorModel().isAlphaPremultiplied(), null);
+
+	}
+
+	/**
+	 * Gets the elements of every bank required by the sample model, or -1 if
+	 * the sample model is not known.
+	 */
+	private static int bankSize(SampleModel sm) {
+
+		long stride;
+
+		if (sm instanceof ComponentSampleModel)
+			stride = ((ComponentSampleModel) sm).getScanlineStride();
+		else if (sm instanceof SinglePixelPackedSampleModel)
+			stride = ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+		else if (sm instanceof MultiPixelPackedSampleModel)
+			stride = ((MultiPixelPackedSampleModel) sm).getScanlineStride();
+		else
+			return -1;
+
+		long size = stride * sm.getHeight();
+
+		return size > Integer.MAX_VALUE ? -1 : (int) size;
+
+	}
+
+	/**
+	 * Copies an image to this backend.
+	 *
+	 * @param img The image.
+	 * @return The same image if already in this backend, otherwise the copy.
+	 * @throws IOException If the pixel memory could not be set up.
+	 */
+	public BufferedImage copyOf(BufferedImage img) throws IOException {
+
+		boolean offHeap = img.getRaster().getDataBuffer() instanceof OffHeapDataBuffer;
+
+		if (isHeap() != offHeap)
+			return img;
+
+		BufferedImage copy = create(ImageTypeSpecifier.createFromRenderedImage(img), img.getWidth(),
+				img.getHeight());
+
+		copy.getRaster().setRect(img.getRaster());
+
+		return copy;
+
+	}
+
+	/**
+	 * Reads an image file, decoding it straight into this backend. If the
+	 * reader cannot decode into other buffers than its own (i.e. BMP), the
+	 * image is decoded in the heap and then copied.
+	 *
+	 * @param file The image file.
+	 * @return The image.
+	 * @throws IOException If the file could not be read as image.
+	 */
+	public BufferedImage read(File file) throws IOException {
+		return read(file, null);
+	}
+
+	/**
+	 * Reads an image file as {@link #read(File)}, reporting the decoding
+	 * progress.
+	 *
+	 * @param file     The image file.
+	 * @param progress Receives the progress, from 0 to 1, or null.
+	 * @return The image.
+	 * @throws IOException If the file could not be read as image.
+	 */
+	public BufferedImage read(File file, DoubleConsumer progress) throws IOException {
+
+		try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+
+			Iterator<ImageReader> readers = iis == null ? null : ImageIO.getImageReaders(iis);
+
+			if (readers == null || !readers.hasNext())
+				throw new IOException("File could not be loaded as image: " + file);
+
+			ImageReader reader = readers.next();
+
+			try {
+
+				reader.setInput(iis, true, true);
+
+				if (progress != null)
+					reader.addIIOReadProgressListener(new ProgressListener(progress));
+
+				ImageReadParam param = reader.getDefaultReadParam();
+
+				// The first type is the one the reader would have chosen
+				if (!isHeap())
+					param.setDestination(create(reader.getImageTypes(0).next(), reader.getWidth(0), reader.getHeight(0)));
+
+				return reader.read(0, param);
+
+			} catch (ClassCastException | IIOException e) {
+
+				// The reader expects its own data buffers (or the file is not
+				// valid, which decoding again will tell)
+				if (isHeap())
+					throw e;
+
+			} finally {
+				reader.dispose();
+			}
+
+		}
+
+		return copyOf(HEAP.read(file, progress));
+
+	}
+
+	/**
+	 * Passes the reader progress on, as a value from 0 to 1.
+	 */
+	static class ProgressListener implements IIOReadProgressListener {
+
+		private final DoubleConsumer progress;
+
+		ProgressListener(DoubleConsumer progress) {
+			this.progress = progress;
+		}
+
+		@Override
+		public void imageStarted(ImageReader source, int imageIndex) {
+			progress.accept(0d);
+		}
+
+		@Override
+		public void imageProgress(ImageReader source, float percentageDone) {
+			progress.accept(percentageDone / 100d);
+		}
+
+		@Override
+		public void imageComplete(ImageReader source) {
+			progress.accept(1d);
+		}
+
+		@Override
+		public void sequenceStarted(ImageReader source, int minIndex) {
+		}
+
+		@Override
+		public void sequenceComplete(ImageReader source) {
+		}
+
+		@Override
+		public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+		}
+
+		@Override
+		public void thumbnailProgress(ImageReader source, float percentageDone) {
+		}
+
+		@Override
+		public void thumbnailComplete(ImageReader source) {
+		}
+
+		@Override
+		public void readAborted(ImageReader source) {
+		}
+
+	}
+
+}
@@ -0,0 +1,94 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+
+import davovoid.libmergea4toa3.A3MergerStudyEvent;
+
+/**
+ * Finds where a fragment is on the right part of the working image, and
+ * merges it there. Engines report their progress with the same event the
+ * library merger uses: every candidate tried, and the best placement and
+ * deviation index found so far, in working image coordinates. The deviation
+ * index of a good merge is below {@link MergeJob#MAX_DEVIATION}, and is
+ * {@link MergeJob#NO_SIGNAL} while it cannot be told.
+ *
+ * @author David
+ *
+ */
+public interface RegistrationEngine {
+
+	/**
+	 * Gets the engine name, as given to {@link #forName(String)}.
+	 * @return The name.
+	 */
+	String getName();
+
+	/**
+	 * Merges a fragment onto the right part of the working image.
+	 *
+	 * @param working  The working image.
+	 * @param fragment The fragment to merge.
+	 * @param event    The event receiving the progress (never null).
+	 * @return The merged image.
+	 */
+	BufferedImage mergeOnRight(BufferedImage working, BufferedImage fragment, A3MergerStudyEvent event);
+
+	/**
+	 * Gets where the working image ends up in the merged image, as it may be
+	 * moved to make room for the parts of the fragment above or on the left
+	 * of it. Placements reported for the next merges are relative to it.
+	 *
+	 * @param placement The fragment placement, in working image coordinates.
+	 * @param width     The fragment width.
+	 * @param height    The fragment height.
+	 * @return The top-left corner of the working image in the merged image;
+	 *         (0, 0) if never moved, as by default.
+	 */
+	default Point workingOffset(Placement placement, int width, int height) {
+		return new Point();
+	}
+
+	/**
+	 * Gets an engine by its name.
+	 * @param name {@code merger} for the library merger, or {@code phase}
+	 *             for the phase correlation one.
+	 * @return The engine.
+	 * @throws IllegalArgumentException If there is no such engine.
+	 */
+	static RegistrationEngine forName(String name) {
+
+		switch (name.toLowerCase()) {
+
+		case MergerEngine.NAME:
+			return new MergerEngine();
+
+		case PhaseCorrelationEngine.NAME:
+			return new PhaseCorrelationEngine();
+
+		default:
+			throw new IllegalArgumentException("Unknown registration engine: " + name);
+
+		}
+
+	}
+
+}
@@ -0,0 +1,264 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Narrows the merge search of the sheets of a batch to where the previous
+ * sheet fragments were found. Scans of the same scanner overlap almost the
+ * same on every sheet, so once a fragment has been placed, the next sheet
+ * fragment is only searched around that position.
+ *
+ * The merger always searches over the whole working image, so the search is
+ * narrowed by merging onto the right part of it only, starting a margin
+ * before the previous position, and putting the skipped left part back
+ * afterwards. Only the horizontal range is narrowed this way; the vertical
+ * and angle ranges are still the merger ones.
+ *
+ * If a narrowed merge gives a deviation index too high, the fragment is
+ * merged again with the full search.
+ *
+ * Several jobs can share a window at once, but then the previous sheet is
+ * whichever finished last, so with a {@link MergeScheduler} running several
+ * jobs at once the narrowed ranges, and so the placements found within them,
+ * may change from run to run. Jobs run one by one always get the same ones.
+ *
+ * @author David
+ *
+ */
+public class SearchWindow {
+
+	/**
+	 * Default margin before the previous position, relative to the fragment
+	 * width.
+	 */
+	public static final double DEFAULT_MARGIN = 0.1;
+
+	// Rows around the predicted working image position checked for it
+	private static final int SLACK = 2;
+
+	private final double margin;
+
+	// Latest good horizontal position of every fragment, by merge index
+	private final Map<Integer, Integer> lastX = new HashMap<>();
+
+	private int narrowed = 0, fallbacks = 0;
+
+	/**
+	 * Creates a window with the default margin.
+	 */
+	public SearchWindow() {
+		this(DEFAULT_MARGIN);
+	}
+
+	/**
+	 * Creates a window.
+	 * @param margin How much before the previous position the search starts,
+	 *               relative to the fragment width.
+	 */
+	public SearchWindow(double margin) {
+		this.margin = margin;
+	}
+
+	/**
+	 * Gets where the working image shall be cropped for merging a fragment.
+	 *
+	 * @param fragment      The merge index (0 second fragment, 1 third...).
+	 * @param fragmentWidth The width of the fragment to merge.
+	 * @param workingWidth  The width of the working image.
+	 * @return The first column of the working image to merge onto, 0 for the
+	 *         full search.
+	 */
+	public synchronized int cropStart(int fragment, int fragmentWidth, int workingWidth) {
+
+		Integer last = lastX.get(fragment);
+
+		if (last == null)
+			return 0;
+
+		int start = last - (int) Math.round(margin * fragmentWidth);
+
+		return start > 0 && start < workingWidth ? start : 0;
+
+	}
+
+	/**
+	 * Records where a fragment was placed.
+	 *
+	 * @param fragment  The merge index (0 second fragment, 1 third...).
+	 * @param placement The placement, in working image coordinates.
+	 * @param narrowed  Whether it was found with a narrowed search.
+	 */
+	public synchronized void update(int fragment, Placement placement, boolean narrowed) {
+
+		if (narrowed)
+			this.narrowed++;
+
+		if (placement != null && placement.getDeviation() < MergeJob.MAX_DEVIATION)
+			lastX.put(fragment, placement.getX());
+
+	}
+
+	/**
+	 * Records that a narrowed search was not good enough, so the full one
+	 * will be run.
+	 * @param fragment The merge index (0 second fragment, 1 third...).
+	 */
+	public synchronized void fallback(int fragment) {
+
+		fallbacks++;
+		lastX.remove(fragment);
+
+	}
+
+	/**
+	 * Gets how many fragments were placed with a narrowed search.
+	 * @return The number of fragments.
+	 */
+	public synchronized int getNarrowed() {
+		return narrowed;
+	}
+
+	/**
+	 * Gets how many narrowed searches had to be redone in full.
+	 * @return The number of fallbacks.
+	 */
+	public synchronized int getFallbacks() {
+		return fallbacks;
+	}
+
+	/**
+	 * Puts the left part of the working image skipped by a narrowed merge back
+	 * onto its result.
+	 *
+	 * The merger may have moved the working image down (when the fragment was
+	 * placed above it), as far as the engine tells from the placement (see
+	 * {@link RegistrationEngine#workingOffset(Placement, int, int)}). The
+	 * position is checked against the first column of the result, as nothing
+	 * else is drawn there.
+	 *
+	 * @param working The full working image.
+	 * @param start   The first column the narrowed merge started at.
+	 * @param merged  The result of the narrowed merge.
+	 * @param offset  Where the cropped working image is in the result.
+	 * @return The full merged image, or null if it cannot be put together, as
+	 *         when the fragment reaches into the skipped part.
+	 */
+	static BufferedImage stitch(BufferedImage working, int start, BufferedImage merged, Point offset) {
+
+		if (offset.x != 0)
+			return null;
+
+		int dy = findOffset(working, start, merged, offset.y);
+
+		if (dy < 0)
+			return null;
+
+		ColorModel cm = merged.getColorModel();
+		BufferedImage result = new BufferedImage(cm,
+				cm.createCompatibleWritableRaster(start + merged.getWidth(),
+						Math.max(dy + working.getHeight(), merged.getHeight())),
+				cm.isAlphaPremultiplied(), null);
+
+		Graphics2D g = result.createGraphics();
+
+		try {
+
+			// Background as the merger left it, if the working image was moved
+			if (dy > 0 || merged.getHeight() > dy + working.getHeight()) {
+				g.setColor(new Color(merged.getRGB(0, dy > 0 ? 0 : merged.getHeight() - 1), true));
+				g.fillRect(0, 0, start, result.getHeight());
+			}
+
+			g.drawImage(working.getSubimage(0, 0, start, working.getHeight()), 0, dy, null);
+			g.drawImage(merged, start, 0, null);
+
+		} finally {
+			g.dispose();
+		}
+
+		return result;
+
+	}
+
+	/**
+	 * Finds the vertical position of the working image column at start in the
+	 * first column of the merged image, a few rows around the predicted one
+	 * (the rotated fragment bounds may be rounded differently). The
+	 * prediction is kept if the column is the same colour all along, as it
+	 * would match anywhere, or if it is found nowhere or more than once.
+	 *
+	 * @return The position, or -1 if the working image does not fit there.
+	 */
+	private static int findOffset(BufferedImage working, int start, BufferedImage merged, int predicted) {
+
+		int height = working.getHeight();
+
+		if (predicted < 0 || predicted + height > merged.getHeight())
+			return -1;
+
+		int[] column = working.getRGB(start, 0, 1, height, null, 0, 1);
+
+		if (uniform(column))
+			return predicted;
+
+		int[] mergedColumn = merged.getRGB(0, 0, 1, merged.getHeight(), null, 0, 1);
+		int found = -1;
+
+		for (int dy = Math.max(0, predicted - SLACK); dy <= predicted + SLACK
+				&& dy + height <= mergedColumn.length; dy++) {
+
+			boolean matches = true;
+
+			for (int y = 0; y < height && matches; y++)
+				matches = column[y] == mergedColumn[y + dy];
+
+			if (matches) {
+
+				if (found >= 0)
+					return predicted;
+
+				found = dy;
+
+			}
+
+		}
+
+		return found >= 0 ? found : predicted;
+
+	}
+
+	private static boolean uniform(int[] column) {
+
+		for (int rgb : column)
+			if (rgb != column[0])
+				return false;
+
+		return true;
+
+	}
+
+}
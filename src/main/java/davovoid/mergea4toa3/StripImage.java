@@ -0,0 +1,297 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Vector;
+
+/**
+ * An image made of full width horizontal strips, which are only produced when
+ * asked for. Image writers read it strip by strip (or row by row), so writing
+ * it does not need any other full size copy of the image.
+ *
+ * @author David
+ *
+ */
+public class StripImage implements RenderedImage {
+
+	/**
+	 * Produces the pixels of a strip of the image.
+	 */
+	public interface StripProducer {
+
+		/**
+		 * Gets the pixels of the rows from y to y+height-1.
+		 *
+		 * @param y      The first row.
+		 * @param height The number of rows.
+		 * @return A raster whose bounds are (0, y, width, height).
+		 */
+		Raster getStrip(int y, int height);
+
+	}
+
+	private final int width, height, stripHeight;
+	private final ColorModel colorModel;
+	private final SampleModel sampleModel;
+	private final StripProducer producer;
+
+	// The last strip produced, as writers reading row by row ask for it again
+	private Raster lastStrip;
+	private int lastStripY = -1;
+
+	/**
+	 * Creates the image.
+	 *
+	 * @param width       The image width.
+	 * @param height      The image height.
+	 * @param stripHeight The rows of every strip (the last one might be
+	 *                    shorter).
+	 * @param colorModel  The color model of the strips.
+	 * @param sampleModel A sample model compatible with the strips.
+	 * @param producer    The producer of the strips.
+	 */
+	public StripImage(int width, int height, int stripHeight, ColorModel colorModel, SampleModel sampleModel,
+			StripProducer producer) {
+
+		this.width = width;
+		this.height = height;
+		this.stripHeight = Math.max(1, Math.min(stripHeight, height));
+		this.colorModel = colorModel;
+		this.sampleModel = sampleModel.createCompatibleSampleModel(width, this.stripHeight);
+		this.producer = producer;
+
+	}
+
+	/**
+	 * Creates a strip view of an image. The strips share the image pixels, so
+	 * no pixel is copied.
+	 *
+	 * @param img         The image.
+	 * @param stripHeight The rows of every strip.
+	 * @param dropAlpha   True to leave the alpha channel out, if any.
+	 * @return The strip image.
+	 */
+	public static StripImage of(BufferedImage img, int stripHeight, boolean dropAlpha) {
+
+		ColorModel cm = img.getColorModel();
+		WritableRaster raster = img.getRaster();
+
+		int[] bands = null; // all of them
+
+		if (dropAlpha && cm.hasAlpha()) {
+
+			// The alpha band is the last one, both for packed and component
+			// images, so the color bands are the first ones
+			bands = new int[cm.getNumColorComponents()];
+
+			for (int i = 0; i < bands.length; i++)
+				bands[i] = i;
+
+			cm = opaqueColorModel(cm, raster.getSampleModel());
+
+		}
+
+		int[] bandList = bands;
+
+		return new StripImage(img.getWidth(), img.getHeight(), stripHeight, cm,
+				bandList == null ? raster.getSampleModel() : raster.getSampleModel().createSubsetSampleModel(bandList),
+				(y, h) -> raster.createChild(0, y, img.getWidth(), h, 0, y, bandList));
+
+	}
+
+	/**
+	 * Gets the color model of the same color components, without alpha.
+	 */
+	private static ColorModel opaqueColorModel(ColorModel cm, SampleModel sm) {
+
+		if (cm instanceof DirectColorModel && sm instanceof SinglePixelPackedSampleModel) {
+
+			DirectColorModel dcm = (DirectColorModel) cm;
+
+			return new DirectColorModel(dcm.getColorSpace(), dcm.getPixelSize() - dcm.getComponentSize(3),
+					dcm.getRedMask(), dcm.getGreenMask(), dcm.getBlueMask(), 0, false, sm.getDataType());
+
+		}
+
+		return new ComponentColorModel(cm.getColorSpace(), false, false, ColorModel.OPAQUE, sm.getDataType());
+
+	}
+
+	public int getStripHeight() {
+		return stripHeight;
+	}
+
+	@Override
+	public Vector<RenderedImage> getSources() {
+		return null;
+	}
+
+	@Override
+	public Object getProperty(String name) {
+		return Image.UndefinedProperty;
+	}
+
+	@Override
+	public String[] getPropertyNames() {
+		return null;
+	}
+
+	@Override
+	public ColorModel getColorModel() {
+		return colorModel;
+	}
+
+	@Override
+	public SampleModel getSampleModel() {
+		return sampleModel;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getMinX() {
+		return 0;
+	}
+
+	@Override
+	public int getMinY() {
+		return 0;
+	}
+
+	@Override
+	public int getNumXTiles() {
+		return 1;
+	}
+
+	@Override
+	public int getNumYTiles() {
+		return (height + stripHeight - 1) / stripHeight;
+	}
+
+	@Override
+	public int getMinTileX() {
+		return 0;
+	}
+
+	@Override
+	public int getMinTileY() {
+		return 0;
+	}
+
+	@Override
+	public int getTileWidth() {
+		return width;
+	}
+
+	@Override
+	public int getTileHeight() {
+		return stripHeight;
+	}
+
+	@Override
+	public int getTileGridXOffset() {
+		return 0;
+	}
+
+	@Override
+	public int getTileGridYOffset() {
+		return 0;
+	}
+
+	@Override
+	public synchronized Raster getTile(int tileX, int tileY) {
+
+		int y = tileY * stripHeight;
+
+		if (y != lastStripY) {
+			lastStrip = producer.getStrip(y, Math.min(stripHeight, height - y));
+			lastStripY = y;
+		}
+
+		return lastStrip;
+
+	}
+
+	/**
+	 * Gets the whole image as a single raster. Avoid it for big images, as it
+	 * is a full size copy.
+	 */
+	@Override
+	public Raster getData() {
+		return getData(new Rectangle(0, 0, width, height));
+	}
+
+	@Override
+	public Raster getData(Rectangle rect) {
+
+		WritableRaster data = Raster.createWritableRaster(sampleModel.createCompatibleSampleModel(rect.width, rect.height), null)
+				.createWritableTranslatedChild(rect.x, rect.y);
+
+		return copyData(data);
+
+	}
+
+	@Override
+	public WritableRaster copyData(WritableRaster raster) {
+
+		if (raster == null)
+			raster = Raster.createWritableRaster(sampleModel.createCompatibleSampleModel(width, height), null);
+
+		Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+
+		if (bounds.isEmpty())
+			return raster;
+
+		// Copy from every strip within the bounds
+		int firstStrip = bounds.y / stripHeight;
+		int lastStrip = (bounds.y + bounds.height - 1) / stripHeight;
+
+		for (int s = firstStrip; s <= lastStrip; s++) {
+
+			Raster strip = getTile(0, s);
+			Rectangle part = strip.getBounds().intersection(bounds);
+
+			raster.setRect(strip.createChild(part.x, part.y, part.width, part.height, part.x, part.y, null));
+
+		}
+
+		return raster;
+
+	}
+
+}
@@ -0,0 +1,169 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Writes merged images strip by strip, so that, apart from the image itself,
+ * writing only needs the memory of a strip. This also allows writing images
+ * with alpha to formats without it (i.e. JPEG or BMP), which
+ * {@code ImageIO.write} refuses, without converting the whole image.
+ *
+ * Composed merges are written without the image itself: every strip is
+ * composed from the fragments when the writer asks for it (see
+ * {@link Compositor#strips(BufferedImage[], Placement[], int)}). JPEG is the
+ * exception, as its writer takes the whole image at once.
+ *
+ * @author David
+ *
+ */
+public class StripImageWriter {
+
+	/**
+	 * Default rows per strip.
+	 */
+	public static final int DEFAULT_STRIP_HEIGHT = 256;
+
+	private StripImageWriter() {
+	}
+
+	/**
+	 * Writes an image using the default strip height.
+	 *
+	 * @param img    The image.
+	 * @param format The image format, as format name or file extension.
+	 * @param file   The output file.
+	 * @throws IOException If there is no writer for the format or the image
+	 *                     could not be written.
+	 */
+	public static void write(BufferedImage img, String format, File file) throws IOException {
+		write(img, format, file, DEFAULT_STRIP_HEIGHT);
+	}
+
+	/**
+	 * Writes an image strip by strip.
+	 *
+	 * @param img         The image.
+	 * @param format      The image format, as format name or file extension.
+	 * @param file        The output file.
+	 * @param stripHeight The rows of every strip.
+	 * @throws IOException If there is no writer for the format or the image
+	 *                     could not be written.
+	 */
+	public static void write(BufferedImage img, String format, File file, int stripHeight) throws IOException {
+
+		ImageWriter writer = writer(format);
+
+		// The JPEG writer asks for the whole image at once, unless it is
+		// made of a single strip, which is not a copy
+		if (isJpeg(writer))
+			stripHeight = img.getHeight();
+
+		// Leave the alpha out if the format does not support it
+		StripImage strips = StripImage.of(img, stripHeight, false);
+
+		if (!writer.getOriginatingProvider().canEncodeImage(ImageTypeSpecifier.createFromRenderedImage(strips)))
+			strips = StripImage.of(img, stripHeight, true);
+
+		write(writer, strips, file);
+
+	}
+
+	/**
+	 * Composes fragments whose placements are known while writing them,
+	 * strip by strip, so that the composed image is never held whole (but
+	 * for JPEG).
+	 *
+	 * @param fragments  The fragments, from left to right or from top to
+	 *                   bottom.
+	 * @param placements Where each fragment is placed, all in the same
+	 *                   coordinates.
+	 * @param format     The image format, as format name or file extension.
+	 * @param file       The output file.
+	 * @throws IOException If there is no writer for the format or the image
+	 *                     could not be written.
+	 */
+	public static void write(BufferedImage[] fragments, Placement[] placements, String format, File file)
+			throws IOException {
+
+		ImageWriter writer = writer(format);
+
+		// A single strip, as the JPEG writer asks for the whole image at once
+		int stripHeight = isJpeg(writer) ? Integer.MAX_VALUE : DEFAULT_STRIP_HEIGHT;
+
+		write(writer, Compositor.strips(fragments, placements, stripHeight), file);
+
+	}
+
+	/**
+	 * Gets a writer for the format.
+	 */
+	private static ImageWriter writer(String format) throws IOException {
+
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(format);
+
+		if (!writers.hasNext())
+			writers = ImageIO.getImageWritersByFormatName(format);
+
+		if (!writers.hasNext())
+			throw new IOException("No image writer available for format \"" + format + "\"");
+
+		return writers.next();
+
+	}
+
+	private static boolean isJpeg(ImageWriter writer) {
+		return Arrays.asList(writer.getOriginatingProvider().getFormatNames()).contains("jpeg");
+	}
+
+	/**
+	 * Writes the strips with the writer, which is disposed of.
+	 */
+	private static void write(ImageWriter writer, StripImage strips, File file) throws IOException {
+
+		// As ImageIO.write, replace any existing file
+		Files.deleteIfExists(file.toPath());
+
+		try (ImageOutputStream ios = ImageIO.createImageOutputStream(file)) {
+
+			if (ios == null)
+				throw new IOException("File could not be created: " + file);
+
+			writer.setOutput(ios);
+			writer.write(null, new IIOImage(strips, null, null), writer.getDefaultWriteParam());
+
+		} finally {
+			writer.dispose();
+		}
+
+	}
+
+}
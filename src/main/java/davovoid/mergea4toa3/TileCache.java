@@ -0,0 +1,295 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Least recently used cache of scaled tiles of images, shared by all the
+ * image panels. Tiles are square pieces of an image scaled to the size it is
+ * displayed, rendered from the nearest level of its {@link ImagePyramid}, so
+ * repainting only draws the cached tiles, whatever the image size is.
+ *
+ * Painting should not wait for missing tiles: {@link #getCachedTile} only
+ * looks them up, and {@link #renderLater} renders them in the background.
+ *
+ * @author David
+ *
+ */
+public class TileCache {
+
+	/**
+	 * Side of the tiles, in device pixels.
+	 */
+	public static final int TILE_SIZE = 256;
+
+	private static final TileCache SHARED = new TileCache(64L << 20);
+
+	private final long maxBytes;
+	private long bytes = 0;
+
+	// Access ordered, so the first one is the least recently used
+	private final LinkedHashMap<Key, BufferedImage> tiles = new LinkedHashMap<>(64, 0.75f, true);
+
+	// Tiles being rendered in the background, so they are requested once
+	private final Set<Key> pending = new HashSet<>();
+
+	/**
+	 * Creates a cache.
+	 * @param maxBytes The memory the tiles may take, at most.
+	 */
+	public TileCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Gets the cache shared by the image panels, of 64 MiB.
+	 * @return The shared cache.
+	 */
+	public static TileCache shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Gets a tile of the image scaled, rendering it if not cached.
+	 *
+	 * @param pyramid The pyramid of the image.
+	 * @param scale   The scale, relative to the image size.
+	 * @param tileX   The tile column.
+	 * @param tileY   The tile row.
+	 * @return The tile, whose top-left pixel is (tileX, tileY) *
+	 *         {@code TILE_SIZE} of the scaled image. Tiles on the right and
+	 *         bottom edges are smaller.
+	 */
+	public BufferedImage getTile(ImagePyramid pyramid, double scale, int tileX, int tileY) {
+
+		Key key = new Key(pyramid, scale, tileX, tileY);
+
+		synchronized (this) {
+
+			BufferedImage tile = tiles.get(key);
+
+			if (tile != null)
+				return tile;
+
+		}
+
+		BufferedImage tile = render(pyramid, scale, tileX, tileY);
+
+		synchronized (this) {
+
+			if (tiles.put(key, tile) == null)
+				bytes += bytesOf(tile);
+
+			evict();
+
+		}
+
+		return tile;
+
+	}
+
+	/**
+	 * Gets a tile of the image scaled, only if cached.
+	 *
+	 * @param pyramid The pyramid of the image.
+	 * @param scale   The scale, relative to the image size.
+	 * @param tileX   The tile column.
+	 * @param tileY   The tile row.
+	 * @return The tile (see {@link #getTile}), or null if not cached.
+	 */
+	public synchronized BufferedImage getCachedTile(ImagePyramid pyramid, double scale, int tileX, int tileY) {
+		return tiles.get(new Key(pyramid, scale, tileX, tileY));
+	}
+
+	/**
+	 * Renders a tile in the background, unless already cached or being
+	 * rendered. Once it is cached, {@code rendered} is run (on the executor
+	 * thread).
+	 *
+	 * @param pyramid  The pyramid of the image.
+	 * @param scale    The scale, relative to the image size.
+	 * @param tileX    The tile column.
+	 * @param tileY    The tile row.
+	 * @param executor Where to render it.
+	 * @param wanted   Checked before rendering: if false by then (i.e. the
+	 *                 image was resized again meanwhile), it is not rendered.
+	 * @param rendered Run once the tile is cached.
+	 */
+	public void renderLater(ImagePyramid pyramid, double scale, int tileX, int tileY, Executor executor,
+			BooleanSupplier wanted, Runnable rendered) {
+
+		Key key = new Key(pyramid, scale, tileX, tileY);
+
+		synchronized (this) {
+
+			if (tiles.containsKey(key) || !pending.add(key))
+				return;
+
+		}
+
+		executor.execute(() -> {
+
+			try {
+
+				if (!wanted.getAsBoolean())
+					return;
+
+				getTile(pyramid, scale, tileX, tileY);
+
+			} finally {
+
+				synchronized (this) {
+					pending.remove(key);
+				}
+
+			}
+
+			rendered.run();
+
+		});
+
+	}
+
+	/**
+	 * Removes all the tiles of an image, which is no longer displayed.
+	 * @param pyramid The pyramid of the image.
+	 */
+	public synchronized void invalidate(ImagePyramid pyramid) {
+
+		Iterator<Map.Entry<Key, BufferedImage>> it = tiles.entrySet().iterator();
+
+		while (it.hasNext()) {
+
+			Map.Entry<Key, BufferedImage> entry = it.next();
+
+			if (entry.getKey().pyramid == pyramid) {
+				bytes -= bytesOf(entry.getValue());
+				it.remove();
+			}
+
+		}
+
+	}
+
+	/**
+	 * Removes the least recently used tiles until within the memory allowed.
+	 */
+	private void evict() {
+
+		Iterator<BufferedImage> it = tiles.values().iterator();
+
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= bytesOf(it.next());
+			it.remove();
+		}
+
+	}
+
+	private static long bytesOf(BufferedImage tile) {
+		return 4L * tile.getWidth() * tile.getHeight();
+	}
+
+	/**
+	 * Renders a tile from the nearest pyramid level, which is at most twice as
+	 * big, so bilinear interpolation is enough.
+	 */
+	private static BufferedImage render(ImagePyramid pyramid, double scale, int tileX, int tileY) {
+
+		BufferedImage source = pyramid.getSource();
+
+		int scaledWidth = (int) Math.ceil(source.getWidth() * scale);
+		int scaledHeight = (int) Math.ceil(source.getHeight() * scale);
+
+		int width = Math.max(1, Math.min(TILE_SIZE, scaledWidth - tileX * TILE_SIZE));
+		int height = Math.max(1, Math.min(TILE_SIZE, scaledHeight - tileY * TILE_SIZE));
+
+		int level = pyramid.levelFor(scale);
+		BufferedImage levelImg = pyramid.getLevel(level);
+
+		BufferedImage tile = new BufferedImage(width, height,
+				source.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+
+		Graphics2D g = tile.createGraphics();
+
+		try {
+
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+
+			AffineTransform transform = AffineTransform.getTranslateInstance(-tileX * TILE_SIZE, -tileY * TILE_SIZE);
+			transform.scale(scale * source.getWidth() / levelImg.getWidth(), scale * source.getHeight() / levelImg.getHeight());
+
+			g.drawImage(levelImg, transform, null);
+
+		} finally {
+			g.dispose();
+		}
+
+		return tile;
+
+	}
+
+	/**
+	 * Identifies a tile: the image, its scale and the tile position.
+	 */
+	private static class Key {
+
+		private final ImagePyramid pyramid;
+		private final double scale;
+		private final int tileX, tileY;
+
+		Key(ImagePyramid pyramid, double scale, int tileX, int tileY) {
+			this.pyramid = pyramid;
+			this.scale = scale;
+			this.tileX = tileX;
+			this.tileY = tileY;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+
+			if (!(obj instanceof Key))
+				return false;
+
+			Key other = (Key) obj;
+
+			return pyramid == other.pyramid && Double.compare(scale, other.scale) == 0 && tileX == other.tileX
+					&& tileY == other.tileY;
+
+		}
+
+		@Override
+		public int hashCode() {
+			return ((System.identityHashCode(pyramid) * 31 + Double.hashCode(scale)) * 31 + tileX) * 31 + tileY;
+		}
+
+	}
+
+}
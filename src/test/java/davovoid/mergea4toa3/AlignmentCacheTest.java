@@ -0,0 +1,146 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link AlignmentCache}: keys, entries with and without the merged
+ * image, and the least recently used ones removed first.
+ *
+ * @author David
+ *
+ */
+public class AlignmentCacheTest extends TestCase {
+
+	private File folder;
+
+	@Override
+	protected void setUp() throws IOException {
+		folder = Files.createTempDirectory("mergea4toa3-cache").toFile();
+	}
+
+	@Override
+	protected void tearDown() {
+
+		for (File file : folder.listFiles())
+			file.delete();
+
+		folder.delete();
+
+	}
+
+	public void testKey() {
+
+		BufferedImage a = new BufferedImage(20, 10, BufferedImage.TYPE_INT_RGB);
+		BufferedImage b = new BufferedImage(20, 10, BufferedImage.TYPE_INT_RGB);
+
+		assertEquals(AlignmentCache.key("parallel", a, b), AlignmentCache.key("parallel", a, b));
+		assertFalse(AlignmentCache.key("parallel", a, b).equals(AlignmentCache.key("sequential", a, b)));
+
+		String before = AlignmentCache.key("parallel", a, b);
+		b.setRGB(19, 9, 1);
+
+		assertFalse(before.equals(AlignmentCache.key("parallel", a, b)));
+
+		// Same pixels, another size
+		assertFalse(AlignmentCache.key("parallel", new BufferedImage(10, 20, BufferedImage.TYPE_INT_RGB))
+				.equals(AlignmentCache.key("parallel", new BufferedImage(20, 10, BufferedImage.TYPE_INT_RGB))));
+
+	}
+
+	public void testPlacementsOnly() throws IOException {
+
+		AlignmentCache cache = new AlignmentCache(folder, 1 << 20);
+		Placement[] placements = { new Placement(50, -7, 0.25, 5), new Placement(100, 3, -0.5, 6) };
+
+		assertNull(cache.get("entry-a"));
+
+		cache.put("entry-a", placements, null);
+
+		AlignmentCache.Entry entry = cache.get("entry-a");
+
+		assertNull(entry.getMerged());
+		assertEquals(2, entry.getPlacements().length);
+		assertEquals(-7, entry.getPlacements()[0].getY());
+		assertEquals(-0.5, entry.getPlacements()[1].getAngle(), 0);
+		assertEquals(6.0, entry.getPlacements()[1].getDeviation(), 0);
+
+		assertEquals(1, folder.listFiles().length);
+
+	}
+
+	public void testWithImage() throws IOException {
+
+		AlignmentCache cache = new AlignmentCache(folder, 1 << 20, true);
+		BufferedImage merged = new BufferedImage(30, 20, BufferedImage.TYPE_INT_RGB);
+		merged.setRGB(5, 5, 0x123456);
+
+		cache.put("entry-a", new Placement[] { new Placement(10, 0, 0, 5) }, merged);
+
+		BufferedImage read = cache.get("entry-a").getMerged();
+
+		assertEquals(30, read.getWidth());
+		assertEquals(0xff123456, read.getRGB(5, 5));
+
+		// Not read unless images are kept
+		AlignmentCache.Entry placementsOnly = new AlignmentCache(folder, 1 << 20).get("entry-a");
+
+		assertNull(placementsOnly.getMerged());
+		assertEquals(10, placementsOnly.getPlacements()[0].getX());
+
+		// Its image is gone with it
+		cache.put("entry-a", new Placement[] { new Placement(10, 0, 0, 5) }, null);
+
+		assertNull(cache.get("entry-a").getMerged());
+		assertEquals(1, folder.listFiles().length);
+
+	}
+
+	public void testEvictsLeastRecentlyUsed() throws IOException {
+
+		Placement[] placements = { new Placement(10, 0, 0, 5) };
+
+		new AlignmentCache(folder, 1 << 20).put("entry-a", placements, null);
+
+		long entryBytes = new File(folder, "entry-a.properties").length();
+		AlignmentCache cache = new AlignmentCache(folder, 2 * entryBytes + entryBytes / 2);
+
+		cache.put("entry-b", placements, null);
+
+		new File(folder, "entry-a.properties").setLastModified(System.currentTimeMillis() - 20000);
+		new File(folder, "entry-b.properties").setLastModified(System.currentTimeMillis() - 10000);
+
+		// Used, so newer than b
+		assertNotNull(cache.get("entry-a"));
+
+		cache.put("entry-c", placements, null);
+
+		assertNotNull(cache.get("entry-a"));
+		assertNull(cache.get("entry-b"));
+		assertNotNull(cache.get("entry-c"));
+
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BufferedImage;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link Arrangement}: fragments stacked vertically transposed to be
+ * merged from left to right, and their placements transposed back.
+ *
+ * @author David
+ *
+ */
+public class ArrangementTest extends TestCase {
+
+	public void testHorizontalUnchanged() {
+
+		BufferedImage img = new BufferedImage(30, 20, BufferedImage.TYPE_INT_RGB);
+		Placement placement = new Placement(10, -5, 0.25, 4);
+
+		assertSame(img, Arrangement.HORIZONTAL.toRow(img));
+		assertSame(img, Arrangement.HORIZONTAL.fromRow(img));
+		assertSame(placement, Arrangement.HORIZONTAL.fromRow(placement));
+
+	}
+
+	public void testVerticalImageTransposed() {
+
+		BufferedImage img = new BufferedImage(30, 20, BufferedImage.TYPE_INT_RGB);
+		img.setRGB(25, 3, 0x123456);
+
+		BufferedImage row = Arrangement.VERTICAL.toRow(img);
+
+		assertEquals(20, row.getWidth());
+		assertEquals(30, row.getHeight());
+		assertEquals(0xff123456, row.getRGB(3, 25));
+
+		BufferedImage back = Arrangement.VERTICAL.fromRow(row);
+
+		assertEquals(30, back.getWidth());
+		assertEquals(0xff123456, back.getRGB(25, 3));
+
+	}
+
+	public void testVerticalPlacementTransposed() {
+
+		Placement placement = Arrangement.VERTICAL.fromRow(new Placement(10, -5, 0.25, 4));
+
+		assertEquals(-5, placement.getX());
+		assertEquals(10, placement.getY());
+		assertEquals(-0.25, placement.getAngle(), 0);
+		assertEquals(4.0, placement.getDeviation(), 0);
+
+		// Transposing mirrors, so a clockwise rotation turns anticlockwise,
+		// but no rotation stays 0, not -0
+		double none = Arrangement.VERTICAL.fromRow(new Placement(10, -5, 0, 4)).getAngle();
+
+		assertEquals(0, Double.compare(0.0, none));
+
+		assertNull(Arrangement.VERTICAL.fromRow((Placement) null));
+
+	}
+
+	public void testVerticalPlacementMatchesTransposedPixels() {
+
+		// A pixel placed from left to right lands transposed when placed back
+		Placement row = new Placement(40, 7, 30, 4);
+		Placement column = Arrangement.VERTICAL.fromRow(row);
+
+		double theta = Math.toRadians(row.getAngle()), back = Math.toRadians(column.getAngle());
+		int u = 12, v = 5;
+
+		// (u, v) in the row fragment is (v, u) in the column one
+		double x = row.getX() + Math.cos(theta) * u - Math.sin(theta) * v;
+		double y = row.getY() + Math.sin(theta) * u + Math.cos(theta) * v;
+
+		assertEquals(y, column.getX() + Math.cos(back) * v - Math.sin(back) * u, 1e-9);
+		assertEquals(x, column.getY() + Math.sin(back) * v + Math.cos(back) * u, 1e-9);
+
+	}
+
+}
@@ -0,0 +1,194 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link Compositor}: canvas bounds, which fragment is kept where they
+ * overlap, the leading columns left out, rotated fragments, and the same
+ * pixels composed strip by strip.
+ *
+ * @author David
+ *
+ */
+public class CompositorTest extends TestCase {
+
+	private static final int RED = 0xffff0000, BLUE = 0xff0000ff, WHITE = 0xffffffff;
+
+	public void testBounds() {
+
+		BufferedImage[] fragments = { filled(100, 50, Color.RED), filled(100, 50, Color.BLUE) };
+		Placement[] placements = { new Placement(0, 0, 0, Double.NaN), new Placement(60, -10, 0, 4) };
+
+		assertEquals(new Rectangle(0, -10, 160, 60), Compositor.bounds(fragments, placements));
+
+	}
+
+	public void testFirstFragmentKeptOnOverlap() {
+
+		BufferedImage[] fragments = { filled(100, 50, Color.RED), filled(100, 50, Color.BLUE) };
+		Placement[] placements = { new Placement(0, 0, 0, Double.NaN), new Placement(60, 20, 0, 4) };
+
+		BufferedImage composed = Compositor.compose(fragments, placements);
+
+		assertEquals(160, composed.getWidth());
+		assertEquals(70, composed.getHeight());
+
+		assertEquals(RED, composed.getRGB(70, 30));
+		assertEquals(BLUE, composed.getRGB(120, 30));
+
+		// Covered by none
+		assertEquals(WHITE, composed.getRGB(10, 60));
+		assertEquals(WHITE, composed.getRGB(150, 5));
+
+	}
+
+	public void testLeadingColumnsLeftOut() {
+
+		// As the phase correlation engine composes: the fragment first, but
+		// without its shadowed left part
+		BufferedImage[] fragments = { filled(100, 50, Color.BLUE), filled(100, 50, Color.RED) };
+		Placement[] placements = { new Placement(60, 0, 0, 4), new Placement(0, 0, 0, Double.NaN) };
+
+		BufferedImage composed = Compositor.compose(fragments, placements, new Rectangle(0, 0, 160, 50),
+				new int[] { 20, 0 });
+
+		assertEquals(RED, composed.getRGB(65, 25));
+		assertEquals(RED, composed.getRGB(79, 25));
+		assertEquals(BLUE, composed.getRGB(80, 25));
+		assertEquals(BLUE, composed.getRGB(150, 25));
+
+	}
+
+	public void testUnrotatedCopiedExactly() {
+
+		// Taller than a band, so several are filled
+		BufferedImage fragment = new BufferedImage(30, 3 * Compositor.BAND_HEIGHT + 5, BufferedImage.TYPE_INT_RGB);
+
+		for (int y = 0; y < fragment.getHeight(); y++)
+			for (int x = 0; x < fragment.getWidth(); x++)
+				fragment.setRGB(x, y, (x << 16) | (y << 8) | ((x * y) & 0xff));
+
+		BufferedImage composed = Compositor.compose(new BufferedImage[] { fragment },
+				new Placement[] { new Placement(7, -3, 0, Double.NaN) });
+
+		assertEquals(fragment.getWidth(), composed.getWidth());
+		assertEquals(fragment.getHeight(), composed.getHeight());
+
+		for (int y = 0; y < fragment.getHeight(); y++)
+			for (int x = 0; x < fragment.getWidth(); x++)
+				assertEquals(fragment.getRGB(x, y), composed.getRGB(x, y));
+
+	}
+
+	public void testRotated() {
+
+		BufferedImage fragment = filled(40, 20, Color.WHITE);
+		Graphics2D g = fragment.createGraphics();
+		g.setColor(Color.BLUE);
+		g.fillRect(28, 3, 5, 5);
+		g.dispose();
+
+		// Fragment (u, v) goes to (-v, u)
+		Placement placement = new Placement(0, 0, 90, Double.NaN);
+		BufferedImage composed = Compositor.compose(new BufferedImage[] { fragment }, new Placement[] { placement });
+
+		Rectangle bounds = placement.bounds(40, 20);
+
+		assertEquals(20, composed.getWidth());
+		assertEquals(40, composed.getHeight());
+
+		assertEquals(BLUE, composed.getRGB(-5 - bounds.x, 30 - bounds.y));
+		assertEquals(WHITE, composed.getRGB(-15 - bounds.x, 30 - bounds.y));
+		assertEquals(WHITE, composed.getRGB(-5 - bounds.x, 10 - bounds.y));
+
+	}
+
+	public void testStripsSameAsCanvas() throws IOException {
+
+		BufferedImage[] fragments = { gradient(100, 150, 0), gradient(100, 150, 7) };
+		Placement[] placements = { new Placement(0, 0, 0, Double.NaN), new Placement(60, -12, 0.8, 4) };
+
+		BufferedImage composed = Compositor.compose(fragments, placements);
+		int width = composed.getWidth(), height = composed.getHeight();
+		int[] expected = composed.getRGB(0, 0, width, height, null, 0, width);
+
+		// Strips not made of whole bands
+		StripImage strips = Compositor.strips(fragments, placements, 50);
+
+		assertEquals(width, strips.getWidth());
+		assertEquals(height, strips.getHeight());
+
+		BufferedImage read = new BufferedImage(strips.getColorModel(), strips.copyData(null), false, null);
+
+		assertTrue(Arrays.equals(expected, read.getRGB(0, 0, width, height, null, 0, width)));
+
+		// And written, strip by strip
+		File file = Files.createTempFile("mergea4toa3-composed", ".png").toFile();
+
+		try {
+
+			StripImageWriter.write(fragments, placements, "png", file);
+			BufferedImage written = ImageIO.read(file);
+
+			assertTrue(Arrays.equals(expected, written.getRGB(0, 0, width, height, null, 0, width)));
+
+		} finally {
+			file.delete();
+		}
+
+	}
+
+	private static BufferedImage gradient(int width, int height, int seed) {
+
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				img.setRGB(x, y, (x + seed) << 16 | y << 8 | ((x * y + seed) & 0xff));
+
+		return img;
+
+	}
+
+	private static BufferedImage filled(int width, int height, Color color) {
+
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = img.createGraphics();
+		g.setColor(color);
+		g.fillRect(0, 0, width, height);
+		g.dispose();
+
+		return img;
+
+	}
+
+}
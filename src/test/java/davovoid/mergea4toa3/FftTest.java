@@ -0,0 +1,121 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link Fft} against the discrete Fourier transform by definition.
+ *
+ * @author David
+ *
+ */
+public class FftTest extends TestCase {
+
+	private static final double EPSILON = 1e-9;
+
+	public void testMatchesDefinition() {
+
+		int width = 8, height = 4;
+		Random random = new Random(1);
+
+		double[] re = new double[width * height], im = new double[re.length];
+
+		for (int p = 0; p < re.length; p++) {
+			re[p] = random.nextDouble();
+			im[p] = random.nextDouble();
+		}
+
+		double[] expectedRe = new double[re.length], expectedIm = new double[re.length];
+
+		for (int v = 0; v < height; v++)
+			for (int u = 0; u < width; u++)
+				for (int y = 0; y < height; y++)
+					for (int x = 0; x < width; x++) {
+
+						double angle = -2 * Math.PI * ((double) u * x / width + (double) v * y / height);
+						double cos = Math.cos(angle), sin = Math.sin(angle);
+						int p = y * width + x;
+
+						expectedRe[v * width + u] += re[p] * cos - im[p] * sin;
+						expectedIm[v * width + u] += re[p] * sin + im[p] * cos;
+
+					}
+
+		Fft.transform(re, im, width, height, false);
+
+		for (int p = 0; p < re.length; p++) {
+			assertEquals(expectedRe[p], re[p], EPSILON);
+			assertEquals(expectedIm[p], im[p], EPSILON);
+		}
+
+	}
+
+	public void testInverse() {
+
+		int width = 16, height = 32;
+		Random random = new Random(2);
+
+		double[] re = new double[width * height], im = new double[re.length];
+
+		for (int p = 0; p < re.length; p++)
+			re[p] = random.nextDouble() * 255;
+
+		double[] original = re.clone();
+
+		Fft.transform(re, im, width, height, false);
+		Fft.transform(re, im, width, height, true);
+
+		for (int p = 0; p < re.length; p++) {
+			assertEquals(original[p], re[p], EPSILON);
+			assertEquals(0, im[p], EPSILON);
+		}
+
+	}
+
+	public void testImpulse() {
+
+		int width = 4, height = 2;
+		double[] re = new double[width * height], im = new double[re.length];
+		re[0] = 1;
+
+		Fft.transform(re, im, width, height, false);
+
+		// Flat spectrum
+		for (int p = 0; p < re.length; p++) {
+			assertEquals(1, re[p], EPSILON);
+			assertEquals(0, im[p], EPSILON);
+		}
+
+	}
+
+	public void testOneByOne() {
+
+		double[] re = { 3 }, im = { 2 };
+
+		Fft.transform(re, im, 1, 1, false);
+
+		assertEquals(3, re[0], 0);
+		assertEquals(2, im[0], 0);
+
+	}
+
+}
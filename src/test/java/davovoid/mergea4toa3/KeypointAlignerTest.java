@@ -0,0 +1,64 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BufferedImage;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link KeypointAligner}: the estimate of synthetic fragments is
+ * close to where they are, and there is none without corners to match.
+ *
+ * @author David
+ *
+ */
+public class KeypointAlignerTest extends TestCase {
+
+	// In pixels at 75 dpi, and in degrees
+	private static final double POSITION_TOLERANCE = 3, ANGLE_TOLERANCE = 0.1;
+
+	public void testEstimatesCenterFragment() {
+
+		for (long seed = 1; seed <= 4; seed++) {
+
+			SyntheticTriplet triplet = SyntheticTriplet.generate(75, seed);
+
+			Placement expected = triplet.getCenterPlacement();
+			Placement estimate = KeypointAligner.align(triplet.getLeft(), triplet.getCenter());
+
+			assertNotNull("No estimate for seed " + seed, estimate);
+			assertEquals("x for seed " + seed, expected.getX(), estimate.getX(), POSITION_TOLERANCE);
+			assertEquals("y for seed " + seed, expected.getY(), estimate.getY(), POSITION_TOLERANCE);
+			assertEquals("angle for seed " + seed, expected.getAngle(), estimate.getAngle(), ANGLE_TOLERANCE);
+
+		}
+
+	}
+
+	public void testNoEstimateWithoutCorners() {
+
+		BufferedImage working = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+		BufferedImage fragment = new BufferedImage(300, 300, BufferedImage.TYPE_INT_RGB);
+
+		assertNull(KeypointAligner.align(working, fragment));
+
+	}
+
+}
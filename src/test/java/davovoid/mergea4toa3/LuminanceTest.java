@@ -0,0 +1,110 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link Luminance}: reading, reducing while reading and sampling.
+ *
+ * @author David
+ *
+ */
+public class LuminanceTest extends TestCase {
+
+	public void testReducedWhileReading() {
+
+		for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_GRAY }) {
+
+			BufferedImage img = random(53, 38, type);
+
+			for (int scale = 1; scale <= 4; scale++) {
+
+				Luminance read = Luminance.of(img, 3, 2, 47, 35).reduce(scale);
+				Luminance streamed = Luminance.of(img, 3, 2, 47, 35, scale);
+
+				assertEquals(read.width, streamed.width);
+				assertEquals(read.height, streamed.height);
+				assertTrue("Type " + type + ", scale " + scale, Arrays.equals(read.values, streamed.values));
+
+			}
+
+		}
+
+	}
+
+	public void testRgbLuminance() {
+
+		BufferedImage img = new BufferedImage(2, 1, BufferedImage.TYPE_INT_RGB);
+		img.setRGB(0, 0, 0xffffff);
+		img.setRGB(1, 0, 0x00ff00);
+
+		Luminance luminance = Luminance.of(img, 0, 0, 2, 1);
+
+		assertEquals(255, luminance.values[0] & 0xff);
+		// 0.587 of 255 in 1/256 units
+		assertEquals(149, luminance.values[1] & 0xff);
+
+	}
+
+	public void testSample() {
+
+		Luminance luminance = new Luminance(new byte[] { 0, 100, (byte) 200, (byte) 255 }, 2, 2);
+
+		assertEquals(0, luminance.sample(0, 0), 1e-9);
+		assertEquals(50, luminance.sample(0.5, 0), 1e-9);
+		assertEquals(138.75, luminance.sample(0.5, 0.5), 1e-9);
+		assertEquals(255, luminance.sample(1, 1), 1e-9);
+
+	}
+
+	public void testSampleSinglePixelSide() {
+
+		Luminance column = new Luminance(new byte[] { 0, 100, (byte) 200 }, 1, 3);
+
+		assertEquals(150, column.sample(0, 1.5), 1e-9);
+		assertEquals(200, column.sample(0, 2), 1e-9);
+
+		Luminance row = new Luminance(new byte[] { 0, 100, (byte) 200 }, 3, 1);
+
+		assertEquals(50, row.sample(0.5, 0), 1e-9);
+		assertEquals(200, row.sample(2, 0), 1e-9);
+
+		assertEquals(42, new Luminance(new byte[] { 42 }, 1, 1).sample(0, 0), 1e-9);
+
+	}
+
+	private static BufferedImage random(int width, int height, int type) {
+
+		BufferedImage img = new BufferedImage(width, height, type);
+		Random random = new Random(width * height);
+
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				img.setRGB(x, y, random.nextInt(0x1000000));
+
+		return img;
+
+	}
+
+}
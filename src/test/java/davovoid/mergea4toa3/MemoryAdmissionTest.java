@@ -0,0 +1,196 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import davovoid.mergea4toa3.MemoryAdmission.Footprint;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link MemoryAdmission}: jobs admitted while they fit, big jobs run
+ * alone, arrival order kept, and the peak memory predictions.
+ *
+ * @author David
+ *
+ */
+public class MemoryAdmissionTest extends TestCase {
+
+	// Long enough for a blocked thread to have been admitted if it could
+	private static final long WAIT_MILLIS = 200;
+
+	public void testAdmitsWhileFitting() throws InterruptedException {
+
+		MemoryAdmission admission = new MemoryAdmission(100);
+
+		assertFalse(admission.acquire(40));
+		assertFalse(admission.acquire(60));
+
+	}
+
+	public void testWaitsUntilReleased() throws InterruptedException {
+
+		MemoryAdmission admission = new MemoryAdmission(100);
+		admission.acquire(70);
+
+		Acquirer second = new Acquirer(admission, 50);
+
+		assertFalse("Admitted over the budget", second.admitted.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+
+		admission.release(70);
+
+		assertTrue("Not admitted once released", second.admitted.await(5, TimeUnit.SECONDS));
+		assertFalse(second.alone.get());
+
+	}
+
+	public void testBigJobRunsAlone() throws InterruptedException {
+
+		MemoryAdmission admission = new MemoryAdmission(100);
+		admission.acquire(10);
+
+		Acquirer big = new Acquirer(admission, 150);
+
+		assertFalse("Admitted with another job running", big.admitted.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+
+		admission.release(10);
+
+		assertTrue("Not admitted once alone", big.admitted.await(5, TimeUnit.SECONDS));
+		assertTrue(big.alone.get());
+
+	}
+
+	public void testKeepsArrivalOrder() throws InterruptedException {
+
+		MemoryAdmission admission = new MemoryAdmission(100);
+		admission.acquire(60);
+
+		Acquirer big = new Acquirer(admission, 80);
+		big.awaitBlocked();
+
+		// Would fit, but arrived after the big one
+		Acquirer small = new Acquirer(admission, 10);
+		assertFalse("Admitted before an earlier job", small.admitted.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+
+		admission.release(60);
+
+		assertTrue(big.admitted.await(5, TimeUnit.SECONDS));
+		assertTrue(small.admitted.await(5, TimeUnit.SECONDS));
+
+	}
+
+	public void testInterruptedWaitLetsNextJobIn() throws InterruptedException {
+
+		MemoryAdmission admission = new MemoryAdmission(100);
+		admission.acquire(60);
+
+		Acquirer big = new Acquirer(admission, 80);
+		big.awaitBlocked();
+
+		Acquirer small = new Acquirer(admission, 10);
+
+		assertFalse(small.admitted.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+
+		big.thread.interrupt();
+
+		assertTrue("Blocked by an interrupted job", small.admitted.await(5, TimeUnit.SECONDS));
+		assertFalse(big.admitted.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+
+	}
+
+	public void testFootprintBytes() {
+
+		assertEquals(300L * 200 * 3, new Footprint(300, 200, 24).getBytes());
+
+		// Bit packed rows are rounded up to whole bytes
+		assertEquals(2L * 10, new Footprint(9, 10, 1).getBytes());
+
+		assertEquals(24, Footprint.of(new BufferedImage(4, 4, BufferedImage.TYPE_3BYTE_BGR)).getBitsPerPixel());
+		assertEquals(8, Footprint.of(new BufferedImage(4, 4, BufferedImage.TYPE_BYTE_GRAY)).getBitsPerPixel());
+		assertEquals(1, Footprint.of(new BufferedImage(4, 4, BufferedImage.TYPE_BYTE_BINARY)).getBitsPerPixel());
+
+	}
+
+	public void testPeakBytes() {
+
+		Footprint a = new Footprint(100, 200, 8), b = new Footprint(100, 300, 8);
+
+		// Inputs, and the working image before and after, plus the search
+		long working = 200L * 300 * 4;
+		long expected = (long) ((a.getBytes() + b.getBytes() + 2 * working) * 1.25);
+
+		assertEquals(expected, MemoryAdmission.estimatePeakBytes(a, b));
+		assertEquals((long) (2 * working * 1.25), MemoryAdmission.estimatePeakBytes(false, a, b));
+
+		// The single pair, with its search, is bigger than the canvas here
+		assertEquals(a.getBytes() + b.getBytes() + (long) (working * 1.25),
+				MemoryAdmission.estimateComposedPeakBytes(true, a, b));
+
+		// Every pair is searched on its own
+		Footprint c = new Footprint(100, 300, 8);
+		assertEquals(3 * c.getBytes() + (long) (2 * working * 1.25),
+				MemoryAdmission.estimateComposedPeakBytes(true, c, c, c));
+
+	}
+
+	/**
+	 * Acquires memory on its own thread.
+	 */
+	private static class Acquirer {
+
+		final CountDownLatch admitted = new CountDownLatch(1);
+		final AtomicBoolean alone = new AtomicBoolean();
+		final Thread thread;
+
+		Acquirer(MemoryAdmission admission, long bytes) {
+
+			thread = new Thread(() -> {
+
+				try {
+
+					alone.set(admission.acquire(bytes));
+					admitted.countDown();
+
+				} catch (InterruptedException e) {
+					// Not admitted
+				}
+
+			});
+
+			thread.setDaemon(true);
+			thread.start();
+
+		}
+
+		/**
+		 * Waits until the thread is waiting for its turn.
+		 */
+		void awaitBlocked() throws InterruptedException {
+
+			while (thread.getState() != Thread.State.WAITING)
+				Thread.sleep(1);
+
+		}
+
+	}
+
+}
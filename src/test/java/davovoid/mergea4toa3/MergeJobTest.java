@@ -0,0 +1,362 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import davovoid.libmergea4toa3.A3MergerStudyEvent;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link MergeJob}: the placements found, with an engine reporting
+ * given ones instead of searching, composed merges written strip by strip,
+ * and the jobs read from manifests.
+ *
+ * @author David
+ *
+ */
+public class MergeJobTest extends TestCase {
+
+	/**
+	 * Reports the given placement of every fragment, in working image
+	 * coordinates, and moves the working image as the library merger does.
+	 */
+	static class FixedEngine implements RegistrationEngine {
+
+		private final Map<BufferedImage, Placement> placements = new IdentityHashMap<>();
+
+		/**
+		 * @param fragments  The fragments of the job.
+		 * @param placements The placement of every fragment but the first one.
+		 */
+		FixedEngine(BufferedImage[] fragments, Placement... placements) {
+
+			for (int f = 0; f < placements.length; f++)
+				this.placements.put(fragments[f + 1], placements[f]);
+
+		}
+
+		@Override
+		public String getName() {
+			return "fixed";
+		}
+
+		@Override
+		public BufferedImage mergeOnRight(BufferedImage working, BufferedImage fragment, A3MergerStudyEvent event) {
+
+			Placement placement = placements.get(fragment);
+
+			event.updateStudyProgress(1, 1, 1, 0, working.getWidth(), 0, working.getHeight(), placement.getX(),
+					placement.getY(), placement.getAngle(), placement.getX(), placement.getY(), placement.getAngle(),
+					placement.getDeviation());
+
+			return Compositor.compose(new BufferedImage[] { working, fragment },
+					new Placement[] { new Placement(0, 0, 0, Double.NaN), placement });
+
+		}
+
+		@Override
+		public Point workingOffset(Placement placement, int width, int height) {
+			return new MergerEngine().workingOffset(placement, width, height);
+		}
+
+	}
+
+	public void testCachedParallelMergeComposedAgain() throws IOException {
+
+		File folder = Files.createTempDirectory("mergea4toa3-cache").toFile();
+		System.setProperty(AlignmentCache.PROPERTY, folder.getPath());
+
+		try {
+
+			BufferedImage[] images = fragments(3);
+
+			for (int i = 0; i < images.length; i++)
+				for (int y = 0; y < 80; y += 3)
+					images[i].setRGB(i * 30, y, 0x40 << (8 * i));
+
+			MergeJob job = job(3);
+			job.setParallel(true);
+			job.setEngine(new FixedEngine(images, new Placement(50, -7, 0, 5), new Placement(50, 10, 0, 6)));
+
+			BufferedImage merged = job.merge(images, null);
+			assertFalse(job.getMetrics().isCached());
+
+			// Not searched again, but the same placements and pixels
+			job.setEngine(new FixedEngine(images));
+			BufferedImage cached = job.merge(images, null);
+
+			assertTrue(job.getMetrics().isCached());
+			assertTrue(job.getMetrics().toJson().contains("\"cached\":true"));
+			assertEquals(3, job.getPlacements()[1].getY());
+
+			assertEquals(merged.getWidth(), cached.getWidth());
+			assertEquals(merged.getHeight(), cached.getHeight());
+			assertTrue(Arrays.equals(merged.getRGB(0, 0, 200, 90, null, 0, 200),
+					cached.getRGB(0, 0, 200, 90, null, 0, 200)));
+
+		} finally {
+
+			System.clearProperty(AlignmentCache.PROPERTY);
+
+			for (File file : folder.listFiles())
+				file.delete();
+
+			folder.delete();
+
+		}
+
+	}
+
+	public void testCachedSequentialMergeComposed() throws IOException {
+
+		File folder = Files.createTempDirectory("mergea4toa3-cache").toFile();
+		System.setProperty(AlignmentCache.PROPERTY, folder.getPath());
+
+		try {
+
+			BufferedImage[] images = fragments(3);
+
+			for (int i = 0; i < images.length; i++)
+				images[i].setRGB(i * 30, 40, 0x40 << (8 * i));
+
+			MergeJob job = job(3);
+			job.setEngine(new FixedEngine(images, new Placement(50, -7, 0, 5), new Placement(100, 10, 0, 6)));
+
+			job.merge(images, null);
+
+			// Only the placements
+			assertEquals(1, folder.listFiles().length);
+
+			job.setEngine(new FixedEngine(images));
+			BufferedImage cached = job.merge(images, null);
+
+			assertTrue(job.getMetrics().isCached());
+			assertEquals(3, job.getPlacements()[1].getY());
+
+			// Composed at once, in first fragment coordinates
+			BufferedImage merged = Compositor.compose(images, new Placement[] { new Placement(0, 0, 0, Double.NaN),
+					new Placement(50, -7, 0, 5), new Placement(100, 3, 0, 6) });
+
+			assertEquals(merged.getWidth(), cached.getWidth());
+			assertEquals(merged.getHeight(), cached.getHeight());
+			assertTrue(Arrays.equals(merged.getRGB(0, 0, 200, 90, null, 0, 200),
+					cached.getRGB(0, 0, 200, 90, null, 0, 200)));
+
+		} finally {
+
+			System.clearProperty(AlignmentCache.PROPERTY);
+
+			for (File file : folder.listFiles())
+				file.delete();
+
+			folder.delete();
+
+		}
+
+	}
+
+	public void testParallelMergeWrittenAsComposed() throws IOException {
+
+		BufferedImage[] images = fragments(3);
+
+		for (int i = 0; i < images.length; i++)
+			for (int y = 0; y < 80; y += 3)
+				images[i].setRGB(i * 30, y, 0x40 << (8 * i));
+
+		File output = Files.createTempFile("mergea4toa3-merged", ".png").toFile();
+
+		try {
+
+			MergeJob job = new MergeJob(Arrays.asList(new File("a.png"), new File("b.png"), new File("c.png")),
+					Arrangement.HORIZONTAL, output);
+			job.setParallel(true);
+			job.setEngine(new FixedEngine(images, new Placement(50, -7, 0, 5), new Placement(50, 10, 0, 6)));
+
+			BufferedImage merged = job.merge(images, null);
+
+			job.setEngine(new FixedEngine(images, new Placement(50, -7, 0, 5), new Placement(50, 10, 0, 6)));
+			job.mergeAndWrite(images, null);
+
+			BufferedImage written = ImageIO.read(output);
+
+			assertEquals(3, job.getPlacements()[1].getY());
+			assertTrue(Arrays.equals(merged.getRGB(0, 0, 200, 90, null, 0, 200),
+					written.getRGB(0, 0, 200, 90, null, 0, 200)));
+
+		} finally {
+			output.delete();
+		}
+
+	}
+
+	public void testFromManifest() throws IOException {
+
+		File folder = Files.createTempDirectory("mergea4toa3-manifest").toFile();
+		File manifest = new File(folder, "jobs.txt");
+		File out = new File("out");
+
+		try {
+
+			Files.write(manifest.toPath(), Arrays.asList(
+					"# Comment",
+					"",
+					"a.png;b.png;c.png",
+					"d.png; e.png ;f.png;sheet.tif",
+					"vertical:g.png;h.png>column.png",
+					"Horizontal:i.png;j.png;k.png;l.png"), StandardCharsets.UTF_8);
+
+			List<MergeJob> jobs = MergeJob.fromManifest(manifest, out, "png");
+
+			assertEquals(4, jobs.size());
+
+			// Legacy triplets, relative to the manifest
+			assertEquals(Arrays.asList(new File(folder, "a.png"), new File(folder, "b.png"), new File(folder, "c.png")),
+					jobs.get(0).getFragments());
+			assertEquals(Arrangement.HORIZONTAL, jobs.get(0).getArrangement());
+			assertEquals(new File(out, "a-merged.png"), jobs.get(0).getOutput());
+
+			assertEquals(new File(folder, "e.png"), jobs.get(1).getFragments().get(1));
+			assertEquals(new File(out, "sheet.tif"), jobs.get(1).getOutput());
+
+			assertEquals(Arrangement.VERTICAL, jobs.get(2).getArrangement());
+			assertEquals(2, jobs.get(2).getFragments().size());
+			assertEquals(new File(out, "column.png"), jobs.get(2).getOutput());
+
+			assertEquals(Arrangement.HORIZONTAL, jobs.get(3).getArrangement());
+			assertEquals(4, jobs.get(3).getFragments().size());
+			assertEquals(new File(out, "i-merged.png"), jobs.get(3).getOutput());
+
+		} finally {
+			manifest.delete();
+			folder.delete();
+		}
+
+	}
+
+	public void testFromManifestErrors() throws IOException {
+
+		assertManifestError("a.png;b.png", ":1: expected left;center;right[;output]");
+		assertManifestError("a.png;b.png;c.png;d.png;e.png", ":1: expected left;center;right[;output]");
+		assertManifestError("# Comment\nvertical:a.png", ":2: expected at least two fragments");
+		assertManifestError("a.png>out.png", ":1: expected at least two fragments");
+
+	}
+
+	private static void assertManifestError(String content, String message) throws IOException {
+
+		File manifest = Files.createTempFile("mergea4toa3-manifest", ".txt").toFile();
+
+		try {
+
+			Files.write(manifest.toPath(), content.getBytes(StandardCharsets.UTF_8));
+			MergeJob.fromManifest(manifest, new File("out"), "png");
+
+			fail("No error for " + content);
+
+		} catch (IOException e) {
+
+			assertTrue(e.getMessage(), e.getMessage().endsWith(message));
+
+		} finally {
+			manifest.delete();
+		}
+
+	}
+
+	private static BufferedImage[] fragments(int count) {
+
+		BufferedImage[] images = new BufferedImage[count];
+
+		for (int i = 0; i < count; i++)
+			images[i] = new BufferedImage(100, 80, BufferedImage.TYPE_INT_RGB);
+
+		return images;
+
+	}
+
+	private static MergeJob job(int count) {
+
+		File[] files = new File[count];
+
+		for (int i = 0; i < count; i++)
+			files[i] = new File("fragment-" + i + ".png");
+
+		return new MergeJob(Arrays.asList(files), Arrangement.HORIZONTAL, new File("merged.png"));
+
+	}
+
+	public void testSequentialPlacementsInFirstFragmentCoordinates() {
+
+		MergeJob job = job(3);
+		BufferedImage[] images = fragments(3);
+
+		// The center fragment 7 rows above the left one moves the working
+		// image 7 rows down, so the right one, 3 rows below the left one, is
+		// found 10 rows below the working image top
+		job.setEngine(new FixedEngine(images, new Placement(50, -7, 0, 5), new Placement(100, 10, 0, 6)));
+
+		BufferedImage merged = job.merge(images, null);
+		Placement[] placements = job.getPlacements();
+
+		assertEquals(50, placements[0].getX());
+		assertEquals(-7, placements[0].getY());
+		assertEquals(100, placements[1].getX());
+		assertEquals(3, placements[1].getY());
+		assertEquals(6.0, placements[1].getDeviation(), 0);
+
+		assertEquals(200, merged.getWidth());
+		assertEquals(90, merged.getHeight());
+
+	}
+
+	public void testParallelPlacementsChained() {
+
+		MergeJob job = job(3);
+		job.setParallel(true);
+		BufferedImage[] images = fragments(3);
+
+		// Every fragment found on its previous one
+		job.setEngine(new FixedEngine(images, new Placement(50, -7, 0, 5), new Placement(50, 10, 0, 6)));
+
+		BufferedImage merged = job.merge(images, null);
+		Placement[] placements = job.getPlacements();
+
+		assertEquals(50, placements[0].getX());
+		assertEquals(-7, placements[0].getY());
+		assertEquals(100, placements[1].getX());
+		assertEquals(3, placements[1].getY());
+
+		assertEquals(200, merged.getWidth());
+		assertEquals(90, merged.getHeight());
+
+	}
+
+}
@@ -0,0 +1,115 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link MergeScheduler}: jobs without output kept, with images given
+ * by the caller, as the GUI does, and jobs cancelled before being merged.
+ *
+ * @author David
+ *
+ */
+public class MergeSchedulerTest extends TestCase {
+
+	private File folder;
+	private BufferedImage[] images;
+	private File[] files;
+
+	@Override
+	protected void setUp() throws IOException {
+
+		folder = Files.createTempDirectory("mergea4toa3-scheduler").toFile();
+		images = new BufferedImage[3];
+		files = new File[3];
+
+		// Their headers are read to admit the job
+		for (int i = 0; i < images.length; i++) {
+			images[i] = new BufferedImage(100, 80, BufferedImage.TYPE_INT_RGB);
+			files[i] = new File(folder, "fragment-" + i + ".png");
+			ImageIO.write(images[i], "png", files[i]);
+		}
+
+	}
+
+	@Override
+	protected void tearDown() {
+
+		for (File file : files)
+			file.delete();
+
+		folder.delete();
+
+	}
+
+	public void testKeptWithGivenImages() throws Exception {
+
+		MergeJob job = job();
+
+		BufferedImage merged = new MergeScheduler(1, new MemoryAdmission(Long.MAX_VALUE))
+				.submit(job, () -> images, null, new CancellationToken()).get(5, TimeUnit.SECONDS);
+
+		assertEquals(200, merged.getWidth());
+		assertEquals(90, merged.getHeight());
+		assertEquals(3, job.getPlacements()[1].getY());
+
+	}
+
+	public void testCancelledBeforeMerging() throws Exception {
+
+		CancellationToken cancellation = new CancellationToken();
+
+		try {
+
+			new MergeScheduler(1, new MemoryAdmission(Long.MAX_VALUE)).submit(job(), () -> {
+
+				// Going back while the images are decoded
+				cancellation.cancel();
+				return images;
+
+			}, null, cancellation).get(5, TimeUnit.SECONDS);
+
+			fail("Merged once cancelled");
+
+		} catch (CancellationException e) {
+			// Not merged
+		}
+
+	}
+
+	private MergeJob job() {
+
+		MergeJob job = new MergeJob(files[0], files[1], files[2], null);
+		job.setEngine(new MergeJobTest.FixedEngine(images, new Placement(50, -7, 0, 5), new Placement(100, 10, 0, 6)));
+
+		return job;
+
+	}
+
+}
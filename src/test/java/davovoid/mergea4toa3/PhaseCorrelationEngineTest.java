@@ -0,0 +1,102 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+
+import davovoid.libmergea4toa3.A3MergerStudyEvent;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link PhaseCorrelationEngine} on fragments with nothing to match,
+ * and that splitting its correlations over a pool does not change what it
+ * finds. How well it finds real fragments is checked by the registration
+ * regression tests.
+ *
+ * @author David
+ *
+ */
+public class PhaseCorrelationEngineTest extends TestCase {
+
+	private static final A3MergerStudyEvent NO_EVENT = (progress, firstScaleRed, scaleRed, xMin, xMax, yMin, yMax,
+			x, y, angle, bestX, bestY, bestAngle, deviation) -> {
+	};
+
+	public void testBlankOverlapHasNoSignal() {
+
+		BufferedImage working = blank(400, 300), fragment = blank(300, 300);
+		double[] last = new double[1];
+
+		Placement placement = new PhaseCorrelationEngine(0.2, 0.1, null).register(working, fragment,
+				(progress, firstScaleRed, scaleRed, xMin, xMax, yMin, yMax, x, y, angle, bestX, bestY, bestAngle,
+						deviation) -> {
+
+					assertFalse("Not a number at " + progress, Double.isNaN(deviation));
+					last[0] = deviation;
+
+				});
+
+		assertEquals(MergeJob.NO_SIGNAL, placement.getDeviation(), 0);
+		assertEquals(MergeJob.NO_SIGNAL, last[0], 0);
+
+		assertEquals("indexes = none (Blank overlap) / 12.50 (OK) / 150.00 (Too high)",
+				BatchMerger.describeDeviations(new double[] { MergeJob.NO_SIGNAL, 12.5, 150 }));
+
+	}
+
+	public void testSameInPoolAsOnThisThread() {
+
+		SyntheticTriplet triplet = SyntheticTriplet.generate(75, 3);
+		ForkJoinPool pool = new ForkJoinPool(4);
+
+		try {
+
+			Placement serial = new PhaseCorrelationEngine(1, 0.5, null).register(triplet.getLeft(),
+					triplet.getCenter(), NO_EVENT);
+			Placement split = new PhaseCorrelationEngine(1, 0.5, pool).register(triplet.getLeft(),
+					triplet.getCenter(), NO_EVENT);
+
+			assertEquals(serial.getX(), split.getX());
+			assertEquals(serial.getY(), split.getY());
+			assertEquals(serial.getAngle(), split.getAngle(), 0);
+			assertEquals(serial.getDeviation(), split.getDeviation(), 0);
+
+		} finally {
+			pool.shutdown();
+		}
+
+	}
+
+	private static BufferedImage blank(int width, int height) {
+
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g = img.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, width, height);
+		g.dispose();
+
+		return img;
+
+	}
+
+}
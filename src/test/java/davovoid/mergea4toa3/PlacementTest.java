@@ -0,0 +1,121 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link Placement} convention: a fragment pixel q is placed at
+ * (x, y) + R(angle) q, as the synthetic fragments are generated and as the
+ * {@link Compositor} draws them.
+ *
+ * @author David
+ *
+ */
+public class PlacementTest extends TestCase {
+
+	public void testComposedFragmentsMatchOnOverlap() {
+
+		SyntheticTriplet triplet = SyntheticTriplet.generate(75, 1);
+		Placement center = triplet.getCenterPlacement();
+
+		double matching = overlapDifference(triplet, center);
+
+		// The same position, the other way round
+		double mirrored = overlapDifference(triplet, new Placement(center.getX(), center.getY(), -center.getAngle(),
+				Double.NaN));
+
+		assertTrue("Fragments differ on their overlap: " + matching, matching < 15);
+		assertTrue("Angle sign not told apart: " + matching + " and " + mirrored, matching < mirrored / 2);
+
+	}
+
+	public void testPlaceChainsRelativePlacements() {
+
+		SyntheticTriplet triplet = SyntheticTriplet.generate(75, 2);
+		Placement center = triplet.getCenterPlacement(), right = triplet.getRightPlacement();
+
+		// The right fragment in the center fragment coordinates: R(-angle) (r - c)
+		double theta = Math.toRadians(-center.getAngle());
+		double dx = right.getX() - center.getX(), dy = right.getY() - center.getY();
+
+		Placement relative = new Placement((int) Math.round(Math.cos(theta) * dx - Math.sin(theta) * dy),
+				(int) Math.round(Math.sin(theta) * dx + Math.cos(theta) * dy), right.getAngle() - center.getAngle(), 4);
+
+		Placement placed = center.place(relative);
+
+		assertEquals(right.getX(), placed.getX(), 1);
+		assertEquals(right.getY(), placed.getY(), 1);
+		assertEquals(right.getAngle(), placed.getAngle(), 1e-9);
+		assertEquals(4.0, placed.getDeviation(), 0);
+
+	}
+
+	public void testBounds() {
+
+		assertEquals(new Rectangle(10, -5, 100, 50), new Placement(10, -5, 0, 4).bounds(100, 50));
+
+		// Rotated clockwise (y down) about its top-left corner
+		Rectangle rotated = new Placement(0, 0, 90, 4).bounds(100, 50);
+
+		assertEquals(-50, rotated.x);
+		assertEquals(0, rotated.y);
+		assertEquals(50, rotated.width);
+		assertEquals(100, rotated.height);
+
+	}
+
+	/**
+	 * Composes the left fragment and the center one, placed so, on their own
+	 * on the same canvas, and gets the mean difference of their red values
+	 * well inside both.
+	 */
+	private static double overlapDifference(SyntheticTriplet triplet, Placement center) {
+
+		BufferedImage left = triplet.getLeft(), fragment = triplet.getCenter();
+		Placement origin = new Placement(0, 0, 0, Double.NaN);
+
+		Rectangle canvas = Compositor.bounds(new BufferedImage[] { left, fragment },
+				new Placement[] { origin, center });
+
+		BufferedImage a = Compositor.compose(new BufferedImage[] { left }, new Placement[] { origin }, canvas);
+		BufferedImage b = Compositor.compose(new BufferedImage[] { fragment }, new Placement[] { center }, canvas);
+
+		// Away from the edges, the rotated ones and the lid shadow
+		int margin = 20;
+		long sum = 0, count = 0;
+
+		for (int y = Math.max(0, center.getY()) + margin; y < left.getHeight() - margin; y++)
+			for (int x = center.getX() + margin; x < left.getWidth() - margin; x++) {
+
+				int cx = x - canvas.x, cy = y - canvas.y;
+
+				sum += Math.abs(((a.getRGB(cx, cy) >> 16) & 0xff) - ((b.getRGB(cx, cy) >> 16) & 0xff));
+				count++;
+
+			}
+
+		return (double) sum / count;
+
+	}
+
+}
@@ -0,0 +1,245 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that merges still find where the fragments are, using synthetic
+ * triplets with known placements (see {@link SyntheticTriplet}), with every
+ * engine and merge option. Any change to the merge search must keep these
+ * passing.
+ *
+ * Every case is merged as the GUI does, and the placement found for the
+ * center and right fragments is compared with the generated one, the
+ * top-left corner of the fragment in the left fragment coordinates and its
+ * angle in degrees.
+ *
+ * The library merger search takes long, so these only run with the
+ * {@code regression} profile ({@code mvn -P regression test}).
+ *
+ * Every merge is written to a JSON lines report, by default
+ * {@code target/registration-regression.json}: the case, its wall time in
+ * milliseconds and its metrics (see {@link MergeMetrics#toJson()}), as in
+ *
+ * <pre>
+ * {"run":"merger parallel synthetic-75dpi-1","millis":812.000,"metrics":{...}}
+ * </pre>
+ *
+ * If the {@code mergea4toa3.regression.baseline} system property names the
+ * report of an earlier run, every case found in it must not take more than
+ * {@code mergea4toa3.regression.slowdown} times (1.5 by default) its time
+ * there.
+ *
+ * The resolutions and cases per resolution can be set with the
+ * {@code mergea4toa3.regression.dpi} (a comma separated list) and
+ * {@code mergea4toa3.regression.cases} system properties, and the report
+ * file with {@code mergea4toa3.regression.report}.
+ *
+ * @author David
+ *
+ */
+public class RegistrationRegressionTest extends TestCase {
+
+	private static final double TOLERANCE = 3;
+	private static final double ANGLE_TOLERANCE = 0.1;
+
+	private static final Pattern RUN = Pattern.compile("^\\{\"run\":\"([^\"]*)\",\"millis\":([0-9.]+)");
+
+	// The report is started again by the first merge of every run
+	private static boolean reportStarted;
+
+	public void testMerger() {
+		check(MergerEngine.NAME, false, false, false);
+	}
+
+	public void testMergerParallel() {
+		check(MergerEngine.NAME, true, false, false);
+	}
+
+	public void testMergerAdaptive() {
+		check(MergerEngine.NAME, false, true, false);
+	}
+
+	public void testMergerPreAlignment() {
+		check(MergerEngine.NAME, false, false, true);
+	}
+
+	public void testPhase() {
+		check(PhaseCorrelationEngine.NAME, false, false, false);
+	}
+
+	public void testPhaseParallel() {
+		check(PhaseCorrelationEngine.NAME, true, false, false);
+	}
+
+	/**
+	 * Merges every case and fails with every placement out of tolerance.
+	 *
+	 * @param engine       The registration engine name.
+	 * @param parallel     Whether the fragments are registered at once.
+	 * @param adaptive     Whether the cases of every resolution share a
+	 *                     {@link SearchWindow}, as the sheets of a batch do.
+	 * @param preAlignment Whether the positions are first estimated from
+	 *                     matching corners.
+	 */
+	private static void check(String engine, boolean parallel, boolean adaptive, boolean preAlignment) {
+
+		int cases = Integer.getInteger("mergea4toa3.regression.cases", 2);
+		List<String> failures = new ArrayList<>();
+		Map<String, Double> baseline = readBaseline();
+		double slowdown = Double.parseDouble(System.getProperty("mergea4toa3.regression.slowdown", "1.5"));
+
+		String options = (parallel ? " parallel" : "") + (adaptive ? " adaptive" : "")
+				+ (preAlignment ? " prealign" : "");
+
+		for (String dpiValue : System.getProperty("mergea4toa3.regression.dpi", "75,150").split(",")) {
+
+			int dpi = Integer.parseInt(dpiValue.trim());
+			SearchWindow window = adaptive ? new SearchWindow() : null;
+
+			for (int seed = 1; seed <= cases; seed++) {
+
+				SyntheticTriplet triplet = SyntheticTriplet.generate(dpi, seed);
+				MergeJob job = new MergeJob(null, null, null, new File(String.format("synthetic-%ddpi-%d", dpi, seed)));
+				job.setSearchWindow(window);
+				job.setParallel(parallel);
+				job.setPreAlignment(preAlignment);
+				job.setEngine(RegistrationEngine.forName(engine));
+
+				long start = System.nanoTime();
+				job.merge(triplet.getLeft(), triplet.getCenter(), triplet.getRight(), null);
+				double millis = (System.nanoTime() - start) / 1e6;
+
+				String run = engine + options + " " + job.getName();
+				report(run, millis, job.getMetrics());
+
+				Placement[] expected = { triplet.getCenterPlacement(), triplet.getRightPlacement() };
+				Placement[] found = job.getPlacements();
+
+				for (int f = 0; f < 2; f++) {
+
+					if (found[f] == null || !withinTolerance(expected[f], found[f]))
+						failures.add(String.format("%s %s: expected %s, found %s", run, f == 0 ? "center" : "right",
+								expected[f], found[f]));
+
+				}
+
+				Double before = baseline.get(run);
+
+				if (before != null && millis > before * slowdown)
+					failures.add(String.format(Locale.ROOT, "%s: %.0f ms, %.0f ms in the baseline", run, millis,
+							before));
+
+			}
+
+		}
+
+		assertTrue("Placements out of tolerance (" + TOLERANCE + " px, " + ANGLE_TOLERANCE
+				+ " degrees) or slower than the baseline (" + slowdown + " times):\n" + String.join("\n", failures),
+				failures.isEmpty());
+
+	}
+
+	/**
+	 * Appends a merge to the report.
+	 *
+	 * @param run     The engine, options and case merged.
+	 * @param millis  The wall time of the merge.
+	 * @param metrics The metrics of the merge.
+	 */
+	private static synchronized void report(String run, double millis, MergeMetrics metrics) {
+
+		File file = new File(System.getProperty("mergea4toa3.regression.report", "target/registration-regression.json"));
+		String line = String.format(Locale.ROOT, "{\"run\":\"%s\",\"millis\":%.3f,\"metrics\":%s}", run, millis,
+				metrics.toJson()) + System.lineSeparator();
+
+		try {
+
+			if (file.getParentFile() != null)
+				Files.createDirectories(file.getParentFile().toPath());
+
+			if (reportStarted)
+				Files.write(file.toPath(), line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+						StandardOpenOption.APPEND);
+			else
+				Files.write(file.toPath(), line.getBytes(StandardCharsets.UTF_8));
+
+			reportStarted = true;
+
+		} catch (IOException e) {
+			fail("The report could not be written: " + e);
+		}
+
+	}
+
+	/**
+	 * Reads the wall time of every case of the baseline report, if any.
+	 *
+	 * @return The milliseconds by case, empty without a baseline.
+	 */
+	private static Map<String, Double> readBaseline() {
+
+		Map<String, Double> millis = new HashMap<>();
+		String file = System.getProperty("mergea4toa3.regression.baseline");
+
+		if (file == null || file.isEmpty())
+			return millis;
+
+		try {
+
+			for (String line : Files.readAllLines(new File(file).toPath(), StandardCharsets.UTF_8)) {
+
+				Matcher matcher = RUN.matcher(line);
+
+				if (matcher.find())
+					millis.put(matcher.group(1), Double.valueOf(matcher.group(2)));
+
+			}
+
+		} catch (IOException e) {
+			fail("The baseline could not be read: " + e);
+		}
+
+		return millis;
+
+	}
+
+	private static boolean withinTolerance(Placement expected, Placement found) {
+
+		return Math.abs(expected.getX() - found.getX()) <= TOLERANCE
+				&& Math.abs(expected.getY() - found.getY()) <= TOLERANCE
+				&& Math.abs(expected.getAngle() - found.getAngle()) <= ANGLE_TOLERANCE;
+
+	}
+
+}
@@ -0,0 +1,126 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link SearchWindow}: the narrowed range and putting the skipped
+ * part back.
+ *
+ * @author David
+ *
+ */
+public class SearchWindowTest extends TestCase {
+
+	public void testCropStart() {
+
+		SearchWindow window = new SearchWindow(0.1);
+
+		assertEquals(0, window.cropStart(0, 100, 500));
+
+		window.update(0, new Placement(300, 0, 0, 5), false);
+		assertEquals(290, window.cropStart(0, 100, 500));
+
+		// Not good enough to narrow the next ones
+		window.update(1, new Placement(300, 0, 0, MergeJob.MAX_DEVIATION + 1), false);
+		assertEquals(0, window.cropStart(1, 100, 500));
+
+		window.fallback(0);
+		assertEquals(0, window.cropStart(0, 100, 500));
+		assertEquals(1, window.getFallbacks());
+
+	}
+
+	public void testStitchUniformColumnKeepsPrediction() {
+
+		// Blank where cropped: the column would match at any height
+		BufferedImage working = image(100, 40, Color.WHITE);
+		BufferedImage merged = moved(working, 50, 7, 60);
+
+		BufferedImage result = SearchWindow.stitch(working, 50, merged, new Point(0, 7));
+
+		assertEquals(100, result.getWidth());
+		assertEquals(60, result.getHeight());
+		assertEquals(Color.WHITE.getRGB(), result.getRGB(10, 7));
+		assertEquals(Color.WHITE.getRGB(), result.getRGB(10, 46));
+		assertEquals(Color.BLACK.getRGB(), result.getRGB(10, 6));
+		assertEquals(Color.BLACK.getRGB(), result.getRGB(10, 47));
+
+	}
+
+	public void testStitchRefinesPrediction() {
+
+		BufferedImage working = image(100, 40, Color.WHITE);
+
+		for (int y = 0; y < 40; y++)
+			working.setRGB(50, y, y % 5 == 0 ? Color.RED.getRGB() : Color.WHITE.getRGB());
+
+		working.setRGB(10, 0, Color.BLUE.getRGB());
+
+		BufferedImage merged = moved(working, 50, 8, 60);
+
+		// Rounded one row short
+		BufferedImage result = SearchWindow.stitch(working, 50, merged, new Point(0, 7));
+
+		assertEquals(Color.BLUE.getRGB(), result.getRGB(10, 8));
+
+	}
+
+	public void testStitchRejectsMovedRight() {
+
+		BufferedImage working = image(100, 40, Color.WHITE);
+
+		assertNull(SearchWindow.stitch(working, 50, moved(working, 50, 0, 40), new Point(3, 0)));
+
+	}
+
+	private static BufferedImage image(int width, int height, Color color) {
+
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = img.createGraphics();
+		g.setColor(color);
+		g.fillRect(0, 0, width, height);
+		g.dispose();
+
+		return img;
+
+	}
+
+	/**
+	 * Simulates a narrowed merge result: the working image from start on,
+	 * moved down by dy on a black background.
+	 */
+	private static BufferedImage moved(BufferedImage working, int start, int dy, int height) {
+
+		BufferedImage merged = image(working.getWidth() - start, height, Color.BLACK);
+		Graphics2D g = merged.createGraphics();
+		g.drawImage(working.getSubimage(start, 0, working.getWidth() - start, working.getHeight()), 0, dy, null);
+		g.dispose();
+
+		return merged;
+
+	}
+
+}
@@ -0,0 +1,270 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Random;
+
+/**
+ * Synthetic left, center and right A4 fragments of an A3 sheet, with known
+ * placements, so that merges can be measured and checked without real scans.
+ *
+ * The sheet is a text-like page (lines of word blocks and some figures).
+ * The center fragment starts halfway through the left one and the right one
+ * where the left one ends, as when scanning an A3 sheet in three parts,
+ * shifted and rotated a little as a hand-placed sheet would be. Every
+ * fragment gets its own scanner noise and a lid shadow on its left edge.
+ * The same dpi and seed always give the same fragments.
+ *
+ * @author David
+ *
+ */
+public class SyntheticTriplet {
+
+	/**
+	 * A4 portrait size, in millimetres.
+	 */
+	public static final double A4_WIDTH_MM = 210, A4_HEIGHT_MM = 297;
+
+	/**
+	 * Default limits of the random shift (in millimetres) and rotation (in
+	 * degrees) of the center and right fragments.
+	 */
+	public static final double DEFAULT_MAX_SHIFT_MM = 3, DEFAULT_MAX_ANGLE = 0.5;
+
+	// Sheet area around the fragments, so they never go out of it
+	private static final double MARGIN_MM = 10;
+	private static final double SHADOW_MM = 2;
+	private static final int NOISE = 8;
+
+	private final int dpi;
+	private final BufferedImage left, center, right;
+	private final Placement centerPlacement, rightPlacement;
+
+	private SyntheticTriplet(int dpi, BufferedImage left, BufferedImage center, BufferedImage right,
+			Placement centerPlacement, Placement rightPlacement) {
+		this.dpi = dpi;
+		this.left = left;
+		this.center = center;
+		this.right = right;
+		this.centerPlacement = centerPlacement;
+		this.rightPlacement = rightPlacement;
+	}
+
+	/**
+	 * Generates a triplet with the default shift and rotation limits.
+	 *
+	 * @param dpi  The resolution of the fragments.
+	 * @param seed The seed of the sheet content, shifts and rotations.
+	 * @return The triplet.
+	 */
+	public static SyntheticTriplet generate(int dpi, long seed) {
+		return generate(dpi, seed, DEFAULT_MAX_SHIFT_MM, DEFAULT_MAX_ANGLE);
+	}
+
+	/**
+	 * Generates a triplet.
+	 *
+	 * @param dpi        The resolution of the fragments.
+	 * @param seed       The seed of the sheet content, shifts and rotations.
+	 * @param maxShiftMm The most the center and right fragments are shifted
+	 *                   from their nominal position, in millimetres.
+	 * @param maxAngle   The most the center and right fragments are rotated,
+	 *                   in degrees.
+	 * @return The triplet.
+	 */
+	public static SyntheticTriplet generate(int dpi, long seed, double maxShiftMm, double maxAngle) {
+
+		Random random = new Random(seed);
+		double pxPerMm = dpi / 25.4;
+
+		int width = (int) Math.round(A4_WIDTH_MM * pxPerMm);
+		int height = (int) Math.round(A4_HEIGHT_MM * pxPerMm);
+		int margin = (int) Math.round(MARGIN_MM * pxPerMm);
+
+		BufferedImage sheet = drawSheet(2 * width + 2 * margin, height + 2 * margin, pxPerMm, random);
+
+		// Top-left corners in the sheet (the left fragment is the reference)
+		double shift = maxShiftMm * pxPerMm;
+
+		double centerX = margin + width / 2 + (random.nextDouble() * 2 - 1) * shift;
+		double centerY = margin + (random.nextDouble() * 2 - 1) * shift;
+		double centerAngle = (random.nextDouble() * 2 - 1) * maxAngle;
+
+		double rightX = margin + width + (random.nextDouble() * 2 - 1) * shift;
+		double rightY = margin + (random.nextDouble() * 2 - 1) * shift;
+		double rightAngle = (random.nextDouble() * 2 - 1) * maxAngle;
+
+		BufferedImage left = scan(sheet, margin, margin, 0, width, height, pxPerMm, random);
+		BufferedImage center = scan(sheet, centerX, centerY, centerAngle, width, height, pxPerMm, random);
+		BufferedImage right = scan(sheet, rightX, rightY, rightAngle, width, height, pxPerMm, random);
+
+		return new SyntheticTriplet(dpi, left, center, right,
+				new Placement((int) Math.round(centerX - margin), (int) Math.round(centerY - margin), centerAngle, Double.NaN),
+				new Placement((int) Math.round(rightX - margin), (int) Math.round(rightY - margin), rightAngle, Double.NaN));
+
+	}
+
+	/**
+	 * Draws a text-like sheet: lines of word blocks in paragraphs, and some
+	 * figures.
+	 */
+	private static BufferedImage drawSheet(int width, int height, double pxPerMm, Random random) {
+
+		BufferedImage sheet = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D g = sheet.createGraphics();
+
+		try {
+
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g.setColor(Color.white);
+			g.fillRect(0, 0, width, height);
+
+			// Millimetres from now on
+			g.scale(pxPerMm, pxPerMm);
+
+			double widthMm = width / pxPerMm, heightMm = height / pxPerMm;
+
+			for (double y = 8; y < heightMm - 8; y += 6) {
+
+				// Paragraph break
+				if (random.nextInt(8) == 0)
+					continue;
+
+				int gray = 20 + random.nextInt(60);
+				g.setColor(new Color(gray, gray, gray));
+
+				for (double x = 8 + random.nextDouble() * 4; x < widthMm - 8;) {
+
+					double word = 3 + random.nextDouble() * 12;
+
+					g.fill(new Rectangle2D.Double(x, y, Math.min(word, widthMm - 8 - x), 2.5));
+
+					x += word + 2 + random.nextDouble() * 2;
+
+				}
+
+			}
+
+			g.setStroke(new BasicStroke(0.5f));
+
+			for (int i = 0; i < 12; i++) {
+
+				double w = 10 + random.nextDouble() * 40, h = 10 + random.nextDouble() * 40;
+				double x = random.nextDouble() * (widthMm - w), y = random.nextDouble() * (heightMm - h);
+
+				g.setColor(new Color(random.nextInt(128), random.nextInt(128), random.nextInt(128)));
+				g.draw(random.nextBoolean() ? new Ellipse2D.Double(x, y, w, h) : new Rectangle2D.Double(x, y, w, h));
+
+			}
+
+		} finally {
+			g.dispose();
+		}
+
+		return sheet;
+
+	}
+
+	/**
+	 * Scans a part of the sheet: the fragment whose top-left corner is at
+	 * (x, y) of the sheet, rotated by the angle, plus noise and lid shadow.
+	 */
+	private static BufferedImage scan(BufferedImage sheet, double x, double y, double angle, int width, int height,
+			double pxPerMm, Random random) {
+
+		BufferedImage fragment = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D g = fragment.createGraphics();
+
+		try {
+
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+			// Sheet point p goes to R(-angle) * (p - corner)
+			g.rotate(Math.toRadians(-angle));
+			g.translate(-x, -y);
+			g.drawImage(sheet, 0, 0, null);
+
+			g.setTransform(new AffineTransform());
+
+			float shadow = (float) (SHADOW_MM * pxPerMm);
+			g.setPaint(new GradientPaint(0, 0, new Color(0, 0, 0, 96), shadow, 0, new Color(0, 0, 0, 0)));
+			g.fillRect(0, 0, (int) Math.ceil(shadow), height);
+
+		} finally {
+			g.dispose();
+		}
+
+		byte[] pixels = ((DataBufferByte) fragment.getRaster().getDataBuffer()).getData();
+
+		for (int i = 0; i < pixels.length; i++) {
+
+			int value = (pixels[i] & 0xff) + random.nextInt(2 * NOISE + 1) - NOISE;
+			pixels[i] = (byte) Math.max(0, Math.min(255, value));
+
+		}
+
+		return fragment;
+
+	}
+
+	public int getDpi() {
+		return dpi;
+	}
+
+	public BufferedImage getLeft() {
+		return left;
+	}
+
+	public BufferedImage getCenter() {
+		return center;
+	}
+
+	public BufferedImage getRight() {
+		return right;
+	}
+
+	/**
+	 * Gets where the center fragment is, relative to the left one.
+	 * @return The placement of the top-left corner of the center fragment in
+	 *         the left fragment coordinates, and its angle.
+	 */
+	public Placement getCenterPlacement() {
+		return centerPlacement;
+	}
+
+	/**
+	 * Gets where the right fragment is, relative to the left one.
+	 * @return The placement of the top-left corner of the right fragment in
+	 *         the left fragment coordinates, and its angle.
+	 */
+	public Placement getRightPlacement() {
+		return rightPlacement;
+	}
+
+}
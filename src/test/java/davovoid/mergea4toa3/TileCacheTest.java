@@ -0,0 +1,107 @@
+/*
+ * mergea4toa3 - A GUI program for merging A4 scanned fragments to obtain
+ * a single A3 image. Copyright (C) 2023  David R. Araújo Piñeiro (Davovoid)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package davovoid.mergea4toa3;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link TileCache}: tiles rendered in the background once, only while
+ * still wanted, and their size.
+ *
+ * @author David
+ *
+ */
+public class TileCacheTest extends TestCase {
+
+	private ImagePyramid pyramid;
+
+	// Runs the renders only when asked, as a scheduler would later
+	private final List<Runnable> queued = new ArrayList<>();
+
+	@Override
+	protected void setUp() throws Exception {
+		pyramid = ImagePyramid.build(new BufferedImage(600, 400, BufferedImage.TYPE_INT_RGB));
+	}
+
+	public void testRenderedLaterOnce() {
+
+		TileCache cache = new TileCache(64L << 20);
+		AtomicInteger rendered = new AtomicInteger();
+
+		assertNull(cache.getCachedTile(pyramid, 0.5d, 1, 0));
+
+		cache.renderLater(pyramid, 0.5d, 1, 0, queued::add, () -> true, rendered::incrementAndGet);
+		cache.renderLater(pyramid, 0.5d, 1, 0, queued::add, () -> true, rendered::incrementAndGet);
+
+		assertEquals("Requested twice", 1, queued.size());
+		assertNull("Rendered while painting", cache.getCachedTile(pyramid, 0.5d, 1, 0));
+
+		runQueued();
+
+		BufferedImage tile = cache.getCachedTile(pyramid, 0.5d, 1, 0);
+
+		assertNotNull(tile);
+		assertEquals(1, rendered.get());
+
+		// 300x200 scaled: the second column is 44 pixels wide
+		assertEquals(300 - TileCache.TILE_SIZE, tile.getWidth());
+		assertEquals(200, tile.getHeight());
+
+		cache.renderLater(pyramid, 0.5d, 1, 0, queued::add, () -> true, rendered::incrementAndGet);
+
+		assertTrue("Cached tile rendered again", queued.isEmpty());
+
+	}
+
+	public void testNotRenderedIfNoLongerWanted() {
+
+		TileCache cache = new TileCache(64L << 20);
+		AtomicInteger rendered = new AtomicInteger();
+
+		cache.renderLater(pyramid, 0.75d, 0, 0, queued::add, () -> false, rendered::incrementAndGet);
+		runQueued();
+
+		assertNull(cache.getCachedTile(pyramid, 0.75d, 0, 0));
+		assertEquals(0, rendered.get());
+
+		// Requested again once wanted
+		cache.renderLater(pyramid, 0.75d, 0, 0, queued::add, () -> true, rendered::incrementAndGet);
+		runQueued();
+
+		assertNotNull(cache.getCachedTile(pyramid, 0.75d, 0, 0));
+		assertEquals(1, rendered.get());
+
+	}
+
+	private void runQueued() {
+
+		List<Runnable> tasks = new ArrayList<>(queued);
+		queued.clear();
+
+		for (Runnable task : tasks)
+			task.run();
+
+	}
+
+}